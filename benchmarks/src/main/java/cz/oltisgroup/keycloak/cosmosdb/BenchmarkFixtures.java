@@ -0,0 +1,101 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.Stream;
+
+/**
+ * Offline stand-ins for Keycloak and Cosmos objects used by the benchmarks.
+ */
+final class BenchmarkFixtures {
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // Shape of a real document of the User container
+    static final String USER_DOCUMENT_JSON = "{"
+            + "\"id\":\"5c0f3c1e-8d7b-4a4e-9f57-2f0a1b7d9e11\","
+            + "\"Header\":{\"UserAdId\":\"girmalar\",\"Guid\":\"a1b2c3d4-0000-4000-8000-000000000001\","
+            + "\"SrcSystem\":\"AZURE\",\"DstSystem\":\"mda\",\"IntegrationID\":\"220\",\"IntegrationVer\":\"1.01\","
+            + "\"IntegrationType\":\"Request\",\"Description\":\"Users\",\"SrcVersion\":null,\"ModeShift\":0,"
+            + "\"ProfId\":null,\"Language\":null,\"DeviceId\":null,\"GPSLongtitude\":null,\"GPSLatitude\":null,"
+            + "\"TimeStamp\":\"2024-05-02T08:15:30.123+02:00\",\"TimeCreation\":\"2024-05-02T08:15:30.123+02:00\","
+            + "\"TimeSend\":\"2024-05-02T08:15:30.123+02:00\",\"CompanyId\":\"1042\",\"UserLWPId\":\"77881\"},"
+            + "\"Item\":{\"Active\":1,\"Email\":\"girmalar@example.com\",\"Name\":\"Marek\",\"Surename\":\"Girma\","
+            + "\"Password\":\"bgggggggg1!\",\"PasswordExpiration\":\"2025-05-02T08:15:30.123+02:00\","
+            + "\"PasswordChange\":0,\"Role\":\"user\",\"Phones\":[\"+420111222333\",\"+420444555666\"]},"
+            + "\"_ts\":1714630530,\"_etag\":\"\\\"0000a1b2-0000-0d00-0000-6633b1a20000\\\"\"}";
+
+    static final byte[] USER_DOCUMENT_BYTES = USER_DOCUMENT_JSON.getBytes(StandardCharsets.UTF_8);
+
+    private BenchmarkFixtures() {}
+
+    static JsonNode userDocument() {
+        try {
+            return MAPPER.readTree(USER_DOCUMENT_BYTES);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static ComponentModel component() {
+        ComponentModel model = new ComponentModel();
+        model.setId("bench-component");
+        model.setName("cosmosdb");
+        model.setProviderId(CosmosDbUserStorageProviderFactory.PROVIDER_NAME);
+        model.put(CosmosDbUserStorageProviderFactory.ENDPOINT, "https://bench.documents.azure.com:443/");
+        model.put(CosmosDbUserStorageProviderFactory.KEY, "benchkey");
+        model.put(CosmosDbUserStorageProviderFactory.DATABASE_NAME, "bench");
+        model.put(CosmosDbUserStorageProviderFactory.CONTAINER_NAME, "User");
+        model.put(CosmosDbUserStorageProviderFactory.CLIENT_KEEP_ALIVE_SECONDS, "300");
+        return model;
+    }
+
+    /**
+     * Session whose federated storage holds no extra attributes, like for users edited only in Cosmos.
+     */
+    static KeycloakSession session() {
+        UserFederatedStorageProvider federatedStorage = stub(UserFederatedStorageProvider.class, null);
+        return stub(KeycloakSession.class, federatedStorage);
+    }
+
+    static RealmModel realm() {
+        return stub(RealmModel.class, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, Object provider) {
+        return (T) Proxy.newProxyInstance(BenchmarkFixtures.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getProvider":
+                    return provider;
+                case "getId":
+                    return "bench";
+                case "getAttributes":
+                    return new MultivaluedHashMap<String, String>();
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return type.getSimpleName() + "Stub";
+                default:
+                    Class<?> rt = method.getReturnType();
+                    if (rt == boolean.class) return false;
+                    if (rt == int.class) return 0;
+                    if (rt == long.class) return 0L;
+                    if (rt == Stream.class) return Stream.empty();
+                    return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,71 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.azure.cosmos.CosmosClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contention on CosmosClientManager acquire/release, which every provider instance (one per request) goes through.
+ * A placeholder client is used, it is never called.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientManagerBenchmark {
+
+    private CosmosDbConfig config;
+    private CosmosClient pinned;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        CosmosClient placeholder = allocatePlaceholder();
+        CosmosClientManager.clientFactory = c -> placeholder;
+        config = CosmosDbConfig.from(BenchmarkFixtures.component());
+        // the factory keeps one reference per component, so the client never goes idle in production either
+        pinned = CosmosClientManager.acquire(config);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CosmosClientManager.release(config, pinned);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public CosmosClient acquireReleaseSingleThread() {
+        CosmosClient client = CosmosClientManager.acquire(config);
+        CosmosClientManager.release(config, client);
+        return client;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public CosmosClient acquireReleaseContended() {
+        CosmosClient client = CosmosClientManager.acquire(config);
+        CosmosClientManager.release(config, client);
+        return client;
+    }
+
+    private static CosmosClient allocatePlaceholder() throws Exception {
+        Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+        f.setAccessible(true);
+        return (CosmosClient) ((sun.misc.Unsafe) f.get(null)).allocateInstance(CosmosClient.class);
+    }
+}
@@ -0,0 +1,53 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a user document from the wire into the JsonNode tree the provider works with,
+ * and the deep copy handed to coalesced lookups.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocumentDecodingBenchmark {
+
+    private JsonNode document;
+
+    @Setup
+    public void setup() {
+        document = BenchmarkFixtures.userDocument();
+    }
+
+    @Benchmark
+    public JsonNode readTree() throws IOException {
+        return BenchmarkFixtures.MAPPER.readTree(BenchmarkFixtures.USER_DOCUMENT_BYTES);
+    }
+
+    @Benchmark
+    public boolean readTreeAndCheckActive() throws IOException {
+        JsonNode doc = BenchmarkFixtures.MAPPER.readTree(BenchmarkFixtures.USER_DOCUMENT_BYTES);
+        JsonNode item = doc.get("Item");
+        return item != null && item.has("Active") && item.get("Active").asInt() == 1;
+    }
+
+    @Benchmark
+    public JsonNode deepCopy() {
+        return document.deepCopy();
+    }
+}
@@ -0,0 +1,314 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Login storm against the provider: worker threads run getUserByUsername -> isConfiguredFor -> isValid,
+ * each login in its own provider instance like one Keycloak session, mixed with admin profile edits.
+ * The backend is the in-memory store with configurable latency and throttling.
+ *
+ * Reports throughput, latency percentiles, backend calls per login and allocation. Exceptions of single
+ * operations are counted as errors; an Error (e.g. StackOverflowError) ends its worker and fails the run.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar cz.oltisgroup.keycloak.cosmosdb.LoginStormHarness threads=64 latencyMs=5
+ * </pre>
+ * Options (key=value): threads, users, hotUsers (logins spread over the first N users, 0 = all),
+ * durationSeconds, warmupSeconds, latencyMs, throttlePercent, adminPercent, logLevel (JUL level of the provider, default WARNING).
+ */
+public class LoginStormHarness {
+
+    private static final String PASSWORD_PREFIX = "pw-";
+
+    private final Map<String, String> options;
+    private final int threads;
+    private final int users;
+    private final int hotUsers;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final int adminPercent;
+
+    private final InMemoryUserDocumentStore backend;
+    private final UserDocumentStore countingStore;
+    private final ComponentModel model = BenchmarkFixtures.component();
+    private final CosmosDbConfig config = CosmosDbConfig.from(model);
+    private final KeycloakSession session = BenchmarkFixtures.session();
+    private final RealmModel realm = BenchmarkFixtures.realm();
+
+    // provider INFO logging of every profile edit would dominate the measurement
+    private static final java.util.logging.Logger PROVIDER_LOG = java.util.logging.Logger.getLogger("cz.oltisgroup.keycloak.cosmosdb");
+
+    // backend calls made by the current thread
+    private static final ThreadLocal<long[]> BACKEND_CALLS = ThreadLocal.withInitial(() -> new long[1]);
+
+    LoginStormHarness(Map<String, String> options) {
+        this.options = options;
+        this.threads = option("threads", 32);
+        this.users = option("users", 10_000);
+        this.hotUsers = option("hotUsers", 0);
+        this.durationSeconds = option("durationSeconds", 30);
+        this.warmupSeconds = option("warmupSeconds", 10);
+        this.adminPercent = option("adminPercent", 1);
+        this.backend = new InMemoryUserDocumentStore(option("latencyMs", 2), option("throttlePercent", 0));
+        this.countingStore = counting(backend);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Expected key=value, got " + arg);
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new LoginStormHarness(options).run();
+    }
+
+    private int option(String name, int defaultValue) {
+        String raw = options.get(name);
+        return raw == null ? defaultValue : Integer.parseInt(raw.trim());
+    }
+
+    void run() throws InterruptedException {
+        PROVIDER_LOG.setLevel(java.util.logging.Level.parse(options.getOrDefault("logLevel", "WARNING")));
+        seed();
+        System.out.printf("Login storm: threads=%d users=%d hotUsers=%d latencyMs=%d throttlePercent=%d adminPercent=%d%n",
+                threads, users, hotUsers, option("latencyMs", 2), option("throttlePercent", 0), adminPercent);
+        if (warmupSeconds > 0) {
+            System.out.printf("Warm-up %d s...%n", warmupSeconds);
+            runPhase(warmupSeconds);
+        }
+        System.out.printf("Measuring %d s...%n", durationSeconds);
+        report(runPhase(durationSeconds));
+    }
+
+    private void seed() {
+        for (int i = 0; i < users; i++) {
+            String username = username(i);
+            ObjectNode doc = BenchmarkFixtures.MAPPER.createObjectNode();
+            doc.put("id", "doc-" + i);
+            ObjectNode header = doc.putObject("Header");
+            header.put("UserAdId", username);
+            header.put("CompanyId", "1042");
+            ObjectNode item = doc.putObject("Item");
+            item.put("Active", 1);
+            item.put("Email", username + "@example.com");
+            item.put("Name", "First" + i);
+            item.put("Surename", "Last" + i);
+            item.put("Password", PASSWORD_PREFIX + i);
+            backend.putUser(doc);
+            ObjectNode extra = BenchmarkFixtures.MAPPER.createObjectNode();
+            extra.put("id", "extra-" + i);
+            extra.put("login", username);
+            extra.put("email", username + "@example.com");
+            backend.putExtra(extra);
+        }
+    }
+
+    private static String username(int i) {
+        return String.format("user%06d", i);
+    }
+
+    private Worker[] runPhase(int seconds) throws InterruptedException {
+        Worker[] workers = new Worker[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(start, deadline);
+            workers[i].start();
+        }
+        start.countDown();
+        for (Worker w : workers) w.join();
+        for (Worker w : workers) {
+            if (w.died != null) {
+                throw new IllegalStateException("Worker " + w.getName() + " died, results are not valid", w.died);
+            }
+        }
+        return workers;
+    }
+
+    private final class Worker extends Thread {
+        final CountDownLatch start;
+        final long deadline;
+        final Recorder logins = new Recorder();
+        final Recorder edits = new Recorder();
+        long loginBackendCalls;
+        long failedLogins;
+        long errors;
+        long allocatedBytes;
+        long elapsedNanos;
+        // Error (not an exception of a single operation) that ended the worker
+        Throwable died;
+
+        Worker(CountDownLatch start, long deadline) {
+            this.start = start;
+            this.deadline = deadline;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long allocatedBefore = mx.getThreadAllocatedBytes(getId());
+            long begin = System.nanoTime();
+            try {
+                loop();
+            } finally {
+                elapsedNanos = System.nanoTime() - begin;
+                allocatedBytes = mx.getThreadAllocatedBytes(getId()) - allocatedBefore;
+            }
+        }
+
+        private void loop() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int range = hotUsers > 0 ? Math.min(hotUsers, users) : users;
+            while (System.nanoTime() < deadline) {
+                int user = random.nextInt(range);
+                boolean admin = random.nextInt(100) < adminPercent;
+                long callsBefore = BACKEND_CALLS.get()[0];
+                long t0 = System.nanoTime();
+                try {
+                    if (admin) {
+                        edit(user, random.nextInt(1_000_000));
+                    } else if (!login(user)) {
+                        failedLogins++;
+                    }
+                } catch (RuntimeException ex) {
+                    errors++;
+                } catch (Throwable ex) {
+                    errors++;
+                    died = ex;
+                    return;
+                }
+                long latency = System.nanoTime() - t0;
+                if (admin) {
+                    edits.record(latency);
+                } else {
+                    logins.record(latency);
+                    loginBackendCalls += BACKEND_CALLS.get()[0] - callsBefore;
+                }
+            }
+        }
+    }
+
+    // one Keycloak session per login, like the browser flow
+    private boolean login(int i) {
+        CosmosDbUserStorageProvider provider = new CosmosDbUserStorageProvider(session, model, config, countingStore);
+        try {
+            UserModel user = provider.getUserByUsername(realm, username(i));
+            if (user == null) return false;
+            if (!provider.isConfiguredFor(realm, user, PasswordCredentialModel.TYPE)) return false;
+            return provider.isValid(realm, user, UserCredentialModel.password(PASSWORD_PREFIX + i));
+        } finally {
+            provider.close();
+        }
+    }
+
+    // what the admin console does on profile save: email and name change
+    private void edit(int i, int revision) {
+        CosmosDbUserStorageProvider provider = new CosmosDbUserStorageProvider(session, model, config, countingStore);
+        try {
+            String username = username(i);
+            provider.updateEmail(username, username + "+" + revision + "@example.com");
+            provider.updateUserNames(username, "First" + i, "Last" + revision);
+        } finally {
+            provider.close();
+        }
+    }
+
+    private static UserDocumentStore counting(UserDocumentStore delegate) {
+        return (UserDocumentStore) Proxy.newProxyInstance(LoginStormHarness.class.getClassLoader(),
+                new Class<?>[]{UserDocumentStore.class}, (proxy, method, args) -> {
+                    if (!"close".equals(method.getName())) {
+                        BACKEND_CALLS.get()[0]++;
+                    }
+                    try {
+                        return method.invoke(delegate, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    private void report(Worker[] workers) {
+        Recorder logins = new Recorder();
+        Recorder edits = new Recorder();
+        long backendCalls = 0, failed = 0, errors = 0, allocated = 0, elapsed = 0;
+        for (Worker w : workers) {
+            logins.addAll(w.logins);
+            edits.addAll(w.edits);
+            backendCalls += w.loginBackendCalls;
+            failed += w.failedLogins;
+            errors += w.errors;
+            allocated += w.allocatedBytes;
+            elapsed = Math.max(elapsed, w.elapsedNanos);
+        }
+        // guards the rates when no worker got to run
+        double seconds = Math.max(elapsed, 1) / 1_000_000_000.0;
+        long operations = logins.size() + edits.size();
+        System.out.println();
+        System.out.printf("logins            %d (%.0f/s), failed %d, errors (all ops) %d%n", logins.size(), logins.size() / seconds, failed, errors);
+        System.out.printf("login latency     %s%n", logins.summary());
+        System.out.printf("admin edits       %d (%.0f/s)%n", edits.size(), edits.size() / seconds);
+        System.out.printf("edit latency      %s%n", edits.summary());
+        System.out.printf("backend calls     %.2f per login%n", logins.size() == 0 ? 0.0 : (double) backendCalls / logins.size());
+        System.out.printf("allocation        %.1f MB/s, %.1f KB per operation%n",
+                allocated / seconds / (1024 * 1024), operations == 0 ? 0.0 : allocated / 1024.0 / operations);
+    }
+
+    /**
+     * Latencies of one thread; merged and sorted only for the report.
+     */
+    static final class Recorder {
+        private long[] values = new long[1 << 14];
+        private int size;
+
+        void record(long nanos) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = nanos;
+        }
+
+        void addAll(Recorder other) {
+            for (int i = 0; i < other.size; i++) record(other.values[i]);
+        }
+
+        int size() {
+            return size;
+        }
+
+        String summary() {
+            if (size == 0) return "-";
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            List<String> parts = new ArrayList<>();
+            for (double p : new double[]{50, 95, 99, 99.9}) {
+                int index = (int) Math.min(size - 1, Math.ceil(p / 100.0 * size) - 1);
+                parts.add(String.format("p%s=%.2fms", p == 99.9 ? "99.9" : String.valueOf((int) p), sorted[Math.max(0, index)] / 1_000_000.0));
+            }
+            parts.add(String.format("max=%.2fms", sorted[size - 1] / 1_000_000.0));
+            return String.join(" ", parts);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Adapter construction and the attribute accessors Keycloak calls for every token and user profile render.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserAdapterBenchmark {
+
+    private KeycloakSession session;
+    private RealmModel realm;
+    private ComponentModel model;
+    private JsonNode document;
+    private CosmosDbUserAdapter adapter;
+
+    @Setup
+    public void setup() {
+        session = BenchmarkFixtures.session();
+        realm = BenchmarkFixtures.realm();
+        model = BenchmarkFixtures.component();
+        document = BenchmarkFixtures.userDocument();
+        adapter = new CosmosDbUserAdapter(session, realm, model, document, null);
+    }
+
+    @Benchmark
+    public CosmosDbUserAdapter construct() {
+        return new CosmosDbUserAdapter(session, realm, model, document, null);
+    }
+
+    @Benchmark
+    public Map<String, List<String>> getAttributes() {
+        return adapter.getAttributes();
+    }
+
+    @Benchmark
+    public void getAttributeStreamMapped(Blackhole bh) {
+        bh.consume(adapter.getAttributeStream("firstName").collect(Collectors.toList()));
+        bh.consume(adapter.getAttributeStream("email").collect(Collectors.toList()));
+        bh.consume(adapter.getAttributeStream("companyId").collect(Collectors.toList()));
+    }
+
+    @Benchmark
+    public List<String> getAttributeStreamFromDocument() {
+        return adapter.getAttributeStream("Phones").collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public void loginAccessors(Blackhole bh) {
+        // what a login touches: id, username, enabled, email, names
+        bh.consume(adapter.getId());
+        bh.consume(adapter.getUsername());
+        bh.consume(adapter.isEnabled());
+        bh.consume(adapter.getEmail());
+        bh.consume(adapter.getFirstName());
+        bh.consume(adapter.getLastName());
+    }
+}
@@ -0,0 +1,69 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session cache lookups (exact and case-folded hits, misses) and the node-wide single-flight
+ * path every cache miss goes through.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserCacheBenchmark {
+
+    private UserDocumentCache cache;
+    private JsonNode document;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        final SingleFlight<JsonNode> lookups = new SingleFlight<>();
+        final JsonNode document = BenchmarkFixtures.userDocument();
+    }
+
+    @Setup
+    public void setup() {
+        cache = new UserDocumentCache();
+        document = BenchmarkFixtures.userDocument();
+        for (int i = 0; i < 16; i++) {
+            cache.put("user" + i, document);
+        }
+        cache.put("Girmalar", document);
+    }
+
+    @Benchmark
+    public JsonNode hitExact() {
+        return cache.get("Girmalar");
+    }
+
+    @Benchmark
+    public JsonNode hitCaseFolded() {
+        return cache.get("GIRMALAR");
+    }
+
+    @Benchmark
+    public JsonNode miss() {
+        return cache.get("nobody");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public JsonNode singleFlightSameKey(Shared shared) {
+        return shared.lookups.execute("bench|girmalar", () -> shared.document).value;
+    }
+}
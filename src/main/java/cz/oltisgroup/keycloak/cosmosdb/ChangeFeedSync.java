@@ -0,0 +1,136 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Full and changed-users synchronization driven by the change feed of the main container, so that
+ * a periodic sync costs in proportion to the changes rather than to the number of users.
+ *
+ * The feed position (continuation) is kept as realm attribute per component. Full sync reads the feed
+ * from the beginning, changed-users sync from the stored continuation, or from the last sync time when
+ * there is none yet. Each page of changed documents is applied as one batch in its own transaction,
+ * up to the configured parallelism. The continuation only moves when no user failed, so failed users
+ * are read again by the next sync.
+ *
+ * The LatestVersion change feed carries the current version of created and updated documents only, never
+ * deletions: users deleted from the container are not reported, not even by a full sync, which does not
+ * reconcile deletions. Deactivation (Item.Active) is reported.
+ */
+final class ChangeFeedSync {
+
+    private static final Logger logger = Logger.getLogger(ChangeFeedSync.class);
+
+    static final String CHECKPOINT_ATTRIBUTE_PREFIX = "cosmosdb.changeFeed.";
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private ChangeFeedSync() {}
+
+    static String checkpointAttribute(String componentId) {
+        return CHECKPOINT_ATTRIBUTE_PREFIX + componentId;
+    }
+
+    static SynchronizationResult run(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model,
+                                     CosmosDbConfig config, UserDocumentStore store, boolean full, Date lastSync) {
+        String attribute = checkpointAttribute(model.getId());
+        String continuation = full ? null : KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            return realm == null ? null : realm.getAttribute(attribute);
+        });
+        Instant since = full || continuation != null || lastSync == null ? null : lastSync.toInstant();
+        logger.debugf("Change feed sync of %s (full=%s, continuation=%s, since=%s)", model.getName(), full, continuation != null, since);
+
+        SynchronizationResult result = new SynchronizationResult();
+        int parallelism = config.getSyncParallelism();
+        // bounds the pages read ahead of the workers
+        Semaphore inFlight = new Semaphore(parallelism * 2);
+        List<Future<?>> batches = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "cosmosdb-sync-" + THREADS.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        String next;
+        try {
+            next = store.readChanges(continuation, since, config.getSyncBatchSize(), docs -> {
+                inFlight.acquireUninterruptibly();
+                batches.add(executor.submit(() -> {
+                    try {
+                        SynchronizationResult batch = applyBatch(sessionFactory, realmId, model, docs);
+                        synchronized (result) {
+                            result.add(batch);
+                        }
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            });
+        } finally {
+            executor.shutdown();
+            awaitAll(batches);
+        }
+
+        if (result.getFailed() > 0) {
+            logger.warnf("Change feed sync of %s: %d user(s) failed, feed position kept for the next sync", model.getName(), result.getFailed());
+        } else if (next != null) {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                if (realm != null) realm.setAttribute(attribute, next);
+            });
+        }
+        return result;
+    }
+
+    private static SynchronizationResult applyBatch(KeycloakSessionFactory sessionFactory, String realmId,
+                                                    UserStorageProviderModel model, List<JsonNode> docs) {
+        SynchronizationResult batch = new SynchronizationResult();
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                session.getContext().setRealm(realm);
+                CosmosDbUserStorageProvider provider = (CosmosDbUserStorageProvider)
+                        session.getComponentProvider(UserStorageProvider.class, model.getId(), factory -> model);
+                provider.applyChanges(realm, docs, batch);
+            });
+        } catch (RuntimeException e) {
+            logger.error("Change feed sync batch of " + docs.size() + " user(s) failed", e);
+            // the transaction was rolled back, nothing of the batch took effect
+            SynchronizationResult failed = new SynchronizationResult();
+            failed.setFailed(docs.size());
+            return failed;
+        }
+        return batch;
+    }
+
+    private static void awaitAll(List<Future<?>> batches) {
+        for (Future<?> batch : batches) {
+            try {
+                batch.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ModelException("Interrupted while waiting for change feed sync batches", e);
+            } catch (ExecutionException e) {
+                throw new ModelException("Change feed sync batch failed", e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.ModelException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node-wide circuit breaker for one container. After the configured number of consecutive failed
+ * calls (timeouts, throttling that outlasted the SDK retries, server errors) the circuit opens and
+ * calls fail immediately for the open period, instead of piling up behind a failing account. Then a
+ * single trial call is let through: success closes the circuit, failure opens it again.
+ *
+ * Failing fast lets the login path fall back to stale entries of {@link NodeUserCache}.
+ *
+ * Only failures of login and write calls count: background calls (search, count, maintenance) run at low
+ * priority and are the first to be throttled, which must not open the circuit for logins. While the
+ * circuit is open they fail fast like any other call.
+ */
+public final class CircuitBreaker {
+
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+    private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Thrown instead of calling Cosmos DB while the circuit is open.
+     */
+    public static final class OpenException extends ModelException {
+        private static final long serialVersionUID = 1L;
+
+        OpenException(String container) {
+            super("Cosmos DB circuit of container " + container + " is open, call not attempted");
+        }
+    }
+
+    private final String container;
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openUntil;
+    private boolean trialInFlight;
+
+    private CircuitBreaker(String container, int failureThreshold, int openSeconds) {
+        this.container = container;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.SECONDS.toNanos(Math.max(1, openSeconds));
+    }
+
+    /**
+     * @return shared breaker for the container of the configuration, null when the breaker is disabled
+     */
+    public static CircuitBreaker forContainer(CosmosDbConfig config, String containerName) {
+        if (config.getCircuitBreakerFailures() <= 0) return null;
+        String key = config.getEndpoint() + "|" + config.getDatabaseName() + "|" + containerName + "|"
+                + config.getCircuitBreakerFailures() + "|" + config.getCircuitBreakerOpenSeconds();
+        return BREAKERS.computeIfAbsent(key, k -> {
+            CircuitBreaker breaker = new CircuitBreaker(containerName, config.getCircuitBreakerFailures(), config.getCircuitBreakerOpenSeconds());
+            CosmosDbMetrics.registerCircuit(containerName, breaker);
+            return breaker;
+        });
+    }
+
+    /**
+     * @return true when the status code of a completed call counts as failure: timeout (including the
+     * end-to-end timeout), throttling that outlasted the SDK retries, server error
+     */
+    static boolean isFailure(int statusCode) {
+        return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * @throws OpenException while the circuit is open, or half open with the trial call in flight
+     */
+    public synchronized void admit(CosmosDbOperation op) {
+        if (state == State.OPEN && System.nanoTime() - openUntil >= 0) {
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+        }
+        if (state == State.OPEN || (state == State.HALF_OPEN && trialInFlight)) {
+            CosmosDbMetrics.circuitRejected(op);
+            throw new OpenException(container);
+        }
+        if (state == State.HALF_OPEN) {
+            trialInFlight = true;
+        }
+    }
+
+    /**
+     * Record the outcome of an admitted call.
+     */
+    public synchronized void complete(CosmosDbOperation op, int statusCode) {
+        if (isFailure(statusCode) && op.operationClass().isBackground()) {
+            trialInFlight = false;
+            return;
+        }
+        if (!isFailure(statusCode)) {
+            if (state != State.CLOSED) {
+                logger.infof("Cosmos DB circuit of container %s closed", container);
+            }
+            state = State.CLOSED;
+            failures = 0;
+            trialInFlight = false;
+            return;
+        }
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            logger.warnf("Cosmos DB circuit of container %s opened after %d failed call(s), calls fail fast for %d s",
+                    container, failures, TimeUnit.NANOSECONDS.toSeconds(openNanos));
+            state = State.OPEN;
+            openUntil = System.nanoTime() + openNanos;
+            trialInFlight = false;
+        }
+    }
+
+    /**
+     * The admitted call was not made (e.g. rejected by the RU budget) or ended without a Cosmos status.
+     */
+    public synchronized void abandon() {
+        trialInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
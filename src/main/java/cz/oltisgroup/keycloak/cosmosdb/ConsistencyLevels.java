@@ -0,0 +1,83 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.azure.cosmos.ConsistencyLevel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Read consistency per operation class, e.g. "session,search=eventual,count=eventual": default level
+ * followed by optional overrides (class names as in {@link CosmosDbOperation.OperationClass}).
+ *
+ * The client runs at session consistency, a request can only relax it, so the allowed levels are
+ * session, consistent_prefix and eventual. Invalid entries are dropped and reported by {@link #getErrors()}.
+ */
+public final class ConsistencyLevels {
+
+    public static final String DEFAULT = "session";
+
+    private final ConsistencyLevel defaultLevel;
+    private final Map<CosmosDbOperation.OperationClass, ConsistencyLevel> levels = new EnumMap<>(CosmosDbOperation.OperationClass.class);
+    private final List<String> errors = new ArrayList<>();
+
+    private ConsistencyLevels(String spec) {
+        ConsistencyLevel defaultValue = ConsistencyLevel.SESSION;
+        for (String part : spec.split(",")) {
+            String token = part.trim();
+            if (token.isEmpty()) continue;
+            int eq = token.indexOf('=');
+            ConsistencyLevel level = level(eq < 0 ? token : token.substring(eq + 1));
+            if (level == null) {
+                errors.add("Invalid consistency level in '" + token + "', expected session, consistent_prefix or eventual");
+                continue;
+            }
+            if (eq < 0) {
+                defaultValue = level;
+                continue;
+            }
+            CosmosDbOperation.OperationClass operationClass = operationClass(token.substring(0, eq));
+            if (operationClass == null) {
+                errors.add("Unknown operation class in consistency level '" + token + "', expected login, write, search, count or maintenance");
+            } else {
+                levels.put(operationClass, level);
+            }
+        }
+        this.defaultLevel = defaultValue;
+    }
+
+    public static ConsistencyLevels parse(String spec) {
+        return new ConsistencyLevels(spec == null || spec.isBlank() ? DEFAULT : spec);
+    }
+
+    private static ConsistencyLevel level(String name) {
+        switch (name.trim().toLowerCase(Locale.ROOT).replace("-", "_")) {
+            case "session": return ConsistencyLevel.SESSION;
+            case "consistent_prefix": case "consistentprefix": return ConsistencyLevel.CONSISTENT_PREFIX;
+            case "eventual": return ConsistencyLevel.EVENTUAL;
+            default: return null;
+        }
+    }
+
+    private static CosmosDbOperation.OperationClass operationClass(String name) {
+        for (CosmosDbOperation.OperationClass operationClass : CosmosDbOperation.OperationClass.values()) {
+            if (operationClass.name().equalsIgnoreCase(name.trim())) return operationClass;
+        }
+        return null;
+    }
+
+    /**
+     * @return level for reads of the operation, null when it is the client's session consistency
+     */
+    public ConsistencyLevel forOperation(CosmosDbOperation op) {
+        ConsistencyLevel level = levels.getOrDefault(op.operationClass(), defaultLevel);
+        return level == ConsistencyLevel.SESSION ? null : level;
+    }
+
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+}
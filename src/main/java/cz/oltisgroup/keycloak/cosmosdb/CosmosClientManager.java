@@ -3,18 +3,32 @@ package cz.oltisgroup.keycloak.cosmosdb;
 import com.azure.cosmos.CosmosClient;
 import com.azure.cosmos.CosmosClientBuilder;
 import com.azure.cosmos.ConsistencyLevel;
+import com.azure.cosmos.CosmosContainerProactiveInitConfigBuilder;
+import com.azure.cosmos.CosmosExcludedRegions;
+import com.azure.cosmos.models.CosmosContainerIdentity;
 import org.jboss.logging.Logger;
 import org.keycloak.models.ModelException;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * Shared CosmosClient manager with reference counting and keep-alive delay
  * so that short-lived provider instances do not churn TCP connections.
+ *
+ * There is one client per account (endpoint, key, preferred and excluded regions), shared by every component
+ * pointing at the account whatever database and containers it uses, so a node serving many realms
+ * keeps one connection pool per account. Containers need no references of their own: they hold no
+ * resources apart from the client. A new client opens connections and fills address caches of its first
+ * component's containers through the builder's proactive init; containers a running client gets later
+ * have their metadata read when first acquired, their connections are opened on first use.
  */
 public final class CosmosClientManager {
 
@@ -23,9 +37,13 @@ public final class CosmosClientManager {
     private static class Entry {
         final CosmosClient client;
         final AtomicInteger refCount = new AtomicInteger(1);
+        // database|container already warmed up; containers stay warm while the client lives
+        final Set<String> containers = ConcurrentHashMap.newKeySet();
         // When refCount drops to zero we record releaseTime and keep the client alive for keepAliveMillis
         volatile long releaseTime = -1L;
-        final long keepAliveMillis;
+        volatile long keepAliveMillis;
+        // retired by a configuration change: closed as soon as its last reference is released
+        volatile boolean retired;
         Entry(CosmosClient client, long keepAliveMillis) {
             this.client = client; this.keepAliveMillis = keepAliveMillis;
         }
@@ -33,69 +51,178 @@ public final class CosmosClientManager {
 
     private static final Map<String, Entry> CLIENTS = new ConcurrentHashMap<>();
 
+    // Replaceable so the acquire/release path can be benchmarked without a Cosmos account
+    static Function<CosmosDbConfig, CosmosClient> clientFactory = CosmosClientManager::buildClient;
+
     private CosmosClientManager() {}
 
-    private static String key(String endpoint, String db, String container, String accountKey) {
-        return endpoint + "|" + db + "|" + container + "|" + (accountKey == null ? "" : Integer.toHexString(accountKey.hashCode()));
+    private static String key(CosmosDbConfig config) {
+        String accountKey = config.getKey();
+        return config.getEndpoint() + "|" + (accountKey == null ? "" : Integer.toHexString(accountKey.hashCode())) + "|"
+                + String.join(",", config.getPreferredRegions()) + "|" + String.join(",", config.getExcludedRegions());
     }
 
     /**
-     * Acquire (or create) shared client. Performs lazy cleanup of expired (idle) entries.
-     * @param endpoint cosmos endpoint
-     * @param key account key
-     * @param db database name
-     * @param container container name
-     * @param keepAliveSeconds how long (seconds) to keep idle client before real close (<=0 = immediate close behavior)
+     * @return true when both configurations share one client
      */
-    public static synchronized CosmosClient acquire(String endpoint, String key, String db, String container, int keepAliveSeconds) {
-        cleanupExpired();
-        String composite = key(endpoint, db, container, key);
-        Entry e = CLIENTS.get(composite);
-        if (e != null) {
-            int c = e.refCount.incrementAndGet();
-            e.releaseTime = -1L; // active again
-            logger.debugf("Reusing CosmosClient for %s (refCount=%d)", composite, c);
-            return e.client;
-        }
-        long keepAliveMillis = keepAliveSeconds > 0 ? keepAliveSeconds * 1000L : 0L;
-        logger.infof("Creating new shared CosmosClient for endpoint=%s db=%s container=%s (keepAlive=%ds)", endpoint, db, container, keepAliveSeconds);
-        CosmosClient client = new CosmosClientBuilder()
-                .endpoint(endpoint)
-                .key(key)
-                .consistencyLevel(ConsistencyLevel.SESSION)
-                .buildClient();
-        CLIENTS.put(composite, new Entry(client, keepAliveMillis));
+    public static boolean sameAccount(CosmosDbConfig a, CosmosDbConfig b) {
+        return key(a).equals(key(b));
+    }
+
+    private static List<String> containers(CosmosDbConfig config) {
+        List<String> containers = new ArrayList<>();
+        containers.add(config.getDatabaseName() + "|" + config.getContainerName());
+        if (config.getUsersContainerName() != null && !config.getUsersContainerName().isBlank()) {
+            containers.add(config.getDatabaseName() + "|" + config.getUsersContainerName());
+        }
+        if (config.isGroupsEnabled()) {
+            containers.add(config.getDatabaseName() + "|" + config.getGroupsContainerName());
+        }
+        return containers;
+    }
+
+    /**
+     * Acquire (or create) the shared client of the account together with the configured containers.
+     * Performs lazy cleanup of expired (idle) entries. New clients open connections and warm address
+     * caches for the configured containers, containers new to an existing client get their metadata cached.
+     * @param config component configuration (endpoint, key, database, containers, keep-alive)
+     */
+    public static CosmosClient acquire(CosmosDbConfig config) {
+        List<String> cold = new ArrayList<>();
+        CosmosClient client;
+        synchronized (CosmosClientManager.class) {
+            cleanupExpired();
+            String composite = key(config);
+            int keepAliveSeconds = config.getKeepAliveSeconds();
+            long keepAliveMillis = keepAliveSeconds > 0 ? keepAliveSeconds * 1000L : 0L;
+            Entry e = CLIENTS.get(composite);
+            if (e != null) {
+                int c = e.refCount.incrementAndGet();
+                e.releaseTime = -1L; // active again
+                e.retired = false;
+                e.keepAliveMillis = Math.max(e.keepAliveMillis, keepAliveMillis);
+                for (String container : containers(config)) {
+                    if (e.containers.add(container)) {
+                        cold.add(container);
+                    }
+                }
+                logger.debugf("Reusing CosmosClient for %s (refCount=%d)", config.getEndpoint(), c);
+                client = e.client;
+            } else {
+                logger.infof("Creating new shared CosmosClient for endpoint=%s db=%s container=%s (keepAlive=%ds, preferredRegions=%s, excludedRegions=%s)",
+                        config.getEndpoint(), config.getDatabaseName(), config.getContainerName(), keepAliveSeconds,
+                        config.getPreferredRegions(), config.getExcludedRegions());
+                client = clientFactory.apply(config);
+                e = new Entry(client, keepAliveMillis);
+                e.containers.addAll(containers(config));
+                CLIENTS.put(composite, e);
+            }
+        }
+        // outside the lock, the first use of a container on a running client should not stall other components
+        for (String container : cold) {
+            warmUp(client, container);
+        }
         return client;
     }
 
-    public static synchronized void release(String endpoint, String key, String db, String container, CosmosClient client) {
+    private static void warmUp(CosmosClient client, String container) {
+        int sep = container.indexOf('|');
+        try {
+            // proactive init is a builder setting only, so a running client caches the container metadata
+            client.getDatabase(container.substring(0, sep)).getContainer(container.substring(sep + 1)).read();
+            logger.infof("Container %s warmed up on shared CosmosClient", container);
+        } catch (RuntimeException ex) {
+            logger.warnf("Warm-up of container %s failed, connections are opened on first use: %s", container, ex.getMessage());
+        }
+    }
+
+    private static CosmosClient buildClient(CosmosDbConfig config) {
+        List<CosmosContainerIdentity> containers = new ArrayList<>();
+        containers.add(new CosmosContainerIdentity(config.getDatabaseName(), config.getContainerName()));
+        if (config.getUsersContainerName() != null && !config.getUsersContainerName().isBlank()) {
+            containers.add(new CosmosContainerIdentity(config.getDatabaseName(), config.getUsersContainerName()));
+        }
+        if (config.isGroupsEnabled()) {
+            containers.add(new CosmosContainerIdentity(config.getDatabaseName(), config.getGroupsContainerName()));
+        }
+        CosmosClientBuilder builder = new CosmosClientBuilder()
+                .endpoint(config.getEndpoint())
+                .key(config.getKey())
+                // requests can only relax the client level, see ConsistencyLevels
+                .consistencyLevel(ConsistencyLevel.SESSION)
+                .openConnectionsAndInitCaches(new CosmosContainerProactiveInitConfigBuilder(containers).build());
+        if (!config.getPreferredRegions().isEmpty()) {
+            // order matters: reads go to the first region, hedged reads to the next ones
+            builder.preferredRegions(config.getPreferredRegions());
+        }
+        if (!config.getExcludedRegions().isEmpty()) {
+            CosmosExcludedRegions excluded = new CosmosExcludedRegions(new java.util.HashSet<>(config.getExcludedRegions()));
+            builder.excludedRegionsSupplier(() -> excluded);
+        }
+        return builder.buildClient();
+    }
+
+    public static synchronized void release(CosmosDbConfig config, CosmosClient client) {
         if (client == null) return;
-        String composite = key(endpoint, db, container, key);
+        String composite = key(config);
         Entry e = CLIENTS.get(composite);
-        if (e == null) {
-            logger.warnf("Attempted to release unknown CosmosClient key=%s", composite);
-            return;
-        }
-        if (!Objects.equals(e.client, client)) {
-            logger.warnf("Client instance mismatch for key %s; ignoring release", composite);
+        if (e == null || !Objects.equals(e.client, client)) {
+            if (e == null) {
+                logger.warnf("Attempted to release unknown CosmosClient for %s", config.getEndpoint());
+            } else {
+                logger.warnf("Client instance mismatch for %s; ignoring release", config.getEndpoint());
+            }
             return;
         }
         int remaining = e.refCount.decrementAndGet();
         if (remaining <= 0) {
-            if (e.keepAliveMillis <= 0) {
+            if (e.keepAliveMillis <= 0 || e.retired) {
                 CLIENTS.remove(composite);
-                logger.infof("Closing shared CosmosClient for %s (immediate)", composite);
+                logger.infof("Closing shared CosmosClient for %s (%s)", config.getEndpoint(), e.retired ? "retired" : "immediate");
                 safeClose(e.client);
             } else {
                 e.releaseTime = System.currentTimeMillis();
-                logger.debugf("Marking CosmosClient idle for %s (close in ~%d ms)", composite, e.keepAliveMillis);
+                logger.debugf("Marking CosmosClient idle for %s (close in ~%d ms)", config.getEndpoint(), e.keepAliveMillis);
             }
         } else {
-            logger.debugf("Released CosmosClient for %s (refCount=%d)", composite, remaining);
+            logger.debugf("Released CosmosClient for %s (refCount=%d)", config.getEndpoint(), remaining);
         }
         cleanupExpired();
     }
 
+    /**
+     * The component of the given configuration no longer uses the account (configuration changed or
+     * component removed). The client is closed right away when idle, otherwise as soon as its last
+     * user releases it (keep-alive is ignored); other components acquiring it meanwhile keep it open.
+     */
+    public static synchronized void retire(CosmosDbConfig config) {
+        String composite = key(config);
+        Entry e = CLIENTS.get(composite);
+        if (e == null) return;
+        if (e.refCount.get() <= 0) {
+            CLIENTS.remove(composite);
+            logger.infof("Closing shared CosmosClient for %s (retired)", config.getEndpoint());
+            safeClose(e.client);
+        } else {
+            logger.debugf("Retiring shared CosmosClient for %s (refCount=%d, closed on last release)", config.getEndpoint(), e.refCount.get());
+            e.retired = true;
+        }
+    }
+
+    /**
+     * Close every managed client regardless of reference counts. Used on server shutdown.
+     */
+    public static synchronized void closeAll() {
+        List<Entry> all = new ArrayList<>(CLIENTS.values());
+        CLIENTS.clear();
+        for (Entry e : all) {
+            try { e.client.close(); } catch (Exception ex) { logger.warn("Error closing CosmosClient on shutdown", ex); }
+        }
+        if (!all.isEmpty()) {
+            logger.infof("Closed %d shared CosmosClient(s) on shutdown", all.size());
+        }
+    }
+
     private static void cleanupExpired() {
         long now = System.currentTimeMillis();
         Iterator<Map.Entry<String, Entry>> it = CLIENTS.entrySet().iterator();
@@ -103,7 +230,7 @@ public final class CosmosClientManager {
             Map.Entry<String, Entry> mapEntry = it.next();
             Entry e = mapEntry.getValue();
             if (e.refCount.get() == 0 && e.releaseTime > 0 && e.keepAliveMillis > 0 && now - e.releaseTime >= e.keepAliveMillis) {
-                logger.infof("Closing shared CosmosClient for %s (idle timeout exceeded)", mapEntry.getKey());
+                logger.infof("Closing shared CosmosClient for %s (idle timeout exceeded)", mapEntry.getKey().substring(0, mapEntry.getKey().indexOf('|')));
                 it.remove();
                 safeClose(e.client);
             }
@@ -0,0 +1,214 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.keycloak.component.ComponentModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Immutable snapshot of the component configuration. Used by the provider on every session
+ * and by the factory lifecycle hooks to warm up / swap shared clients.
+ */
+public final class CosmosDbConfig {
+
+    public static final String STORAGE_BACKEND_COSMOS = "cosmos";
+    public static final String STORAGE_BACKEND_MEMORY = "memory";
+
+    private final String endpoint;
+    private final String key;
+    private final String databaseName;
+    private final String containerName;
+    private final String usersContainerName;
+    private final String groupsContainerName;
+    private final int keepAliveSeconds;
+    private final SlowOperationThresholds slowOperationThresholds;
+    private final int slowOperationLogSize;
+    private final int ruBudgetPerSecond;
+    private final int backgroundRuSharePercent;
+    private final int backgroundMaxConcurrency;
+    private final int ruBudgetMaxWaitMs;
+    private final int readTimeoutMs;
+    private final int hedgeThresholdMs;
+    private final int hedgeThresholdStepMs;
+    private final List<String> preferredRegions;
+    private final List<String> excludedRegions;
+    private final String storageBackend;
+    private final int inMemoryLatencyMs;
+    private final int inMemoryThrottlePercent;
+    private final SearchableAttributes searchableAttributes;
+    private final QueryProfiles queryProfiles;
+    private final ConsistencyLevels consistencyLevels;
+    private final RequestPriorities requestPriorities;
+    private final String indexingPolicyMode;
+    private final List<String> indexExcludedPaths;
+    private final RoleMapping roleMapping;
+    private final int roleCacheSeconds;
+    private final int syncParallelism;
+    private final int syncBatchSize;
+    private final boolean importUsers;
+    private final String searchFieldsMode;
+    private final int userCacheSeconds;
+    private final int userCacheStaleSeconds;
+    private final int circuitBreakerFailures;
+    private final int circuitBreakerOpenSeconds;
+
+    private CosmosDbConfig(ComponentModel model) {
+        this.endpoint = model.get(CosmosDbUserStorageProviderFactory.ENDPOINT);
+        this.key = model.get(CosmosDbUserStorageProviderFactory.KEY);
+        this.databaseName = model.get(CosmosDbUserStorageProviderFactory.DATABASE_NAME);
+        this.containerName = model.get(CosmosDbUserStorageProviderFactory.CONTAINER_NAME);
+        this.usersContainerName = model.get(CosmosDbUserStorageProviderFactory.USERS_CONTAINER_NAME, "Users");
+        this.groupsContainerName = model.get(CosmosDbUserStorageProviderFactory.GROUPS_CONTAINER_NAME, "").trim();
+        this.keepAliveSeconds = Math.max(0, intValue(model, CosmosDbUserStorageProviderFactory.CLIENT_KEEP_ALIVE_SECONDS, 30));
+        this.slowOperationThresholds = SlowOperationThresholds.parse(
+                model.get(CosmosDbUserStorageProviderFactory.SLOW_OPERATION_LATENCY_MS),
+                model.get(CosmosDbUserStorageProviderFactory.SLOW_OPERATION_RU));
+        this.slowOperationLogSize = Math.max(1, intValue(model, CosmosDbUserStorageProviderFactory.SLOW_OPERATION_LOG_SIZE, 100));
+        this.ruBudgetPerSecond = Math.max(0, intValue(model, CosmosDbUserStorageProviderFactory.RU_BUDGET_PER_SECOND, 0));
+        this.backgroundRuSharePercent = intValue(model, CosmosDbUserStorageProviderFactory.BACKGROUND_RU_SHARE_PERCENT, 30);
+        this.backgroundMaxConcurrency = Math.max(1, intValue(model, CosmosDbUserStorageProviderFactory.BACKGROUND_MAX_CONCURRENCY, 8));
+        this.ruBudgetMaxWaitMs = Math.max(0, intValue(model, CosmosDbUserStorageProviderFactory.RU_BUDGET_MAX_WAIT_MS, 5000));
+        this.readTimeoutMs = Math.max(0, intValue(model, CosmosDbUserStorageProviderFactory.READ_TIMEOUT_MS, 0));
+        this.hedgeThresholdMs = Math.max(0, intValue(model, CosmosDbUserStorageProviderFactory.HEDGE_THRESHOLD_MS, 0));
+        this.hedgeThresholdStepMs = Math.max(1, intValue(model, CosmosDbUserStorageProviderFactory.HEDGE_THRESHOLD_STEP_MS, 100));
+        this.preferredRegions = NodeRegions.preferred(listValue(model.get(CosmosDbUserStorageProviderFactory.PREFERRED_REGIONS)));
+        this.excludedRegions = NodeRegions.excluded(listValue(model.get(CosmosDbUserStorageProviderFactory.EXCLUDED_REGIONS)));
+        this.storageBackend = model.get(CosmosDbUserStorageProviderFactory.STORAGE_BACKEND, STORAGE_BACKEND_COSMOS).trim();
+        this.inMemoryLatencyMs = Math.max(0, intValue(model, CosmosDbUserStorageProviderFactory.IN_MEMORY_LATENCY_MS, 0));
+        this.inMemoryThrottlePercent = Math.max(0, intValue(model, CosmosDbUserStorageProviderFactory.IN_MEMORY_THROTTLE_PERCENT, 0));
+        this.searchableAttributes = SearchableAttributes.parse(model.get(CosmosDbUserStorageProviderFactory.SEARCHABLE_ATTRIBUTES));
+        this.queryProfiles = QueryProfiles.parse(model.get(CosmosDbUserStorageProviderFactory.QUERY_PROFILES));
+        this.consistencyLevels = ConsistencyLevels.parse(model.get(CosmosDbUserStorageProviderFactory.CONSISTENCY_LEVELS));
+        this.requestPriorities = RequestPriorities.parse(model.get(CosmosDbUserStorageProviderFactory.REQUEST_PRIORITIES));
+        this.indexingPolicyMode = model.get(CosmosDbUserStorageProviderFactory.INDEXING_POLICY_MODE, IndexingPolicyCheck.MODE_WARN).trim();
+        this.roleMapping = RoleMapping.parse(model.get(CosmosDbUserStorageProviderFactory.ROLE_MAPPING));
+        this.roleCacheSeconds = Math.max(0, intValue(model, CosmosDbUserStorageProviderFactory.ROLE_CACHE_SECONDS, 60));
+        this.syncParallelism = Math.max(1, intValue(model, CosmosDbUserStorageProviderFactory.SYNC_PARALLELISM, 4));
+        this.syncBatchSize = Math.max(1, intValue(model, CosmosDbUserStorageProviderFactory.SYNC_BATCH_SIZE, 100));
+        this.importUsers = Boolean.parseBoolean(model.get(CosmosDbUserStorageProviderFactory.IMPORT_USERS, "false").trim());
+        this.searchFieldsMode = model.get(CosmosDbUserStorageProviderFactory.SEARCH_FIELDS_MODE, SearchFields.MODE_OFF).trim();
+        this.userCacheSeconds = Math.max(0, intValue(model, CosmosDbUserStorageProviderFactory.USER_CACHE_SECONDS, 0));
+        this.userCacheStaleSeconds = Math.max(0, intValue(model, CosmosDbUserStorageProviderFactory.USER_CACHE_STALE_SECONDS, 300));
+        this.circuitBreakerFailures = Math.max(0, intValue(model, CosmosDbUserStorageProviderFactory.CIRCUIT_BREAKER_FAILURES, 0));
+        this.circuitBreakerOpenSeconds = Math.max(1, intValue(model, CosmosDbUserStorageProviderFactory.CIRCUIT_BREAKER_OPEN_SECONDS, 30));
+        this.indexExcludedPaths = listValue(model.get(CosmosDbUserStorageProviderFactory.INDEX_EXCLUDED_PATHS, IndexingPolicyCheck.DEFAULT_EXCLUDED_PATHS));
+    }
+
+    public static CosmosDbConfig from(ComponentModel model) {
+        return new CosmosDbConfig(model);
+    }
+
+    static List<String> listValue(String raw) {
+        if (raw == null || raw.isBlank()) return Collections.emptyList();
+        List<String> values = new ArrayList<>();
+        for (String part : raw.split(",")) {
+            if (!part.isBlank()) values.add(part.trim());
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    static int intValue(ComponentModel model, String name, int defaultValue) {
+        String raw = model.get(name);
+        if (raw == null || raw.isBlank()) return defaultValue;
+        try { return Integer.parseInt(raw.trim()); } catch (NumberFormatException e) { return defaultValue; }
+    }
+
+    public String getEndpoint() { return endpoint; }
+    public String getKey() { return key; }
+    public String getDatabaseName() { return databaseName; }
+    public String getContainerName() { return containerName; }
+    public String getUsersContainerName() { return usersContainerName; }
+    public String getGroupsContainerName() { return groupsContainerName; }
+    public int getKeepAliveSeconds() { return keepAliveSeconds; }
+    public SlowOperationThresholds getSlowOperationThresholds() { return slowOperationThresholds; }
+    public int getSlowOperationLogSize() { return slowOperationLogSize; }
+    public int getRuBudgetPerSecond() { return ruBudgetPerSecond; }
+    public int getBackgroundRuSharePercent() { return backgroundRuSharePercent; }
+    public int getBackgroundMaxConcurrency() { return backgroundMaxConcurrency; }
+    public int getRuBudgetMaxWaitMs() { return ruBudgetMaxWaitMs; }
+    public int getReadTimeoutMs() { return readTimeoutMs; }
+    public int getHedgeThresholdMs() { return hedgeThresholdMs; }
+    public int getHedgeThresholdStepMs() { return hedgeThresholdStepMs; }
+    public List<String> getPreferredRegions() { return preferredRegions; }
+    public List<String> getExcludedRegions() { return excludedRegions; }
+    public String getStorageBackend() { return storageBackend; }
+    public int getInMemoryLatencyMs() { return inMemoryLatencyMs; }
+    public int getInMemoryThrottlePercent() { return inMemoryThrottlePercent; }
+    public SearchableAttributes getSearchableAttributes() { return searchableAttributes; }
+    public QueryProfiles getQueryProfiles() { return queryProfiles; }
+    public ConsistencyLevels getConsistencyLevels() { return consistencyLevels; }
+    public RequestPriorities getRequestPriorities() { return requestPriorities; }
+    public String getIndexingPolicyMode() { return indexingPolicyMode; }
+    public List<String> getIndexExcludedPaths() { return indexExcludedPaths; }
+    public RoleMapping getRoleMapping() { return roleMapping; }
+    public int getRoleCacheSeconds() { return roleCacheSeconds; }
+    public int getSyncParallelism() { return syncParallelism; }
+    public int getSyncBatchSize() { return syncBatchSize; }
+    public boolean isImportUsers() { return importUsers; }
+    public String getSearchFieldsMode() { return searchFieldsMode; }
+    public int getUserCacheSeconds() { return userCacheSeconds; }
+    public int getUserCacheStaleSeconds() { return userCacheStaleSeconds; }
+    public int getCircuitBreakerFailures() { return circuitBreakerFailures; }
+    public int getCircuitBreakerOpenSeconds() { return circuitBreakerOpenSeconds; }
+
+    /**
+     * @return true when lowercase search copies are written and backfilled
+     */
+    public boolean isSearchFieldsMaintained() {
+        return SearchFields.MODE_BACKFILL.equalsIgnoreCase(searchFieldsMode) || isCaseFoldedSearch();
+    }
+
+    /**
+     * @return true when lookups and searches query the lowercase search copies
+     */
+    public boolean isCaseFoldedSearch() {
+        return SearchFields.MODE_ON.equalsIgnoreCase(searchFieldsMode);
+    }
+
+    /**
+     * @return true when group memberships are kept in Cosmos DB instead of Keycloak's federated storage
+     */
+    public boolean isGroupsEnabled() {
+        return !groupsContainerName.isEmpty();
+    }
+
+    /**
+     * @return true when users are kept in the node-local in-memory store instead of Cosmos DB
+     */
+    public boolean isInMemory() {
+        return STORAGE_BACKEND_MEMORY.equalsIgnoreCase(storageBackend);
+    }
+
+    /**
+     * @return true when the Cosmos connection part of the configuration is filled in
+     */
+    public boolean isComplete() {
+        return endpoint != null && !endpoint.isBlank() && key != null && !key.isBlank()
+                && databaseName != null && !databaseName.isBlank() && containerName != null && !containerName.isBlank();
+    }
+
+    /**
+     * @return true when both configurations lead to the same shared client and containers
+     */
+    public boolean sameConnection(CosmosDbConfig that) {
+        return keepAliveSeconds == that.keepAliveSeconds
+                && storageBackend.equalsIgnoreCase(that.storageBackend)
+                && Objects.equals(endpoint, that.endpoint)
+                && Objects.equals(key, that.key)
+                && Objects.equals(databaseName, that.databaseName)
+                && Objects.equals(containerName, that.containerName)
+                && Objects.equals(usersContainerName, that.usersContainerName)
+                && Objects.equals(groupsContainerName, that.groupsContainerName)
+                && Objects.equals(preferredRegions, that.preferredRegions)
+                && Objects.equals(excludedRegions, that.excludedRegions);
+    }
+
+    @Override
+    public String toString() {
+        return "backend=" + storageBackend + " endpoint=" + endpoint + " db=" + databaseName + " container=" + containerName
+                + " usersContainer=" + usersContainerName + " keepAlive=" + keepAliveSeconds + "s"
+                + " preferredRegions=" + preferredRegions + " excludedRegions=" + excludedRegions;
+    }
+}
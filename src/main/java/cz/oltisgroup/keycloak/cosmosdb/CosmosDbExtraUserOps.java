@@ -1,39 +1,38 @@
 package cz.oltisgroup.keycloak.cosmosdb;
 
-import com.azure.cosmos.*;
-import com.azure.cosmos.models.*;
-import com.azure.cosmos.util.CosmosPagedIterable;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.jboss.logging.Logger;
 
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class CosmosDbExtraUserOps {
 
-    private final CosmosContainer usersExtraContainer;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final UserDocumentStore store;
     private final Logger logger;
 
-    public CosmosDbExtraUserOps(CosmosContainer usersExtraContainer, Logger logger) {
-        this.usersExtraContainer = usersExtraContainer;
+    public CosmosDbExtraUserOps(UserDocumentStore store, Logger logger) {
+        this.store = store;
         this.logger = logger;
     }
 
     public void updateEmail(String username, String email) {
         try {
-            String q = "SELECT * FROM c WHERE c.login = @login";
-            SqlQuerySpec spec = new SqlQuerySpec(q, Collections.singletonList(new SqlParameter("@login", username)));
-            CosmosPagedIterable<JsonNode> res = usersExtraContainer.queryItems(spec, new CosmosQueryRequestOptions(), JsonNode.class);
+            List<JsonNode> res = store.findExtraByLogin(username);
             for (JsonNode doc : res) {
-                if (!doc.isObject()) continue;
-                com.fasterxml.jackson.databind.node.ObjectNode obj = (com.fasterxml.jackson.databind.node.ObjectNode) doc;
+                if (!doc.isObject() || !doc.has("id")) continue;
+                Map<String, Object> fields = new LinkedHashMap<>();
                 if (email == null || email.isBlank()) {
-                    obj.put("email", "");
+                    fields.put("email", "");
                 } else {
-                    obj.put("email", email);
+                    fields.put("email", email);
                 }
-                usersExtraContainer.upsertItem(obj);
+                store.patchExtra(doc.get("id").asText(), username, fields);
                 logger.infof("updateEmailExtraCollection: persisted for %s -> %s", username, email);
                 break;
             }
@@ -48,24 +47,24 @@ public class CosmosDbExtraUserOps {
             return;
         }
         try {
-            String q = "SELECT * FROM c WHERE c.login = @login";
-            SqlQuerySpec spec = new SqlQuerySpec(q, Collections.singletonList(new SqlParameter("@login", username)));
-            CosmosPagedIterable<JsonNode> res = usersExtraContainer.queryItems(spec, new CosmosQueryRequestOptions(), JsonNode.class);
+            List<JsonNode> res = store.findExtraByLogin(username);
             for (JsonNode doc : res) {
-                if (!doc.isObject()) continue;
-                com.fasterxml.jackson.databind.node.ObjectNode obj = (com.fasterxml.jackson.databind.node.ObjectNode) doc;
+                if (!doc.isObject() || !doc.has("id")) continue;
+                Map<String, Object> fields = new LinkedHashMap<>();
                 if (companyIdOrNull != null && !companyIdOrNull.isBlank()) {
-                    obj.put("firmaId", companyIdOrNull);
+                    fields.put("firmaId", companyIdOrNull);
                 }
                 if (userLWPIdOrNull != null && !userLWPIdOrNull.isBlank()) {
                     try {
                         int lwpIdInt = Integer.parseInt(userLWPIdOrNull);
-                        obj.put("lwpId", lwpIdInt);
+                        fields.put("lwpId", lwpIdInt);
                     } catch (NumberFormatException e) {
                         logger.warnf("updateHeaderAttributesExtraCollection: lwpId '%s' , .", userLWPIdOrNull);
                     }
                 }
-                usersExtraContainer.upsertItem(obj);
+                if (!fields.isEmpty()) {
+                    store.patchExtra(doc.get("id").asText(), username, fields);
+                }
                 logger.infof("updateHeaderAttributesExtraCollection: persisted for %s (firmaId set=%s, lwpId set=%s)", username,
                         companyIdOrNull != null, userLWPIdOrNull != null);
                 break;
@@ -81,19 +80,17 @@ public class CosmosDbExtraUserOps {
             return;
         }
         try {
-            String q = "SELECT * FROM c WHERE c.login = @login";
-            SqlQuerySpec spec = new SqlQuerySpec(q, Collections.singletonList(new SqlParameter("@login", username)));
-            CosmosPagedIterable<JsonNode> res = usersExtraContainer.queryItems(spec, new CosmosQueryRequestOptions(), JsonNode.class);
+            List<JsonNode> res = store.findExtraByLogin(username);
             for (JsonNode doc : res) {
-                if (!doc.isObject()) continue;
-                com.fasterxml.jackson.databind.node.ObjectNode obj = (com.fasterxml.jackson.databind.node.ObjectNode) doc;
+                if (!doc.isObject() || !doc.has("id")) continue;
+                Map<String, Object> fields = new LinkedHashMap<>();
                 if (firstNameOrNull != null && !firstNameOrNull.isBlank()) {
-                    obj.put("name", firstNameOrNull);
+                    fields.put("name", firstNameOrNull);
                 }
                 if (lastNameOrNull != null && !lastNameOrNull.isBlank()) {
-                    obj.put("surename", lastNameOrNull);
+                    fields.put("surename", lastNameOrNull);
                 }
-                usersExtraContainer.upsertItem(obj);
+                store.patchExtra(doc.get("id").asText(), username, fields);
                 logger.infof("updateUserNamesExtraCollection: persisted for %s (name set=%s, surename set=%s)", username,
                         firstNameOrNull != null, lastNameOrNull != null);
                 break;
@@ -110,14 +107,10 @@ public class CosmosDbExtraUserOps {
             throw new RuntimeException("New password cannot be null or blank");
         }
         try {
-            String q = "SELECT * FROM c WHERE c.login = @login";
-            SqlQuerySpec spec = new SqlQuerySpec(q, Collections.singletonList(new SqlParameter("@login", username)));
-            CosmosPagedIterable<JsonNode> res = usersExtraContainer.queryItems(spec, new CosmosQueryRequestOptions(), JsonNode.class);
+            List<JsonNode> res = store.findExtraByLogin(username);
             for (JsonNode doc : res) {
-                if (!doc.isObject()) continue;
-                com.fasterxml.jackson.databind.node.ObjectNode obj = (com.fasterxml.jackson.databind.node.ObjectNode) doc;
-                obj.put("password", newPassword);
-                usersExtraContainer.upsertItem(obj);
+                if (!doc.isObject() || !doc.has("id")) continue;
+                store.patchExtra(doc.get("id").asText(), username, Collections.singletonMap("password", newPassword));
                 logger.infof("updateCredentialExtraCollection: password updated for %s", username);
                 break;
             }
@@ -145,7 +138,7 @@ public class CosmosDbExtraUserOps {
             usersDoc.put("passwordExpiration", passwordExp);
             usersDoc.put("passwordChange", 0);
             usersDoc.put("id", java.util.UUID.randomUUID().toString());
-            usersExtraContainer.createItem(usersDoc);
+            store.createExtra(MAPPER.convertValue(usersDoc, com.fasterxml.jackson.databind.node.ObjectNode.class));
             logger.infof("User %s successfully created in extra Users collection", username);
         } catch (Exception ex) {
             logger.errorf("Failed to create user %s in extra Users collection", username, ex);
@@ -155,9 +148,7 @@ public class CosmosDbExtraUserOps {
 
     public boolean existsInExtraCollection(String username) {
         try {
-            String q = "SELECT * FROM c WHERE c.login = @login";
-            SqlQuerySpec spec = new SqlQuerySpec(q, Collections.singletonList(new SqlParameter("@login", username)));
-            CosmosPagedIterable<JsonNode> res = usersExtraContainer.queryItems(spec, new CosmosQueryRequestOptions(), JsonNode.class);
+            List<JsonNode> res = store.findExtraByLogin(username);
             for (JsonNode doc : res) {
                 if (doc.isObject()) {
                     logger.debugf("existsInExtraCollection: user %s exists", username);
@@ -174,13 +165,11 @@ public class CosmosDbExtraUserOps {
 
     public void removeUser(String username) {
         try {
-            String q = "SELECT * FROM c WHERE c.login = @login";
-            SqlQuerySpec spec = new SqlQuerySpec(q, Collections.singletonList(new SqlParameter("@login", username)));
-            CosmosPagedIterable<JsonNode> res = usersExtraContainer.queryItems(spec, new CosmosQueryRequestOptions(), JsonNode.class);
+            List<JsonNode> res = store.findExtraByLogin(username);
             for (JsonNode doc : res) {
                 if (doc.isObject() && doc.has("id")) {
                     String id = doc.get("id").asText();
-                    usersExtraContainer.deleteItem(id, new PartitionKey(username), new CosmosItemRequestOptions());
+                    store.deleteExtra(id, username);
                     logger.infof("removeUserExtraCollection: user %s deleted from extra collection", username);
                     break;
                 }
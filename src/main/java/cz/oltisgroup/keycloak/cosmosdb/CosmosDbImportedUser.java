@@ -0,0 +1,153 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.jboss.logging.Logger;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.UserModelDelegate;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * User imported into Keycloak's local store (import mode). Reads are served by the local copy and
+ * Keycloak's cache; changes of fields kept in Cosmos DB are written to Cosmos first, then to the copy.
+ *
+ * The copy remembers the document id, partition key and _etag, so {@link CosmosDbUserStorageProvider#validate}
+ * can check it with a conditional point read instead of loading the user.
+ */
+public class CosmosDbImportedUser extends UserModelDelegate {
+
+    private static final Logger logger = Logger.getLogger(CosmosDbImportedUser.class);
+
+    static final String COSMOS_ID = "cosmosId";
+    static final String COSMOS_USER_AD_ID = "cosmosUserAdId";
+    static final String COSMOS_ETAG = "cosmosEtag";
+
+    private final CosmosDbUserStorageProvider provider;
+
+    public CosmosDbImportedUser(UserModel local, CosmosDbUserStorageProvider provider) {
+        super(local);
+        this.provider = provider;
+    }
+
+    /**
+     * @return true when the local copy was made from this version of the document
+     */
+    static boolean isCurrent(UserModel local, JsonNode doc) {
+        return doc.hasNonNull("_etag") && doc.get("_etag").asText().equals(local.getFirstAttribute(COSMOS_ETAG));
+    }
+
+    /**
+     * Copy the fields kept in Cosmos DB from the document into the local user.
+     */
+    static void copy(JsonNode doc, UserModel local) {
+        JsonNode header = doc.get("Header");
+        JsonNode item = doc.get("Item");
+        local.setEmail(firstNonBlank(item, "Email", "email"));
+        local.setFirstName(firstNonBlank(item, "name", "Name"));
+        local.setLastName(firstNonBlank(item, "Surename", "Surname"));
+        local.setEnabled(item != null && item.has("Active") && item.get("Active").asInt() == 1);
+        setOrRemove(local, "companyId", firstNonBlank(header, "CompanyId"));
+        setOrRemove(local, "userLWPId", firstNonBlank(header, "UserLWPId"));
+        setOrRemove(local, COSMOS_ID, CosmosDbUserStorageProvider.documentId(doc));
+        setOrRemove(local, COSMOS_USER_AD_ID, firstNonBlank(header, "UserAdId"));
+        setOrRemove(local, COSMOS_ETAG, doc.hasNonNull("_etag") ? doc.get("_etag").asText() : null);
+    }
+
+    private static void setOrRemove(UserModel user, String name, String value) {
+        if (value == null) {
+            if (user.getFirstAttribute(name) != null) user.removeAttribute(name);
+        } else if (!value.equals(user.getFirstAttribute(name))) {
+            user.setSingleAttribute(name, value);
+        }
+    }
+
+    private static String firstNonBlank(JsonNode node, String... candidates) {
+        if (node == null) return null;
+        for (String c : candidates) {
+            if (node.has(c) && !node.get(c).isNull() && !node.get(c).asText().isBlank()) {
+                return node.get(c).asText();
+            }
+        }
+        return null;
+    }
+
+    private String cosmosUsername() {
+        String name = getFirstAttribute(COSMOS_USER_AD_ID);
+        return name != null ? name : getUsername();
+    }
+
+    private void writeThrough(String field, Runnable write) {
+        try {
+            write.run();
+        } catch (Exception ex) {
+            logger.debugf("Failed to persist %s for user %s into Cosmos DB: %s", field, getUsername(), ex.getMessage());
+            throw new ModelException("Failed to persist " + field + " into Cosmos DB.");
+        }
+    }
+
+    @Override
+    public void setEmail(String email) {
+        if (Objects.equals(email, getEmail())) return;
+        writeThrough("email", () -> provider.updateEmail(cosmosUsername(), email));
+        super.setEmail(email);
+    }
+
+    @Override
+    public void setFirstName(String firstName) {
+        if (Objects.equals(firstName, getFirstName())) return;
+        writeThrough("firstName", () -> provider.updateUserNames(cosmosUsername(), firstName, null));
+        super.setFirstName(firstName);
+    }
+
+    @Override
+    public void setLastName(String lastName) {
+        if (Objects.equals(lastName, getLastName())) return;
+        writeThrough("lastName", () -> provider.updateUserNames(cosmosUsername(), null, lastName));
+        super.setLastName(lastName);
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        if (enabled == isEnabled()) return;
+        writeThrough("enabled", () -> provider.updateActive(cosmosUsername(), enabled));
+        super.setEnabled(enabled);
+    }
+
+    // user profile updates arrive as attributes
+    @Override
+    public void setSingleAttribute(String name, String value) {
+        writeAttribute(name, value);
+        super.setSingleAttribute(name, value);
+    }
+
+    @Override
+    public void setAttribute(String name, List<String> values) {
+        writeAttribute(name, values == null || values.isEmpty() ? null : values.get(0));
+        super.setAttribute(name, values);
+    }
+
+    private void writeAttribute(String name, String value) {
+        if (name == null || Objects.equals(value, getFirstAttribute(name))) return;
+        switch (name.trim().toLowerCase()) {
+            case "email":
+                writeThrough(name, () -> provider.updateEmail(cosmosUsername(), value));
+                break;
+            case "firstname":
+                writeThrough(name, () -> provider.updateUserNames(cosmosUsername(), value, null));
+                break;
+            case "lastname":
+                writeThrough(name, () -> provider.updateUserNames(cosmosUsername(), null, value));
+                break;
+            case "companyid":
+                if (value != null) writeThrough(name, () -> provider.updateHeaderAttributes(cosmosUsername(), value, null));
+                break;
+            case "userlwpid":
+                if (value != null) writeThrough(name, () -> provider.updateHeaderAttributes(cosmosUsername(), null, value));
+                break;
+            default:
+                // kept in Keycloak only
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-operation Cosmos DB metrics published to the Micrometer global registry, which Keycloak
+ * exposes on its Prometheus endpoint (metrics-enabled=true).
+ *
+ * cosmosdb.request.latency   timer (histogram) by operation and status code
+ * cosmosdb.request.charge    RU charge distribution by operation
+ * cosmosdb.request.retries   SDK retries by operation
+ * cosmosdb.cache.requests    cache lookups by cache and result (hit/miss/stale)
+ * cosmosdb.budget.rejected   calls rejected by the client-side RU budget by operation
+ * cosmosdb.budget.concurrency_limit  current AIMD concurrency limit of non-login calls by container
+ * cosmosdb.read.outcome      reads cut by the end-to-end timeout or answered after hedging, by operation
+ * cosmosdb.circuit.open      1 while the circuit breaker of the container is open or half open
+ * cosmosdb.circuit.rejected  calls failed fast by an open circuit by operation
+ * cosmosdb.region.latency    timer by contacted region ("a+b" when a call contacted several)
+ * cosmosdb.region.failover   calls that contacted more than one region (failover, cross-region retry, hedging) by operation
+ * cosmosdb.region.remote     calls served only by a region other than the first preferred one, by region
+ */
+public final class CosmosDbMetrics {
+
+    private static final MeterRegistry registry = Metrics.globalRegistry;
+
+    private static final Map<String, Timer> latencyTimers = new ConcurrentHashMap<>();
+    private static final Map<CosmosDbOperation, DistributionSummary> chargeSummaries = new ConcurrentHashMap<>();
+    private static final Map<CosmosDbOperation, Counter> retryCounters = new ConcurrentHashMap<>();
+    private static final Map<String, Counter> cacheCounters = new ConcurrentHashMap<>();
+    private static final Map<String, Timer> regionTimers = new ConcurrentHashMap<>();
+
+    private CosmosDbMetrics() {}
+
+    public static void recordCall(CosmosDbOperation op, double requestCharge, long latencyNanos, int statusCode, int retries) {
+        latencyTimers.computeIfAbsent(op.tag() + "|" + statusCode, k -> Timer.builder("cosmosdb.request.latency")
+                        .description("Latency of Cosmos DB calls issued by the user storage provider")
+                        .tag("operation", op.tag())
+                        .tag("status", Integer.toString(statusCode))
+                        .publishPercentileHistogram()
+                        .register(registry))
+                .record(latencyNanos, TimeUnit.NANOSECONDS);
+        chargeSummaries.computeIfAbsent(op, o -> DistributionSummary.builder("cosmosdb.request.charge")
+                        .description("Request units consumed by Cosmos DB calls")
+                        .baseUnit("RU")
+                        .tag("operation", o.tag())
+                        .register(registry))
+                .record(requestCharge);
+        if (retries > 0) {
+            retryCounters.computeIfAbsent(op, o -> Counter.builder("cosmosdb.request.retries")
+                            .description("Retries performed by the Cosmos SDK")
+                            .tag("operation", o.tag())
+                            .register(registry))
+                    .increment(retries);
+        }
+    }
+
+    public static void budgetRejected(CosmosDbOperation op) {
+        Counter.builder("cosmosdb.budget.rejected")
+                .description("Calls rejected because the client-side RU budget was exhausted")
+                .tag("operation", op.tag())
+                .register(registry)
+                .increment();
+    }
+
+    public static void registerBudget(String container, RuBudget budget) {
+        Gauge.builder("cosmosdb.budget.concurrency_limit", budget, RuBudget::getConcurrencyLimit)
+                .description("Adaptive concurrency limit of non-login Cosmos DB calls")
+                .tag("container", container)
+                .register(registry);
+    }
+
+    public static void registerCircuit(String container, CircuitBreaker breaker) {
+        Gauge.builder("cosmosdb.circuit.open", breaker, b -> b.getState() == CircuitBreaker.State.CLOSED ? 0 : 1)
+                .description("Whether the circuit breaker of the container is open")
+                .tag("container", container)
+                .register(registry);
+    }
+
+    public static void circuitRejected(CosmosDbOperation op) {
+        Counter.builder("cosmosdb.circuit.rejected")
+                .description("Calls failed fast because the circuit breaker was open")
+                .tag("operation", op.tag())
+                .register(registry)
+                .increment();
+    }
+
+    public static void readOutcome(CosmosDbOperation op, String outcome) {
+        Counter.builder("cosmosdb.read.outcome")
+                .description("Reads that hit the end-to-end timeout or were hedged to another region")
+                .tag("operation", op.tag())
+                .tag("outcome", outcome)
+                .register(registry)
+                .increment();
+    }
+
+    public static void regionCall(String region, long latencyNanos) {
+        regionTimers.computeIfAbsent(region, r -> Timer.builder("cosmosdb.region.latency")
+                        .description("Latency of Cosmos DB calls by contacted region")
+                        .tag("region", r)
+                        .publishPercentileHistogram()
+                        .register(registry))
+                .record(latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void regionFailover(CosmosDbOperation op) {
+        Counter.builder("cosmosdb.region.failover")
+                .description("Cosmos DB calls that contacted more than one region")
+                .tag("operation", op.tag())
+                .register(registry)
+                .increment();
+    }
+
+    public static void regionRemote(String region) {
+        Counter.builder("cosmosdb.region.remote")
+                .description("Cosmos DB calls served by a region other than the first preferred region")
+                .tag("region", region)
+                .register(registry)
+                .increment();
+    }
+
+    public static void cacheHit(String cache) {
+        cacheCounter(cache, "hit").increment();
+    }
+
+    public static void cacheMiss(String cache) {
+        cacheCounter(cache, "miss").increment();
+    }
+
+    public static void cacheStale(String cache) {
+        cacheCounter(cache, "stale").increment();
+    }
+
+    private static Counter cacheCounter(String cache, String result) {
+        return cacheCounters.computeIfAbsent(cache + "|" + result, k -> Counter.builder("cosmosdb.cache.requests")
+                .description("User document cache lookups")
+                .tag("cache", cache)
+                .tag("result", result)
+                .register(registry));
+    }
+}
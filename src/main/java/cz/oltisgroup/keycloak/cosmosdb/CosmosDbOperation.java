@@ -0,0 +1,65 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+/**
+ * Operation types issued against Cosmos DB. The tag is used as metric label and in diagnostics,
+ * the operation class decides how the call is treated under RU pressure.
+ */
+public enum CosmosDbOperation {
+
+    FIND_BY_USERNAME("find_by_username", OperationClass.LOGIN),
+    VALIDATE_IMPORTED("validate_imported", OperationClass.LOGIN),
+    FIND_BY_EMAIL("find_by_email", OperationClass.LOGIN),
+    SEARCH("search", OperationClass.SEARCH),
+    SEARCH_BY_ATTRIBUTE("search_by_attribute", OperationClass.SEARCH),
+    COUNT("count", OperationClass.COUNT),
+    LOAD_FULL_DOCUMENT("load_full_document", OperationClass.WRITE),
+    CREATE_USER("create_user", OperationClass.WRITE),
+    UPSERT_USER("upsert_user", OperationClass.WRITE),
+    DELETE_USER("delete_user", OperationClass.WRITE),
+    // role lookup when tokens are issued
+    EXTRA_LOOKUP("extra_lookup", OperationClass.LOGIN),
+    EXTRA_CREATE("extra_create", OperationClass.WRITE),
+    EXTRA_PATCH("extra_patch", OperationClass.WRITE),
+    EXTRA_DELETE("extra_delete", OperationClass.WRITE),
+    GROUP_MEMBERS("group_members", OperationClass.SEARCH),
+    FIND_BY_USERNAMES("find_by_usernames", OperationClass.SEARCH),
+    GROUP_MEMBER_UPSERT("group_member_upsert", OperationClass.WRITE),
+    GROUP_MEMBER_DELETE("group_member_delete", OperationClass.WRITE),
+    ROLE_MEMBERS("role_members", OperationClass.SEARCH),
+    CHANGE_FEED("change_feed", OperationClass.MAINTENANCE),
+    SEARCH_FIELDS_BACKFILL("search_fields_backfill", OperationClass.MAINTENANCE);
+
+    public enum OperationClass {
+        /** user lookups and credential validation on the login path */
+        LOGIN,
+        /** profile edits made through the admin console / account console */
+        WRITE,
+        SEARCH,
+        COUNT,
+        /** sync, reconciliation and other bulk work */
+        MAINTENANCE;
+
+        /**
+         * @return true for work that may be delayed to keep logins fast (RU budget share)
+         */
+        public boolean isBackground() {
+            return this == SEARCH || this == COUNT || this == MAINTENANCE;
+        }
+    }
+
+    private final String tag;
+    private final OperationClass operationClass;
+
+    CosmosDbOperation(String tag, OperationClass operationClass) {
+        this.tag = tag;
+        this.operationClass = operationClass;
+    }
+
+    public String tag() {
+        return tag;
+    }
+
+    public OperationClass operationClass() {
+        return operationClass;
+    }
+}
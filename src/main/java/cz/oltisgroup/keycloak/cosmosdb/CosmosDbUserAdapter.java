@@ -4,9 +4,11 @@ import com.fasterxml.jackson.databind.JsonNode;
 import org.jboss.logging.Logger;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.UserCredentialManager;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.ModelException;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
 import org.keycloak.models.SubjectCredentialManager;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
@@ -30,6 +32,9 @@ public class CosmosDbUserAdapter extends AbstractUserAdapterFederatedStorage {
     private final boolean lastNameFromSource;
     // Injected provider to avoid deprecated session.getProvider/component provider calls
     private final CosmosDbUserStorageProvider provider;
+    private Set<String> groupIds;
+    private Set<RoleModel> mappedRoles;
+    private SubjectCredentialManager credentialManager;
 
     public CosmosDbUserAdapter(KeycloakSession session, RealmModel realm,
                                ComponentModel model, JsonNode userDocument,
@@ -338,9 +343,88 @@ public class CosmosDbUserAdapter extends AbstractUserAdapterFederatedStorage {
         return Collections.unmodifiableMap(m);
     }
 
+    // ---- Group membership (Cosmos DB when the groups container is configured) ----
+    private boolean cosmosGroups() {
+        return provider != null && provider.isGroupsEnabled();
+    }
+
+    private Set<String> cosmosGroupIds() {
+        if (groupIds == null) {
+            groupIds = new LinkedHashSet<>();
+            JsonNode groups = itemDoc != null ? itemDoc.get(CosmosDbUserStorageProvider.GROUPS_FIELD) : null;
+            if (groups != null && groups.isArray()) {
+                groups.forEach(g -> groupIds.add(g.asText()));
+            }
+        }
+        return groupIds;
+    }
+
+    @Override
+    protected Set<GroupModel> getGroupsInternal() {
+        if (!cosmosGroups()) {
+            return super.getGroupsInternal();
+        }
+        Set<GroupModel> groups = new LinkedHashSet<>();
+        for (String id : cosmosGroupIds()) {
+            GroupModel group = session.groups().getGroupById(realm, id);
+            if (group != null) groups.add(group);
+        }
+        return groups;
+    }
+
+    @Override
+    public Stream<GroupModel> getGroupsStream() {
+        if (!cosmosGroups()) {
+            return super.getGroupsStream();
+        }
+        Stream<GroupModel> groups = getGroupsInternal().stream();
+        if (appendDefaultGroups()) {
+            groups = Stream.concat(groups, realm.getDefaultGroupsStream());
+        }
+        return groups.distinct();
+    }
+
+    @Override
+    public void joinGroup(GroupModel group) {
+        if (!cosmosGroups()) {
+            super.joinGroup(group);
+            return;
+        }
+        if (cosmosGroupIds().add(group.getId())) {
+            provider.updateGroupMembership(username, group.getId(), true);
+        }
+    }
+
+    @Override
+    public void leaveGroup(GroupModel group) {
+        if (!cosmosGroups()) {
+            super.leaveGroup(group);
+            return;
+        }
+        if (cosmosGroupIds().remove(group.getId())) {
+            provider.updateGroupMembership(username, group.getId(), false);
+        }
+    }
+
+    // ---- Role mappings derived from the extra collection's role field ----
+    @Override
+    protected Set<RoleModel> getRoleMappingsInternal() {
+        if (provider == null) {
+            return super.getRoleMappingsInternal();
+        }
+        if (mappedRoles == null) {
+            mappedRoles = provider.getMappedRoles(realm, username);
+        }
+        return mappedRoles;
+    }
+
     @Override
     public SubjectCredentialManager credentialManager() {
-        return new UserCredentialManager(session, realm, this);
+        // the provider keeps one adapter per user and session, so the manager is shared by all callers
+        if (credentialManager == null) {
+            credentialManager = new UserCredentialManager(session, realm, this);
+        }
+        return credentialManager;
     }
 
     private Long createdTimestamp = null;
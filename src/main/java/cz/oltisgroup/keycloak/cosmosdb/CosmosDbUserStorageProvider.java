@@ -1,8 +1,6 @@
 package cz.oltisgroup.keycloak.cosmosdb;
 
-import com.azure.cosmos.*;
-import com.azure.cosmos.models.*;
-import com.azure.cosmos.util.CosmosPagedIterable;
+import com.azure.cosmos.CosmosException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.jboss.logging.Logger;
@@ -12,68 +10,79 @@ import org.keycloak.credential.CredentialInputUpdater;
 import org.keycloak.credential.CredentialInputValidator;
 import org.keycloak.http.HttpRequest;
 import org.keycloak.models.*;
+import org.keycloak.models.cache.UserCache;
 import org.keycloak.models.credential.PasswordCredentialModel;
 import org.keycloak.storage.StorageId;
+import org.keycloak.storage.UserStoragePrivateUtil;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportedUserValidation;
 import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.user.UserLookupProvider;
 import org.keycloak.storage.user.UserQueryProvider;
 import org.keycloak.storage.user.UserRegistrationProvider;
+import org.keycloak.storage.user.SynchronizationResult;
 
 import java.util.*;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class CosmosDbUserStorageProvider implements UserStorageProvider,
-        UserLookupProvider, CredentialInputValidator, UserQueryProvider, CredentialInputUpdater, UserRegistrationProvider {
+        UserLookupProvider, CredentialInputValidator, UserQueryProvider, CredentialInputUpdater, UserRegistrationProvider,
+        ImportedUserValidation {
 
     private static final Logger logger = Logger.getLogger(CosmosDbUserStorageProvider.class);
 
+    // Node-wide coalescing of concurrent lookups for the same user (keyed by component and normalized key)
+    private static final SingleFlight<JsonNode> USERNAME_LOOKUPS = new SingleFlight<>();
+    private static final SingleFlight<JsonNode> EMAIL_LOOKUPS = new SingleFlight<>();
+
+    // group ids of the user, kept in the user document so that token issuance needs no extra lookup
+    static final String GROUPS_FIELD = "KeycloakGroups";
+    private static final int MEMBER_BATCH_SIZE = 100;
+
+    // Node-wide cache of the extra collection's role values (componentId|username -> values), least recently used evicted
+    private static final int ROLE_CACHE_MAX_ENTRIES = 100_000;
+    private static final Map<String, CachedRoles> ROLE_VALUES = LruMap.create(ROLE_CACHE_MAX_ENTRIES);
+
+    private static final class CachedRoles {
+        final List<String> values;
+        final long expiresAt;
+        CachedRoles(List<String> values, long expiresAt) { this.values = values; this.expiresAt = expiresAt; }
+    }
+
     private final KeycloakSession session;
     private final ComponentModel model;
-    private final CosmosClient cosmosClient;
-    private final CosmosContainer usersContainer;
-    private final CosmosContainer usersExtraContainer;
+    private final UserDocumentStore store;
 
-    private final String endpoint;
-    private final String key;
-    private final String databaseName;
-    private final String containerName;
-    private final int keepAliveSeconds;
+    private final CosmosDbConfig config;
+    // users are imported into Keycloak's local store and validated against their _etag
+    private final boolean importMode;
 
-    private final Map<String, JsonNode> userDocCache = new HashMap<>();
+    private final UserDocumentCache userDocCache = new UserDocumentCache();
+    // lowercase usernames served from node cache entries past their TTL in this session
+    private final Set<String> staleUsers = new HashSet<>();
+    // identity map: one adapter per user and session (lowercase username -> adapter), so repeated
+    // resolution returns the same instance together with its memoized roles, groups and credential manager
+    private final Map<String, CosmosDbUserAdapter> sessionUsers = new HashMap<>();
     private final CosmosDbExtraUserOps extraOps;
 
-    public CosmosDbUserStorageProvider(KeycloakSession session, ComponentModel model) {
+    public CosmosDbUserStorageProvider(KeycloakSession session, ComponentModel model, CosmosDbConfig config, UserDocumentStore store) {
         this.session = session;
         this.model = model;
+        this.config = config;
+        this.store = store;
+        this.extraOps = new CosmosDbExtraUserOps(store, logger);
+        this.importMode = config.isImportUsers() && new UserStorageProviderModel(model).isImportEnabled();
 
-        logger.info("Initializing CosmosDbUserStorageProvider (optimized)");
-
-        this.endpoint = model.get(CosmosDbUserStorageProviderFactory.ENDPOINT);
-        this.key = model.get(CosmosDbUserStorageProviderFactory.KEY);
-        this.databaseName = model.get(CosmosDbUserStorageProviderFactory.DATABASE_NAME);
-        this.containerName = model.get(CosmosDbUserStorageProviderFactory.CONTAINER_NAME);
-        String keepAliveCfg = model.get(CosmosDbUserStorageProviderFactory.CLIENT_KEEP_ALIVE_SECONDS, "30");
-        int ka;
-        try { ka = Integer.parseInt(keepAliveCfg); } catch (NumberFormatException e) { ka = 30; }
-        this.keepAliveSeconds = Math.max(0, ka);
-
-        logger.infof("Cosmos DB Config - Endpoint: %s, Database: %s, Container: %s, KeepAlive=%ds", endpoint, databaseName, containerName, keepAliveSeconds);
-
-        this.cosmosClient = CosmosClientManager.acquire(endpoint, key, databaseName, containerName, keepAliveSeconds);
-        CosmosDatabase database = cosmosClient.getDatabase(databaseName);
-        this.usersContainer = database.getContainer(containerName);
-        String usersContainerName = model.get(CosmosDbUserStorageProviderFactory.USERS_CONTAINER_NAME, "Users");
-        this.usersExtraContainer = database.getContainer(usersContainerName);
-        this.extraOps = new CosmosDbExtraUserOps(usersExtraContainer, logger);
-
-        logger.debug("CosmosDbUserStorageProvider successfully initialized (shared client)");
+        logger.debugf("CosmosDbUserStorageProvider initialized (%s)", config);
     }
 
     @Override
     public void close() {
-        logger.debug("Closing CosmosDbUserStorageProvider (releasing shared client)");
-        CosmosClientManager.release(endpoint, key, databaseName, containerName, cosmosClient);
+        logger.debug("Closing CosmosDbUserStorageProvider (releasing store)");
+        store.close();
         userDocCache.clear();
+        sessionUsers.clear();
     }
 
     private boolean isUserActive(JsonNode userDoc) {
@@ -82,47 +91,113 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
     }
 
     private JsonNode cacheAndReturn(String username, JsonNode doc) {
-        if (username != null && doc != null) {
-            userDocCache.put(username, doc);
-        }
+        userDocCache.put(username, doc);
         return doc;
     }
 
+    // key of the user in node-wide caches (componentId|lowercase username)
+    private String nodeKey(String username) {
+        return model.getId() + "|" + username.toLowerCase(Locale.ROOT);
+    }
+
     private JsonNode findActiveUserByUsername(String username) {
         if (username == null) return null;
         String raw = username.trim();
         String normalized = raw.toLowerCase(Locale.ROOT);
         JsonNode cached = userDocCache.get(raw);
-        if (cached == null && !raw.equals(normalized)) {
-            cached = userDocCache.get(normalized);
-        }
         if (cached != null) {
+            CosmosDbMetrics.cacheHit("session");
             return cached;
         }
+        CosmosDbMetrics.cacheMiss("session");
 
-        try {
-            String query = "SELECT c.Header, c.Item FROM c WHERE LOWER(c.Header.UserAdId) = @uname";
-            SqlQuerySpec querySpec = new SqlQuerySpec(query, Collections.singletonList(new SqlParameter("@uname", normalized)));
-            CosmosPagedIterable<JsonNode> results = usersContainer.queryItems(querySpec, new CosmosQueryRequestOptions(), JsonNode.class);
-            for (JsonNode userDoc : results) {
-                if (isUserActive(userDoc)) {
-                    JsonNode header = userDoc.get("Header");
-                    String storedName = (header != null && header.has("UserAdId")) ? header.get("UserAdId").asText() : raw;
-                    userDocCache.put(storedName, userDoc);
-                    userDocCache.put(normalized, userDoc);
-                    if (!storedName.equals(raw)) {
-                        userDocCache.put(raw, userDoc);
-                    }
-                    return userDoc;
-                }
+        NodeUserCache.Hit hit = NodeUserCache.get(nodeKey(normalized), config, () -> refreshActiveUser(normalized));
+        JsonNode userDoc;
+        if (hit == null) {
+            userDoc = loadActiveUser(raw, normalized);
+        } else {
+            userDoc = hit.doc;
+            if (hit.stale) {
+                staleUsers.add(normalized);
+            }
+        }
+        cacheLookup(raw, userDoc);
+        return userDoc;
+    }
+
+    private JsonNode loadActiveUser(String raw, String normalized) {
+        JsonNode userDoc = shared(USERNAME_LOOKUPS, normalized, () -> {
+            try {
+                return firstActive(store.findByUsername(normalized));
+            } catch (Exception e) {
+                logger.error("Error querying user by username (case-insensitive): " + raw, e);
+                throw new ModelException("Error querying user by username", e);
+            }
+        });
+        NodeUserCache.put(nodeKey(normalized), userDoc, config);
+        return userDoc;
+    }
+
+    private void cacheLookup(String raw, JsonNode userDoc) {
+        if (userDoc == null) return;
+        JsonNode header = userDoc.get("Header");
+        String storedName = (header != null && header.has("UserAdId")) ? header.get("UserAdId").asText() : raw;
+        userDocCache.put(storedName, userDoc);
+        if (!storedName.equals(raw)) {
+            userDocCache.put(raw, userDoc);
+        }
+    }
+
+    private JsonNode firstActive(List<JsonNode> docs) {
+        for (JsonNode doc : docs) {
+            if (isUserActive(doc)) {
+                return doc;
             }
-        } catch (Exception e) {
-            logger.error("Error querying user by username (case-insensitive): " + raw, e);
-            throw new ModelException("Error querying user by username", e);
         }
         return null;
     }
 
+    // background refresh of a node cache entry; runs after this session (and its store) may be closed
+    private JsonNode refreshActiveUser(String normalized) {
+        UserDocumentStore own = CosmosDbUserStorageProviderFactory.openStore(model, config);
+        try {
+            return firstActive(own.findByUsername(normalized));
+        } finally {
+            own.close();
+        }
+    }
+
+    /**
+     * Run the lookup once per node for concurrent callers with the same key. Callers that joined
+     * get their own copy, because documents are modified in place by the update helpers.
+     */
+    private JsonNode shared(SingleFlight<JsonNode> lookups, String key, java.util.function.Supplier<JsonNode> loader) {
+        SingleFlight.Result<JsonNode> result = lookups.execute(model.getId() + "|" + key, loader);
+        if (result.leader) {
+            return result.value;
+        }
+        CosmosDbMetrics.cacheHit("single_flight");
+        return result.value == null ? null : result.value.deepCopy();
+    }
+
+    private void upsertUser(JsonNode userDoc) {
+        if (config.isSearchFieldsMaintained()) {
+            SearchFields.apply(userDoc);
+        }
+        store.upsertUser(userDoc);
+    }
+
+    private void createUser(com.fasterxml.jackson.databind.node.ObjectNode userDoc) {
+        if (config.isSearchFieldsMaintained()) {
+            SearchFields.apply(userDoc);
+        }
+        store.createUser(userDoc);
+    }
+
+    private JsonNode loadFullDocument(String username) {
+        return store.loadFullDocument(username);
+    }
+
     @Override
     public UserModel getUserById(RealmModel realm, String id) {
         logger.debugf("getUserById called with id: %s", id);
@@ -137,7 +212,7 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
         JsonNode userDoc = findActiveUserByUsername(username);
         if (userDoc != null) {
             logger.debugf("Active user %s found (cached=%s)", username, userDocCache.containsKey(username));
-            return new CosmosDbUserAdapter(session, realm, model, userDoc, this);
+            return toUser(realm, userDoc);
         }
         logger.debugf("No active user found for %s", username);
         return null;
@@ -146,22 +221,28 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
     @Override
     public UserModel getUserByEmail(RealmModel realm, String email) {
         logger.debugf("getUserByEmail called with email: %s", email);
-        try {
-            String query = "SELECT c.Header, c.Item FROM c WHERE c.Item.Email = @email OR c.Item.email = @email";
-            SqlQuerySpec querySpec = new SqlQuerySpec(query, Collections.singletonList(new SqlParameter("@email", email)));
-            CosmosPagedIterable<JsonNode> results = usersContainer.queryItems(querySpec, new CosmosQueryRequestOptions(), JsonNode.class);
-            for (JsonNode userDoc : results) {
-                if (isUserActive(userDoc)) {
-                    String username = userDoc.has("Header") && userDoc.get("Header").has("UserAdId") ? userDoc.get("Header").get("UserAdId").asText() : null;
-                    cacheAndReturn(username, userDoc);
-                    return new CosmosDbUserAdapter(session, realm, model, userDoc, this);
+        if (email == null) return null;
+        // emails are case-insensitive in Keycloak: differently cased lookups of one address share a load
+        JsonNode userDoc = shared(EMAIL_LOOKUPS, email.toLowerCase(Locale.ROOT), () -> {
+            try {
+                List<JsonNode> results = store.findByEmail(email);
+                for (JsonNode doc : results) {
+                    if (isUserActive(doc)) {
+                        return doc;
+                    }
                 }
+                return null;
+            } catch (Exception e) {
+                logger.error("Error fetching user by email: " + email, e);
+                throw new ModelException("Error fetching user by email", e);
             }
-        } catch (Exception e) {
-            logger.error("Error fetching user by email: " + email, e);
-            throw new ModelException("Error fetching user by email", e);
+        });
+        if (userDoc == null) {
+            return null;
         }
-        return null;
+        String username = userDoc.has("Header") && userDoc.get("Header").has("UserAdId") ? userDoc.get("Header").get("UserAdId").asText() : null;
+        cacheAndReturn(username, userDoc);
+        return toUser(realm, userDoc);
     }
 
     @Override
@@ -196,6 +277,16 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
         }
 
         JsonNode userDoc = findActiveUserByUsername(user.getUsername());
+        String normalized = user.getUsername().trim().toLowerCase(Locale.ROOT);
+        if (userDoc != null && staleUsers.remove(normalized)) {
+            // served from the node cache past its TTL: the password may have changed or the user been
+            // deactivated on another node, so it is checked against Cosmos DB (failing like without the cache)
+            userDoc = loadActiveUser(user.getUsername().trim(), normalized);
+            if (userDoc == null) {
+                userDocCache.remove(user.getUsername());
+            }
+            cacheLookup(user.getUsername().trim(), userDoc);
+        }
         if (userDoc == null) {
             logger.debugf("User document not found or inactive for %s", user.getUsername());
             return false;
@@ -216,49 +307,23 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
     @Override
     public int getUsersCount(RealmModel realm) {
         try {
-            String query = "SELECT VALUE COUNT(1) FROM c";
-            CosmosPagedIterable<Integer> results = usersContainer.queryItems(query, new CosmosQueryRequestOptions(), Integer.class);
-            for (Integer count : results) {
-                return count;
-            }
+            return store.count();
         } catch (Exception e) {
             logger.error("Error getting users count", e);
             throw new ModelException("Error getting users count", e);
         }
-        return 0;
     }
 
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, Map<String, String> params, Integer firstResult, Integer maxResults) {
-        logger.info("SEARCH FOR USER STREAM CALLED, PARAMS: " + params);
+        logger.debugf("searchForUserStream called with params: %s", params);
         List<UserModel> users = new ArrayList<>();
         try {
-            StringBuilder queryBuilder = new StringBuilder("SELECT c.Header, c.Item FROM c");
-            List<SqlParameter> parameters = new ArrayList<>();
-            String search = null;
-            for (Map.Entry<String, String> entry : params.entrySet()) {
-                if (entry.getKey().toLowerCase().contains("search")) {
-                    search = entry.getValue();
-                    break;
-                }
-            }
-            // Only add WHERE if search is not "*" and not empty
-            if (search != null && !search.isEmpty() && !search.equals("*")) {
-                queryBuilder.append(" WHERE (CONTAINS(LOWER(c.Header.UserAdId), @search) OR CONTAINS(LOWER(c.Item.Email), @search) OR CONTAINS(LOWER(c.Item.email), @search))");
-                parameters.add(new SqlParameter("@search", search.toLowerCase()));
-            }
-            if (firstResult != null && maxResults != null) {
-                queryBuilder.append(" OFFSET @offset LIMIT @limit");
-                parameters.add(new SqlParameter("@offset", firstResult));
-                parameters.add(new SqlParameter("@limit", maxResults));
-            }
-            SqlQuerySpec querySpec = new SqlQuerySpec(queryBuilder.toString(), parameters);
-            CosmosPagedIterable<JsonNode> results = usersContainer.queryItems(querySpec, new CosmosQueryRequestOptions(), JsonNode.class);
-            for (JsonNode userDoc : results) {
-                String username = userDoc.has("Header") && userDoc.get("Header").has("UserAdId") ? userDoc.get("Header").get("UserAdId").asText() : null;
-                cacheAndReturn(username, userDoc);
-                users.add(new CosmosDbUserAdapter(session, realm, model, userDoc, this));
-            }
+            UserSearchQuery query = UserSearchQuery.fromParams(params, config.getSearchableAttributes());
+            if (query == null) return Stream.empty();
+            // "*" and empty search list all users
+            List<JsonNode> results = store.search(query, firstResult, maxResults);
+            toUsers(realm, results.stream()).forEach(users::add);
         } catch (Exception e) {
             logger.error("Error searching users", e);
             throw new ModelException("Error searching users", e);
@@ -268,29 +333,409 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
 
     @Override
     public Stream<UserModel> getGroupMembersStream(RealmModel realm, GroupModel group, Integer firstResult, Integer maxResults) {
-        return Stream.empty();
+        if (!config.isGroupsEnabled() || importMode) {
+            // imported users keep their memberships in Keycloak's local store
+            return Stream.empty();
+        }
+        // member names are read page by page from the group's partition, users are loaded per batch of names
+        return usersByNames(realm, store.findGroupMembers(group.getId(), firstResult, maxResults).iterator());
     }
 
     @Override
-    public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realm, String attrName, String attrValue) {
-        List<UserModel> users = new ArrayList<>();
+    public Stream<UserModel> getRoleMembersStream(RealmModel realm, RoleModel role, Integer firstResult, Integer maxResults) {
+        RoleMapping mapping = config.getRoleMapping();
+        if (!mapping.isEnabled() || importMode) {
+            return Stream.empty();
+        }
+        List<String> values = mapping.valuesFor(realm, role);
+        if (values.isEmpty()) {
+            return Stream.empty();
+        }
+        // logins come from the extra container; the batch lookup filters on the main container's
+        // partition key, so each batch only touches the partitions of its users
+        return usersByNames(realm, store.findLoginsByRoles(values, firstResult, maxResults).iterator());
+    }
+
+    private Stream<UserModel> usersByNames(RealmModel realm, Iterator<String> members) {
+        Iterator<List<String>> batches = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return members.hasNext();
+            }
+
+            @Override
+            public List<String> next() {
+                List<String> batch = new ArrayList<>(MEMBER_BATCH_SIZE);
+                while (members.hasNext() && batch.size() < MEMBER_BATCH_SIZE) {
+                    batch.add(members.next());
+                }
+                return batch;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(batches, Spliterator.ORDERED), false)
+                .flatMap(batch -> getUsersByUsernames(realm, batch));
+    }
+
+    /**
+     * Resolve many users by id at once (ids as returned by {@link CosmosDbUserAdapter#getId()}).
+     */
+    public Stream<UserModel> getUsersByIds(RealmModel realm, Collection<String> ids) {
+        List<String> usernames = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            usernames.add(new StorageId(id).getExternalId());
+        }
+        return getUsersByUsernames(realm, usernames);
+    }
+
+    /**
+     * Resolve many active users at once, in the given order. Users already loaded in this session are
+     * served locally, the rest with one query on the (case-folded) username, which also resolves their
+     * document ids, so a node that has not seen the users before batches the same way.
+     */
+    public Stream<UserModel> getUsersByUsernames(RealmModel realm, List<String> usernames) {
+        Map<String, JsonNode> found = new HashMap<>();
+        List<String> unknown = new ArrayList<>();
+        for (String username : usernames) {
+            if (username == null) continue;
+            JsonNode cached = userDocCache.get(username);
+            if (cached != null) {
+                CosmosDbMetrics.cacheHit("session");
+                found.put(username.toLowerCase(Locale.ROOT), cached);
+                continue;
+            }
+            CosmosDbMetrics.cacheMiss("session");
+            unknown.add(username);
+        }
         try {
-            String query = "SELECT c.Header, c.Item FROM c WHERE c.Item." + attrName + " = @attrValue AND c.Item.Active = 1";
-            SqlQuerySpec querySpec = new SqlQuerySpec(query, Collections.singletonList(new SqlParameter("@attrValue", attrValue)));
-            CosmosPagedIterable<JsonNode> results = usersContainer.queryItems(querySpec, new CosmosQueryRequestOptions(), JsonNode.class);
-            for (JsonNode userDoc : results) {
-                if (isUserActive(userDoc)) {
-                    String username = userDoc.has("Header") && userDoc.get("Header").has("UserAdId") ? userDoc.get("Header").get("UserAdId").asText() : null;
-                    cacheAndReturn(username, userDoc);
-                    users.add(new CosmosDbUserAdapter(session, realm, model, userDoc, this));
+            if (!unknown.isEmpty()) {
+                for (JsonNode doc : store.findActiveByUsernames(unknown)) {
+                    String username = usernameOf(doc);
+                    if (username != null) {
+                        found.put(username.toLowerCase(Locale.ROOT), cacheAndReturn(username, doc));
+                    }
                 }
             }
+        } catch (Exception e) {
+            logger.error("Error loading users in batch", e);
+            throw new ModelException("Error loading users from Cosmos DB", e);
+        }
+        List<JsonNode> ordered = new ArrayList<>(found.size());
+        for (String username : usernames) {
+            JsonNode doc = username == null ? null : found.remove(username.toLowerCase(Locale.ROOT));
+            if (doc != null) ordered.add(doc);
+        }
+        return toUsers(realm, ordered.stream());
+    }
+
+    /**
+     * Users of query results. In import mode users already imported are left out (Keycloak finds them
+     * in its local store) and the others are imported.
+     */
+    private Stream<UserModel> toUsers(RealmModel realm, Stream<JsonNode> userDocs) {
+        return userDocs.map(userDoc -> {
+            String username = usernameOf(userDoc);
+            if (importMode && username != null && UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, username) != null) {
+                return null;
+            }
+            cacheAndReturn(username, userDoc);
+            return toUser(realm, userDoc);
+        }).filter(Objects::nonNull);
+    }
+
+    private UserModel toUser(RealmModel realm, JsonNode userDoc) {
+        if (importMode) {
+            return importUser(realm, userDoc);
+        }
+        String username = usernameOf(userDoc);
+        if (username == null) {
+            return new CosmosDbUserAdapter(session, realm, model, userDoc, this);
+        }
+        CosmosDbUserAdapter user = sessionUsers.get(username.toLowerCase(Locale.ROOT));
+        if (user != null) {
+            CosmosDbMetrics.cacheHit("identity");
+            return user;
+        }
+        CosmosDbMetrics.cacheMiss("identity");
+        user = new CosmosDbUserAdapter(session, realm, model, userDoc, this);
+        sessionUsers.put(username.toLowerCase(Locale.ROOT), user);
+        return user;
+    }
+
+    // the document was written or removed: later resolution in this session builds a new adapter from it
+    private void documentChanged(String username, JsonNode userDoc) {
+        if (username == null) return;
+        if (userDoc == null) {
+            userDocCache.remove(username);
+        } else {
+            userDocCache.put(username, userDoc);
+        }
+        sessionUsers.remove(username.toLowerCase(Locale.ROOT));
+        NodeUserCache.remove(nodeKey(username));
+    }
+
+    /**
+     * @return id of a whole document or docId of a lookup result
+     */
+    static String documentId(JsonNode userDoc) {
+        JsonNode id = userDoc.hasNonNull("id") ? userDoc.get("id") : userDoc.get("docId");
+        return id == null || id.isNull() ? null : id.asText();
+    }
+
+    private static String usernameOf(JsonNode userDoc) {
+        JsonNode header = userDoc.get("Header");
+        return header != null && header.hasNonNull("UserAdId") ? header.get("UserAdId").asText() : null;
+    }
+
+    /**
+     * Import the user into Keycloak's local store, or refresh the local copy when the document changed.
+     * @return imported user, or null when a local user of the same name belongs elsewhere
+     */
+    private UserModel importUser(RealmModel realm, JsonNode userDoc) {
+        String username = usernameOf(userDoc);
+        UserProvider localStorage = UserStoragePrivateUtil.userLocalStorage(session);
+        UserModel local = localStorage.getUserByUsername(realm, username);
+        if (local == null) {
+            local = localStorage.addUser(realm, username);
+            local.setFederationLink(model.getId());
+            CosmosDbImportedUser.copy(userDoc, local);
+            logger.debugf("User %s imported into Keycloak", username);
+        } else if (!model.getId().equals(local.getFederationLink())) {
+            logger.warnf("Local user %s is not linked to %s, not imported", username, model.getName());
+            return null;
+        } else if (!CosmosDbImportedUser.isCurrent(local, userDoc)) {
+            CosmosDbImportedUser.copy(userDoc, local);
+        }
+        return new CosmosDbImportedUser(local, this);
+    }
+
+    /**
+     * Check an imported user with a point read conditional on the stored _etag; an unchanged document
+     * costs a 304 without payload and the local copy is served as is.
+     * @return the user, or null when it was deleted or deactivated in Cosmos DB (Keycloak then removes the copy)
+     */
+    @Override
+    public UserModel validate(RealmModel realm, UserModel local) {
+        if (!importMode) {
+            // import mode was switched off: drop the copy, the user is served from Cosmos DB again
+            return null;
+        }
+        String id = local.getFirstAttribute(CosmosDbImportedUser.COSMOS_ID);
+        String partitionKey = local.getFirstAttribute(CosmosDbImportedUser.COSMOS_USER_AD_ID);
+        if (id == null || partitionKey == null) {
+            return null;
+        }
+        try {
+            JsonNode userDoc = store.readIfChanged(id, partitionKey, local.getFirstAttribute(CosmosDbImportedUser.COSMOS_ETAG));
+            if (userDoc == null) {
+                CosmosDbMetrics.cacheHit("import");
+                return new CosmosDbImportedUser(local, this);
+            }
+            CosmosDbMetrics.cacheMiss("import");
+            if (!isUserActive(userDoc)) {
+                return null;
+            }
+            CosmosDbImportedUser.copy(userDoc, local);
+            return new CosmosDbImportedUser(local, this);
+        } catch (CosmosException e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            logger.error("Error validating imported user " + local.getUsername(), e);
+            throw new ModelException("Error validating imported user against Cosmos DB", e);
+        }
+    }
+
+    public boolean isGroupsEnabled() {
+        return config.isGroupsEnabled();
+    }
+
+    /**
+     * @return Keycloak roles mapped from the role field of the user's extra collection document
+     */
+    public Set<RoleModel> getMappedRoles(RealmModel realm, String username) {
+        RoleMapping mapping = config.getRoleMapping();
+        if (!mapping.isEnabled() || username == null) {
+            return Collections.emptySet();
+        }
+        Map<String, String> roleIds = mapping.resolve(realm);
+        Set<RoleModel> roles = new HashSet<>();
+        for (String value : roleValues(username)) {
+            String roleId = roleIds.get(value);
+            RoleModel role = roleId == null ? null : realm.getRoleById(roleId);
+            if (role != null) roles.add(role);
+        }
+        return roles;
+    }
+
+    private String roleKey(String username) {
+        return model.getId() + "|" + username.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Apply user documents read from the change feed: evict each user from this node's caches and from
+     * Keycloak's user cache, so the next access reads the current document. In import mode the local
+     * copies are imported, refreshed or removed.
+     */
+    public void applyChanges(RealmModel realm, List<JsonNode> docs, SynchronizationResult result) {
+        UserCache userCache = session.getProvider(UserCache.class);
+        for (JsonNode doc : docs) {
+            String username = usernameOf(doc);
+            if (username == null) {
+                logger.warnf("Change feed document %s has no Header.UserAdId, skipped", doc.path("id").asText());
+                result.increaseFailed();
+                continue;
+            }
+            try {
+                documentChanged(username, null);
+                ROLE_VALUES.remove(roleKey(username));
+                backfillSearchFields(doc, username);
+                if (importMode) {
+                    applyImportedChange(realm, doc, username, userCache, result);
+                    continue;
+                }
+                if (userCache != null) {
+                    userCache.evict(realm, new CosmosDbUserAdapter(session, realm, model, doc, this));
+                }
+                if (isUserActive(doc)) {
+                    result.increaseUpdated();
+                } else {
+                    result.increaseRemoved();
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Could not apply change of user " + username, e);
+                result.increaseFailed();
+            }
+        }
+    }
+
+    // documents written before the copies were maintained, or by other applications
+    private void backfillSearchFields(JsonNode doc, String username) {
+        if (!config.isSearchFieldsMaintained() || !doc.hasNonNull("id") || SearchFields.isCurrent(doc)) {
+            return;
+        }
+        Map<String, Object> fields = new HashMap<>();
+        fields.put(SearchFields.FIELD, SearchFields.compute(doc));
+        store.patchUser(doc.get("id").asText(), username, fields);
+        logger.debugf("Search fields of user %s backfilled", username);
+    }
+
+    private void applyImportedChange(RealmModel realm, JsonNode doc, String username, UserCache userCache, SynchronizationResult result) {
+        UserProvider localStorage = UserStoragePrivateUtil.userLocalStorage(session);
+        UserModel local = localStorage.getUserByUsername(realm, username);
+        if (local != null && !model.getId().equals(local.getFederationLink())) {
+            logger.warnf("Local user %s is not linked to %s, change not applied", username, model.getName());
+            result.increaseFailed();
+            return;
+        }
+        if (local != null && userCache != null) {
+            userCache.evict(realm, local);
+        }
+        if (!isUserActive(doc)) {
+            if (local != null) {
+                localStorage.removeUser(realm, local);
+                result.increaseRemoved();
+            }
+        } else if (local == null) {
+            importUser(realm, doc);
+            result.increaseAdded();
+        } else if (!CosmosDbImportedUser.isCurrent(local, doc)) {
+            CosmosDbImportedUser.copy(doc, local);
+            result.increaseUpdated();
+        }
+    }
+
+    private List<String> roleValues(String username) {
+        String key = roleKey(username);
+        long now = System.currentTimeMillis();
+        CachedRoles cached = ROLE_VALUES.get(key);
+        if (cached != null && cached.expiresAt > now) {
+            CosmosDbMetrics.cacheHit("role");
+            return cached.values;
+        }
+        CosmosDbMetrics.cacheMiss("role");
+        List<String> values = new ArrayList<>();
+        try {
+            for (JsonNode doc : store.findExtraByLogin(username)) {
+                JsonNode role = doc.get("role");
+                if (role == null) continue;
+                if (role.isArray()) {
+                    role.forEach(r -> values.add(r.asText()));
+                } else {
+                    values.add(role.asText());
+                }
+                break;
+            }
+        } catch (Exception e) {
+            logger.error("Error reading role of user " + username, e);
+            throw new ModelException("Error reading role of user from Cosmos DB", e);
+        }
+        ROLE_VALUES.put(key, new CachedRoles(values, now + config.getRoleCacheSeconds() * 1000L));
+        return values;
+    }
+
+    /**
+     * Add or remove the group in the user's Item.KeycloakGroups and in the group's membership partition.
+     */
+    public void updateGroupMembership(String username, String groupId, boolean member) {
+        try {
+            JsonNode userDoc = findActiveUserByUsername(username);
+            if (userDoc == null || !userDoc.has("id")) {
+                JsonNode full = loadFullDocument(username);
+                if (full != null) userDoc = full;
+            }
+            if (userDoc == null || !userDoc.has("id") || !(userDoc.get("Item") instanceof com.fasterxml.jackson.databind.node.ObjectNode)) {
+                logger.warnf("updateGroupMembership: user doc missing, without id or Item for %s", username);
+                throw new ModelException("User document not found for group membership update");
+            }
+            String storedName = userDoc.get("Header").get("UserAdId").asText();
+            com.fasterxml.jackson.databind.node.ObjectNode item = (com.fasterxml.jackson.databind.node.ObjectNode) userDoc.get("Item");
+            com.fasterxml.jackson.databind.node.ArrayNode groups = item.has(GROUPS_FIELD) && item.get(GROUPS_FIELD).isArray()
+                    ? (com.fasterxml.jackson.databind.node.ArrayNode) item.get(GROUPS_FIELD) : item.putArray(GROUPS_FIELD);
+            boolean present = false;
+            for (Iterator<JsonNode> it = groups.elements(); it.hasNext(); ) {
+                if (groupId.equals(it.next().asText())) {
+                    present = true;
+                    if (!member) it.remove();
+                    break;
+                }
+            }
+            if (member == present) {
+                return;
+            }
+            if (member) {
+                groups.add(groupId);
+                store.addGroupMember(groupId, storedName);
+            } else {
+                store.removeGroupMember(groupId, storedName);
+            }
+            upsertUser(userDoc);
+            documentChanged(username, userDoc);
+            logger.debugf("updateGroupMembership: %s %s group %s", username, member ? "joined" : "left", groupId);
+        } catch (ModelException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            logger.error("updateGroupMembership failed for user " + username, ex);
+            throw new ModelException("Error updating group membership in Cosmos DB for user " + username, ex);
+        }
+    }
+
+    @Override
+    public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realm, String attrName, String attrValue) {
+        String path = config.getSearchableAttributes().resolve(attrName);
+        if (path == null) {
+            // Keycloak probes arbitrary attributes (e.g. identity provider links); those are not stored in Cosmos
+            logger.debugf("Attribute %s is not searchable in Cosmos DB, ignoring search", attrName);
+            return Stream.empty();
+        }
+        if (attrValue == null) {
+            return Stream.empty();
+        }
+        try {
+            return toUsers(realm, store.findActiveByAttribute(path, attrValue));
         } catch (Exception e) {
             logger.error("Error searching by attribute: " + attrName + " = " + attrValue, e);
             throw new ModelException("Error searching users by attribute", e);
         }
-
-        return users.stream();
     }
 
     @Override
@@ -312,14 +757,9 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
             }
 
             if (!userDoc.has("id")) {
-                String query = "SELECT * FROM c WHERE LOWER(c.Header.UserAdId) = @uname";
-                SqlQuerySpec querySpec = new SqlQuerySpec(query, Collections.singletonList(new SqlParameter("@uname", user.getUsername().toLowerCase(Locale.ROOT))));
-                CosmosPagedIterable<JsonNode> results = usersContainer.queryItems(querySpec, new CosmosQueryRequestOptions(), JsonNode.class);
-                for (JsonNode fullDoc : results) {
-                    if (fullDoc.has("id")) {
-                        userDoc = fullDoc;
-                        break;
-                    }
+                JsonNode fullDoc = loadFullDocument(user.getUsername());
+                if (fullDoc != null && fullDoc.has("id")) {
+                    userDoc = fullDoc;
                 }
             }
             if (!userDoc.has("id")) {
@@ -332,10 +772,9 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
                 throw new ModelException("User document missing 'Item' section");
             }
             ((com.fasterxml.jackson.databind.node.ObjectNode) item).put("Password", newPassword);
-            usersContainer.upsertItem(userDoc);
+            upsertUser(userDoc);
             logger.infof("Password updated in Cosmos DB for user %s", user.getUsername());
-            userDocCache.put(user.getUsername(), userDoc);
-            userDocCache.put(user.getUsername().toLowerCase(Locale.ROOT), userDoc);
+            documentChanged(user.getUsername(), userDoc);
             extraOps.updateCredential(user.getUsername(), newPassword);
             return true;
         } catch (Exception e) {
@@ -359,7 +798,7 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
         try {
             String documentId = java.util.UUID.randomUUID().toString();
 
-            logger.infof("=== DEBUG: addUser called for: %s ===", username);
+            logger.debugf("addUser called for: %s", username);
 
             Map<String, Object> header = new HashMap<>();
             header.put("UserAdId", username);
@@ -411,11 +850,11 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
             item.put("PasswordChange", 0);
 
 
-            usersContainer.createItem(userDoc);
+            com.fasterxml.jackson.databind.node.ObjectNode asJson = new ObjectMapper().convertValue(userDoc, com.fasterxml.jackson.databind.node.ObjectNode.class);
+            createUser(asJson);
             logger.infof("User %s created (minimal doc)", username);
 
-            JsonNode asJson = new ObjectMapper().convertValue(userDoc, JsonNode.class);
-            return new CosmosDbUserAdapter(session, realm, model, asJson, this);
+            return toUser(realm, asJson);
 
         } catch (Exception e) {
             logger.error("Failed to create user: " + username, e);
@@ -436,10 +875,8 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
             }
             // ensure full doc with id
             if (!userDoc.has("id")) {
-                String q = "SELECT * FROM c WHERE LOWER(c.Header.UserAdId) = @uname";
-                SqlQuerySpec spec = new SqlQuerySpec(q, Collections.singletonList(new SqlParameter("@uname", username.toLowerCase(Locale.ROOT))));
-                CosmosPagedIterable<JsonNode> res = usersContainer.queryItems(spec, new CosmosQueryRequestOptions(), JsonNode.class);
-                for (JsonNode full : res) { userDoc = full; break; }
+                JsonNode full = loadFullDocument(username);
+                if (full != null) userDoc = full;
             }
             if (!userDoc.has("id")) {
                 logger.warnf("updateUserNames: missing id for user %s", username);
@@ -457,10 +894,9 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
             if (lastNameOrNull != null && !lastNameOrNull.isBlank()) {
                 itemObj.put("Surename", lastNameOrNull);
             }
-            usersContainer.upsertItem(userDoc);
+            upsertUser(userDoc);
             // refresh cache
-            userDocCache.put(username, userDoc);
-            userDocCache.put(username.toLowerCase(Locale.ROOT), userDoc);
+            documentChanged(username, userDoc);
             logger.debugf("updateUserNames: persisted for %s (firstName set=%s, lastName set=%s)", username,
                     firstNameOrNull != null, lastNameOrNull != null);
             // Update extra collection as well
@@ -477,20 +913,15 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
             JsonNode userDoc = findActiveUserByUsername(username);
             if (userDoc == null) {
                 // Fallback for inactive users: load full doc by username
-                String q = "SELECT * FROM c WHERE LOWER(c.Header.UserAdId) = @uname";
-                SqlQuerySpec spec = new SqlQuerySpec(q, Collections.singletonList(new SqlParameter("@uname", username.toLowerCase(Locale.ROOT))));
-                CosmosPagedIterable<JsonNode> res = usersContainer.queryItems(spec, new CosmosQueryRequestOptions(), JsonNode.class);
-                for (JsonNode full : res) { userDoc = full; break; }
+                userDoc = loadFullDocument(username);
                 if (userDoc == null) {
                     logger.infof("updateEmail: user not found (even fallback): %s", username);
                     return;
                 }
             }
             if (!userDoc.has("id")) {
-                String q = "SELECT * FROM c WHERE LOWER(c.Header.UserAdId) = @uname";
-                SqlQuerySpec spec = new SqlQuerySpec(q, Collections.singletonList(new SqlParameter("@uname", username.toLowerCase(Locale.ROOT))));
-                CosmosPagedIterable<JsonNode> res = usersContainer.queryItems(spec, new CosmosQueryRequestOptions(), JsonNode.class);
-                for (JsonNode full : res) { userDoc = full; break; }
+                JsonNode full = loadFullDocument(username);
+                if (full != null) userDoc = full;
             }
             if (!userDoc.has("id")) {
                 logger.infof("updateEmail: missing id for user %s", username);
@@ -509,9 +940,8 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
                 itemObj.put("Email", email);
                 itemObj.remove("email"); // remove lowercase variant to enforce single key
             }
-            usersContainer.upsertItem(userDoc);
-            userDocCache.put(username, userDoc);
-            userDocCache.put(username.toLowerCase(Locale.ROOT), userDoc);
+            upsertUser(userDoc);
+            documentChanged(username, userDoc);
             logger.infof("updateEmail: persisted for %s -> %s", username, email);
             // Update extra collection as well
             extraOps.updateEmail(username, email);
@@ -526,10 +956,11 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
             JsonNode userDoc = findActiveUserByUsername(username);
             if (userDoc == null) {
                 // If user is not returned by findActiveUserByUsername because currently inactive, try by exact username
-                String q = "SELECT * FROM c WHERE LOWER(c.Header.UserAdId) = @uname";
-                SqlQuerySpec spec = new SqlQuerySpec(q, Collections.singletonList(new SqlParameter("@uname", username.toLowerCase(Locale.ROOT))));
-                CosmosPagedIterable<JsonNode> res = usersContainer.queryItems(spec, new CosmosQueryRequestOptions(), JsonNode.class);
-                for (JsonNode full : res) { userDoc = full; break; }
+                userDoc = loadFullDocument(username);
+            } else if (!userDoc.has("id")) {
+                // lookup projection: the write needs the whole document
+                JsonNode full = loadFullDocument(username);
+                if (full != null) userDoc = full;
             }
             if (userDoc == null || !userDoc.has("id")) {
                 logger.warnf("updateActive: user doc missing or no id for %s", username);
@@ -542,9 +973,8 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
             }
             com.fasterxml.jackson.databind.node.ObjectNode itemObj = (com.fasterxml.jackson.databind.node.ObjectNode) item;
             itemObj.put("Active", enabled ? 1 : 0);
-            usersContainer.upsertItem(userDoc);
-            userDocCache.put(username, userDoc);
-            userDocCache.put(username.toLowerCase(Locale.ROOT), userDoc);
+            upsertUser(userDoc);
+            documentChanged(username, userDoc);
             logger.debugf("updateActive: persisted for %s -> %s", username, enabled);
         } catch (Exception ex) {
             logger.error("updateActive failed for user " + username, ex);
@@ -554,7 +984,7 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
 
     // Update Header attributes like CompanyId and UserLWPId
     public void updateHeaderAttributes(String username, String companyIdOrNull, String userLWPIdOrNull) {
-        logger.info("COMPANY ID FIRMA ZACATEK: " + companyIdOrNull);
+        logger.debugf("updateHeaderAttributes called for %s: companyId=%s, userLWPId=%s", username, companyIdOrNull, userLWPIdOrNull);
         if ((companyIdOrNull == null || companyIdOrNull.isBlank()) && (userLWPIdOrNull == null || userLWPIdOrNull.isBlank())) {
             return;
         }
@@ -565,10 +995,8 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
                 return;
             }
             if (!userDoc.has("id")) {
-                String q = "SELECT * FROM c WHERE LOWER(c.Header.UserAdId) = @uname";
-                SqlQuerySpec spec = new SqlQuerySpec(q, Collections.singletonList(new SqlParameter("@uname", username.toLowerCase(Locale.ROOT))));
-                CosmosPagedIterable<JsonNode> res = usersContainer.queryItems(spec, new CosmosQueryRequestOptions(), JsonNode.class);
-                for (JsonNode full : res) { userDoc = full; break; }
+                JsonNode full = loadFullDocument(username);
+                if (full != null) userDoc = full;
             }
             if (!userDoc.has("id")) {
                 logger.warnf("updateHeaderAttributes: missing id for user %s", username);
@@ -586,9 +1014,8 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
             if (userLWPIdOrNull != null && !userLWPIdOrNull.isBlank()) {
                 headerObj.put("UserLWPId", userLWPIdOrNull);
             }
-            usersContainer.upsertItem(userDoc);
-            userDocCache.put(username, userDoc);
-            userDocCache.put(username.toLowerCase(Locale.ROOT), userDoc);
+            upsertUser(userDoc);
+            documentChanged(username, userDoc);
             logger.debugf("updateHeaderAttributes: persisted for %s (CompanyId set=%s, UserLWPId set=%s)", username,
                     companyIdOrNull != null, userLWPIdOrNull != null);
             // Update extra collection as well
@@ -608,17 +1035,20 @@ public class CosmosDbUserStorageProvider implements UserStorageProvider,
             JsonNode userDoc = findActiveUserByUsername(username);
             if (userDoc == null || !userDoc.has("id")) {
                 // Try to load full doc by username if not found
-                String q = "SELECT * FROM c WHERE LOWER(c.Header.UserAdId) = @uname";
-                SqlQuerySpec spec = new SqlQuerySpec(q, Collections.singletonList(new SqlParameter("@uname", username.toLowerCase(Locale.ROOT))));
-                CosmosPagedIterable<JsonNode> res = usersContainer.queryItems(spec, new CosmosQueryRequestOptions(), JsonNode.class);
-                for (JsonNode full : res) { userDoc = full; break; }
+                JsonNode full = loadFullDocument(username);
+                if (full != null) userDoc = full;
             }
             if (userDoc != null && userDoc.has("id")) {
                 String id = userDoc.get("id").asText();
                 String partitionKeyValue = userDoc.get("Header").get("UserAdId").asText();
-                usersContainer.deleteItem(id, new PartitionKey(partitionKeyValue), new CosmosItemRequestOptions());
-                userDocCache.remove(username);
-                userDocCache.remove(username.toLowerCase(Locale.ROOT));
+                JsonNode groups = userDoc.get("Item") != null ? userDoc.get("Item").get(GROUPS_FIELD) : null;
+                if (config.isGroupsEnabled() && groups != null && groups.isArray()) {
+                    for (JsonNode groupId : groups) {
+                        store.removeGroupMember(groupId.asText(), partitionKeyValue);
+                    }
+                }
+                store.deleteUser(id, partitionKeyValue);
+                documentChanged(username, null);
             }
 
             // Remove from extra collection
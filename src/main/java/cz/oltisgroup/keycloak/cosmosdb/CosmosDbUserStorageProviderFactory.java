@@ -1,14 +1,31 @@
 package cz.oltisgroup.keycloak.cosmosdb;
 
+import com.azure.cosmos.CosmosClient;
+import com.azure.cosmos.CosmosDatabase;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class CosmosDbUserStorageProviderFactory implements UserStorageProviderFactory<CosmosDbUserStorageProvider> {
+public class CosmosDbUserStorageProviderFactory implements UserStorageProviderFactory<CosmosDbUserStorageProvider>, ImportSynchronization {
+
+    private static final Logger logger = Logger.getLogger(CosmosDbUserStorageProviderFactory.class);
 
     public static final String PROVIDER_NAME = "cosmosdb-user-provider";
     public static final String ENDPOINT = "endpoint";
@@ -17,10 +34,225 @@ public class CosmosDbUserStorageProviderFactory implements UserStorageProviderFa
     public static final String CONTAINER_NAME = "containerName";
     public static final String CLIENT_KEEP_ALIVE_SECONDS = "clientKeepAliveSeconds";
     public static final String USERS_CONTAINER_NAME = "usersContainerName";
+    public static final String GROUPS_CONTAINER_NAME = "groupsContainerName";
+    public static final String ROLE_MAPPING = "roleMapping";
+    public static final String ROLE_CACHE_SECONDS = "roleCacheSeconds";
+    public static final String SYNC_PARALLELISM = "syncParallelism";
+    public static final String IMPORT_USERS = "importUsers";
+    public static final String SEARCH_FIELDS_MODE = "searchFieldsMode";
+    public static final String SYNC_BATCH_SIZE = "syncBatchSize";
+    public static final String SLOW_OPERATION_LATENCY_MS = "slowOperationLatencyMs";
+    public static final String SLOW_OPERATION_RU = "slowOperationRu";
+    public static final String SLOW_OPERATION_LOG_SIZE = "slowOperationLogSize";
+    public static final String RU_BUDGET_PER_SECOND = "ruBudgetPerSecond";
+    public static final String BACKGROUND_RU_SHARE_PERCENT = "backgroundRuSharePercent";
+    public static final String BACKGROUND_MAX_CONCURRENCY = "backgroundMaxConcurrency";
+    public static final String RU_BUDGET_MAX_WAIT_MS = "ruBudgetMaxWaitMs";
+    public static final String READ_TIMEOUT_MS = "readTimeoutMs";
+    public static final String HEDGE_THRESHOLD_MS = "hedgeThresholdMs";
+    public static final String HEDGE_THRESHOLD_STEP_MS = "hedgeThresholdStepMs";
+    public static final String PREFERRED_REGIONS = "preferredRegions";
+    public static final String EXCLUDED_REGIONS = "excludedRegions";
+    public static final String STORAGE_BACKEND = "storageBackend";
+    public static final String IN_MEMORY_LATENCY_MS = "inMemoryLatencyMs";
+    public static final String IN_MEMORY_THROTTLE_PERCENT = "inMemoryThrottlePercent";
+    public static final String SEARCHABLE_ATTRIBUTES = "searchableAttributes";
+    public static final String INDEXING_POLICY_MODE = "indexingPolicyMode";
+    public static final String INDEX_EXCLUDED_PATHS = "indexExcludedPaths";
+    public static final String QUERY_PROFILES = "queryProfiles";
+    public static final String CONSISTENCY_LEVELS = "consistencyLevels";
+    public static final String REQUEST_PRIORITIES = "requestPriorities";
+    public static final String USER_CACHE_SECONDS = "userCacheSeconds";
+    public static final String USER_CACHE_STALE_SECONDS = "userCacheStaleSeconds";
+    public static final String CIRCUIT_BREAKER_FAILURES = "circuitBreakerFailures";
+    public static final String CIRCUIT_BREAKER_OPEN_SECONDS = "circuitBreakerOpenSeconds";
+
+    // Clients held open by the factory for each configured component (componentId -> pinned client),
+    // so the first login after deploy or reconfiguration does not pay for client creation and connection setup.
+    private final Map<String, WarmClient> warmClients = new ConcurrentHashMap<>();
+
+    private static final class WarmClient {
+        final CosmosDbConfig config;
+        final CosmosClient client;
+        WarmClient(CosmosDbConfig config, CosmosClient client) {
+            this.config = config; this.client = client;
+        }
+    }
 
     @Override
     public CosmosDbUserStorageProvider create(KeycloakSession session, ComponentModel model) {
-        return new CosmosDbUserStorageProvider(session, model);
+        CosmosDbConfig config = CosmosDbConfig.from(model);
+        return new CosmosDbUserStorageProvider(session, model, config, openStore(model, config));
+    }
+
+    static UserDocumentStore openStore(ComponentModel model, CosmosDbConfig config) {
+        return config.isInMemory()
+                ? InMemoryUserDocumentStore.forComponent(model.getId(), config)
+                : new CosmosUserDocumentStore(config);
+    }
+
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        return syncChanges(sessionFactory, realmId, model, true, null);
+    }
+
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        return syncChanges(sessionFactory, realmId, model, false, lastSync);
+    }
+
+    private SynchronizationResult syncChanges(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model,
+                                              boolean full, Date lastSync) {
+        CosmosDbConfig config = CosmosDbConfig.from(model);
+        if (!config.isInMemory() && !config.isComplete()) {
+            logger.warnf("Cosmos DB configuration of %s is incomplete, sync skipped", model.getName());
+            return SynchronizationResult.ignored();
+        }
+        UserDocumentStore store = openStore(model, config);
+        try {
+            SynchronizationResult result = ChangeFeedSync.run(sessionFactory, realmId, model, config, store, full, lastSync);
+            logger.infof("%s sync of %s finished: %s", full ? "Full" : "Changed users", model.getName(), result.getStatus());
+            return result;
+        } finally {
+            store.close();
+        }
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        NodeRegions.configure(config.get(NodeRegions.LOCAL_REGION), config.get(NodeRegions.PREFERRED_REGIONS),
+                config.get(NodeRegions.EXCLUDED_REGIONS));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(factory, session ->
+                    session.realms().getRealmsStream().forEach(realm ->
+                            realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName())
+                                    .filter(c -> PROVIDER_NAME.equals(c.getProviderId()))
+                                    .forEach(this::warmUp)));
+        } catch (Exception ex) {
+            logger.warn("Could not pre-warm Cosmos DB clients at startup; they will be created on first use", ex);
+        }
+    }
+
+    @Override
+    public void onCreate(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        warmUp(model);
+    }
+
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        CosmosDbConfig oldConfig = CosmosDbConfig.from(oldModel);
+        CosmosDbConfig newConfig = CosmosDbConfig.from(newModel);
+        // the mapping or the realm's roles may have changed
+        RoleMapping.invalidate();
+        NodeUserCache.removeComponent(newModel.getId());
+        if (oldConfig.sameConnection(newConfig)) {
+            // searchable attributes or index settings may have changed
+            WarmClient warm = warmClients.get(newModel.getId());
+            if (warm != null) {
+                checkIndexingPolicy(warm.client, newConfig);
+            }
+            return;
+        }
+        logger.infof("Cosmos DB configuration of component %s changed, swapping shared client", newModel.getId());
+        // a feed position of another container means nothing
+        realm.removeAttribute(ChangeFeedSync.checkpointAttribute(newModel.getId()));
+        // pin the new configuration before the old pin is released, so a client of an account both use stays open
+        WarmClient previous = warmClients.remove(newModel.getId());
+        warmUp(newModel);
+        if (previous != null) {
+            release(newModel.getId(), previous);
+        }
+        if (!CosmosClientManager.sameAccount(oldConfig, newConfig)) {
+            CosmosClientManager.retire(oldConfig);
+        }
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        InMemoryUserDocumentStore.removeComponent(model.getId());
+        NodeUserCache.removeComponent(model.getId());
+        RoleMapping.invalidate();
+        realm.removeAttribute(ChangeFeedSync.checkpointAttribute(model.getId()));
+        WarmClient removed = unpin(model.getId());
+        CosmosClientManager.retire(removed != null ? removed.config : CosmosDbConfig.from(model));
+    }
+
+    @Override
+    public void close() {
+        warmClients.keySet().forEach(this::unpin);
+        CosmosClientManager.closeAll();
+    }
+
+    @Override
+    public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel config) throws ComponentValidationException {
+        CosmosDbConfig cosmosConfig = CosmosDbConfig.from(config);
+        List<String> errors = new java.util.ArrayList<>(cosmosConfig.getSearchableAttributes().getErrors());
+        errors.addAll(cosmosConfig.getRoleMapping().getErrors());
+        errors.addAll(cosmosConfig.getQueryProfiles().getErrors());
+        errors.addAll(cosmosConfig.getConsistencyLevels().getErrors());
+        errors.addAll(cosmosConfig.getRequestPriorities().getErrors());
+        errors.addAll(cosmosConfig.getSlowOperationThresholds().getErrors());
+        if (!errors.isEmpty()) {
+            throw new ComponentValidationException(String.join("; ", errors));
+        }
+    }
+
+    private void warmUp(ComponentModel model) {
+        CosmosDbConfig config = CosmosDbConfig.from(model);
+        config.getSearchableAttributes().getErrors().forEach(error ->
+                logger.errorf("Component %s: %s (entry ignored)", model.getId(), error));
+        logger.infof("Component %s searchable attributes: %s", model.getId(), config.getSearchableAttributes().getPaths());
+        config.getQueryProfiles().getErrors().forEach(error ->
+                logger.errorf("Component %s: %s (entry ignored)", model.getId(), error));
+        logger.debugf("Component %s query profiles: %s", model.getId(), config.getQueryProfiles());
+        config.getConsistencyLevels().getErrors().forEach(error ->
+                logger.errorf("Component %s: %s (entry ignored)", model.getId(), error));
+        config.getRequestPriorities().getErrors().forEach(error ->
+                logger.errorf("Component %s: %s (entry ignored)", model.getId(), error));
+        config.getSlowOperationThresholds().getErrors().forEach(error ->
+                logger.errorf("Component %s: %s (entry ignored)", model.getId(), error));
+        if (config.isInMemory() || !config.isComplete()) {
+            logger.debugf("Skipping warm-up of component %s, in-memory backend or connection settings incomplete", model.getId());
+            return;
+        }
+        try {
+            WarmClient warm = new WarmClient(config, CosmosClientManager.acquire(config));
+            WarmClient previous = warmClients.put(model.getId(), warm);
+            if (previous != null) {
+                CosmosClientManager.release(previous.config, previous.client);
+            }
+            logger.infof("Pre-warmed CosmosClient for component %s (%s)", model.getId(), config);
+            checkIndexingPolicy(warm.client, config);
+        } catch (Exception ex) {
+            logger.warnf(ex, "Failed to pre-warm CosmosClient for component %s", model.getId());
+        }
+    }
+
+    private void checkIndexingPolicy(CosmosClient client, CosmosDbConfig config) {
+        CosmosDatabase database = client.getDatabase(config.getDatabaseName());
+        IndexingPolicyCheck.run(database.getContainer(config.getContainerName()),
+                database.getContainer(config.getUsersContainerName()),
+                config.isGroupsEnabled() ? database.getContainer(config.getGroupsContainerName()) : null, config);
+    }
+
+    private WarmClient unpin(String componentId) {
+        WarmClient warm = warmClients.remove(componentId);
+        if (warm != null) {
+            release(componentId, warm);
+        }
+        return warm;
+    }
+
+    private static void release(String componentId, WarmClient warm) {
+        try {
+            CosmosClientManager.release(warm.config, warm.client);
+        } catch (Exception ex) {
+            logger.warnf(ex, "Failed to release pre-warmed CosmosClient for component %s", componentId);
+        }
     }
 
     @Override
@@ -31,6 +263,13 @@ public class CosmosDbUserStorageProviderFactory implements UserStorageProviderFa
     @Override
     public List<ProviderConfigProperty> getConfigProperties() {
         return ProviderConfigurationBuilder.create()
+                .property()
+                .name(STORAGE_BACKEND)
+                .label("Storage Backend")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(CosmosDbConfig.STORAGE_BACKEND_COSMOS)
+                .helpText("cosmos = Cosmos DB, memory = uživatelé v paměti uzlu (lokální vývoj, testy, zátěžové běhy; data se ztratí restartem)")
+                .add()
                 .property()
                 .name(ENDPOINT)
                 .label("Cosmos DB Endpoint")
@@ -64,12 +303,225 @@ public class CosmosDbUserStorageProviderFactory implements UserStorageProviderFa
                 .defaultValue("Users")
                 .add()
                 .property()
+                .name(GROUPS_CONTAINER_NAME)
+                .label("Groups Container Name")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Kontejner s členstvím ve skupinách (partition key /groupId); prázdné = skupiny ukládá Keycloak ve federated storage")
+                .add()
+                .property()
+                .name(ROLE_MAPPING)
+                .label("Role Mapping")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Mapování hodnot pole role z druhé kolekce na role Keycloaku, např. user=offline_access,admin=realm-admin,dispatcher=moje-app.dispatcher (prázdné = vypnuto)")
+                .add()
+                .property()
+                .name(ROLE_CACHE_SECONDS)
+                .label("Role Cache (s)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("60")
+                .helpText("Jak dlouho uzel drží hodnotu role uživatele z druhé kolekce")
+                .add()
+                .property()
+                .name(IMPORT_USERS)
+                .label("Import Users")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("false")
+                .helpText("true = uživatelé se při prvním načtení importují do Keycloaku a dále se jen ověřuje jejich _etag bodovým čtením (vyžaduje povolený import komponenty, což je výchozí stav)")
+                .add()
+                .property()
+                .name(SEARCH_FIELDS_MODE)
+                .label("Case-Folded Search Fields")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(SearchFields.MODE_OFF)
+                .helpText("Kopie uživatelského jména, e-mailu a jmen malými písmeny v poli Search: off = nepoužívat, backfill = zapisovat a doplňovat synchronizací, on = zapisovat a vyhledávat podle nich (indexované STARTSWITH/rovnost místo LOWER)")
+                .add()
+                .property()
+                .name(SYNC_PARALLELISM)
+                .label("Sync Parallelism")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("4")
+                .helpText("Počet dávek změněných uživatelů z change feedu zpracovávaných souběžně při synchronizaci")
+                .add()
+                .property()
+                .name(SYNC_BATCH_SIZE)
+                .label("Sync Batch Size")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("100")
+                .helpText("Počet dokumentů na jednu stránku change feedu (jedna dávka = jedna transakce)")
+                .add()
+                .property()
                 .name(CLIENT_KEEP_ALIVE_SECONDS)
                 .label("Client Keep-Alive (s)")
                 .type(ProviderConfigProperty.STRING_TYPE)
                 .defaultValue("30")
                 .helpText("Počet sekund po uvolnění poslední reference, po které zůstane CosmosClient otevřen (0 = okamžité zavření)")
                 .add()
+                .property()
+                .name(SLOW_OPERATION_LATENCY_MS)
+                .label("Slow Operation Latency (ms)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("500")
+                .helpText("Práh latence pro zachycení diagnostiky; výchozí hodnota a volitelně per operace, např. 500,search=2000 (0 = vypnuto)")
+                .add()
+                .property()
+                .name(SLOW_OPERATION_RU)
+                .label("Slow Operation RU")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("100")
+                .helpText("Práh spotřeby RU pro zachycení diagnostiky; výchozí hodnota a volitelně per operace, např. 100,count=500 (0 = vypnuto)")
+                .add()
+                .property()
+                .name(SLOW_OPERATION_LOG_SIZE)
+                .label("Slow Operation Buffer Size")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("100")
+                .helpText("Počet posledních pomalých operací držených v paměti (JMX cz.oltisgroup.keycloak.cosmosdb:type=SlowOperations)")
+                .add()
+                .property()
+                .name(RU_BUDGET_PER_SECOND)
+                .label("RU Budget (RU/s)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .helpText("Kolik RU/s smí tento uzel spotřebovat na kontejner; řídí odkládání vyhledávání, počtů a údržby (0 = vypnuto)")
+                .add()
+                .property()
+                .name(BACKGROUND_RU_SHARE_PERCENT)
+                .label("Background RU Share (%)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("30")
+                .helpText("Maximální podíl RU budgetu pro vyhledávání, počty a údržbu; přihlášení nejsou omezena")
+                .add()
+                .property()
+                .name(BACKGROUND_MAX_CONCURRENCY)
+                .label("Background Max Concurrency")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("8")
+                .helpText("Horní mez adaptivního (AIMD) limitu souběžných ne-přihlašovacích operací; při 429 se limit půlí")
+                .add()
+                .property()
+                .name(RU_BUDGET_MAX_WAIT_MS)
+                .label("RU Budget Max Wait (ms)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("5000")
+                .helpText("Jak dlouho může operace čekat na RU budget, než je odmítnuta")
+                .add()
+                .property()
+                .name(PREFERRED_REGIONS)
+                .label("Preferred Regions")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Čárkou oddělený seznam Azure regionů v pořadí preference, např. West Europe,North Europe (lokální region a preferované regiony uzlu z SPI konfigurace mají přednost)")
+                .add()
+                .property()
+                .name(EXCLUDED_REGIONS)
+                .label("Excluded Regions")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Čárkou oddělený seznam Azure regionů, do kterých se požadavky neposílají (např. při výpadku nebo kvůli latenci); sčítá se s vyloučenými regiony uzlu")
+                .add()
+                .property()
+                .name(READ_TIMEOUT_MS)
+                .label("Read End-to-End Timeout (ms)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .helpText("Celkový časový limit čtecích operací při přihlášení včetně retry (CosmosEndToEndOperationLatencyPolicyConfig, 0 = vypnuto); vyhledávání, počty a synchronizace se neomezují")
+                .add()
+                .property()
+                .name(HEDGE_THRESHOLD_MS)
+                .label("Hedged Read Threshold (ms)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .helpText("Po této době se čtení paralelně pošle do dalšího preferovaného regionu (vyžaduje timeout a alespoň 2 preferované regiony, 0 = vypnuto)")
+                .add()
+                .property()
+                .name(HEDGE_THRESHOLD_STEP_MS)
+                .label("Hedged Read Threshold Step (ms)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("100")
+                .helpText("Odstup mezi pokusy do každého dalšího regionu")
+                .add()
+                .property()
+                .name(IN_MEMORY_LATENCY_MS)
+                .label("In-Memory Latency (ms)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .helpText("Umělá latence každého volání in-memory úložiště")
+                .add()
+                .property()
+                .name(IN_MEMORY_THROTTLE_PERCENT)
+                .label("In-Memory Throttle (%)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .helpText("Procento volání in-memory úložiště odmítnutých s 429, jako při vyčerpání RU")
+                .add()
+                .property()
+                .name(SEARCHABLE_ATTRIBUTES)
+                .label("Searchable Attributes")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(SearchableAttributes.DEFAULT)
+                .helpText("Atributy, podle kterých lze vyhledávat, a jejich indexované cesty v dokumentu (název=Header.Pole nebo název=Item.Pole); ostatní atributy se nevyhledávají")
+                .add()
+                .property()
+                .name(INDEXING_POLICY_MODE)
+                .label("Indexing Policy Check")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(IndexingPolicyCheck.MODE_WARN)
+                .helpText("Kontrola indexing policy kontejnerů při startu: off = vypnuto, warn = jen report v logu, apply = doplní chybějící a vyřadí nepoužívané cesty")
+                .add()
+                .property()
+                .name(INDEX_EXCLUDED_PATHS)
+                .label("Index Excluded Paths")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(IndexingPolicyCheck.DEFAULT_EXCLUDED_PATHS)
+                .helpText("Čárkou oddělené cesty hlavního kontejneru, které se nemají indexovat (snižuje RU zápisů)")
+                .add()
+                .property()
+                .name(QUERY_PROFILES)
+                .label("Query Profiles")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("")
+                .helpText("Úpravy parametrů dotazů pro profily login, search, count a scan ve tvaru profil.nastavení=hodnota, např. search.pageSize=200,scan.parallelism=2 (nastavení parallelism, buffer, pageSize, metrics)")
+                .add()
+                .property()
+                .name(CONSISTENCY_LEVELS)
+                .label("Consistency Levels")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(ConsistencyLevels.DEFAULT)
+                .helpText("Úroveň konzistence čtení: výchozí hodnota a případné výjimky pro třídy operací (login, write, search, count, maintenance), např. session,search=eventual,count=eventual; povoleno session, consistent_prefix, eventual")
+                .add()
+                .property()
+                .name(REQUEST_PRIORITIES)
+                .label("Request Priorities")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(RequestPriorities.DEFAULT)
+                .helpText("Priorita požadavků pro priority-based execution: výchozí hodnota a výjimky pro třídy operací (login, write, search, count, maintenance); při throttlingu Cosmos DB odmítá nejdřív požadavky s nízkou prioritou (off = bez priority)")
+                .add()
+                .property()
+                .name(USER_CACHE_SECONDS)
+                .label("User Cache (s)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .helpText("Jak dlouho uzel obsluhuje přihlášení uživatele z lokální cache bez dotazu do Cosmos DB; často používané záznamy se obnovují na pozadí (0 = vypnuto)")
+                .add()
+                .property()
+                .name(USER_CACHE_STALE_SECONDS)
+                .label("User Cache Stale Limit (s)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("300")
+                .helpText("Jak dlouho po vypršení se smí záznam cache ještě použít, dokud se jeho obnovení z Cosmos DB nepodaří (např. při throttlingu nebo výpadku regionu)")
+                .add()
+                .property()
+                .name(CIRCUIT_BREAKER_FAILURES)
+                .label("Circuit Breaker Failures")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .helpText("Počet po sobě jdoucích selhaných volání kontejneru (timeout, 429, chyba serveru), po kterém se další volání okamžitě odmítají (0 = vypnuto); zapínejte spolu s User Cache, jinak při otevřeném okruhu selhávají všechna přihlášení")
+                .add()
+                .property()
+                .name(CIRCUIT_BREAKER_OPEN_SECONDS)
+                .label("Circuit Breaker Open (s)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("30")
+                .helpText("Jak dlouho se volání odmítají, než se zkusí jedno zkušební volání")
+                .add()
                 .build();
     }
 }
@@ -0,0 +1,277 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.azure.cosmos.CosmosClient;
+import com.azure.cosmos.CosmosDatabase;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.CosmosChangeFeedRequestOptions;
+import com.azure.cosmos.models.CosmosPatchOperations;
+import com.azure.cosmos.models.FeedRange;
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.cosmos.models.SqlParameter;
+import com.azure.cosmos.models.SqlQuerySpec;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * {@link UserDocumentStore} backed by the two Cosmos DB containers through the shared client.
+ */
+public class CosmosUserDocumentStore implements UserDocumentStore {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final int NOT_MODIFIED = 304;
+
+    private static final Map<String, String> ATTRIBUTE_QUERIES = new ConcurrentHashMap<>();
+
+    private final CosmosDbConfig config;
+    private final CosmosClient cosmosClient;
+    private final InstrumentedContainer usersContainer;
+    private final InstrumentedContainer usersExtraContainer;
+    private final InstrumentedContainer groupsContainer;
+
+    public CosmosUserDocumentStore(CosmosDbConfig config) {
+        this.config = config;
+        this.cosmosClient = CosmosClientManager.acquire(config);
+        CosmosDatabase database = cosmosClient.getDatabase(config.getDatabaseName());
+        this.usersContainer = new InstrumentedContainer(database.getContainer(config.getContainerName()), config);
+        this.usersExtraContainer = new InstrumentedContainer(database.getContainer(config.getUsersContainerName()), config);
+        this.groupsContainer = config.isGroupsEnabled()
+                ? new InstrumentedContainer(database.getContainer(config.getGroupsContainerName()), config) : null;
+        if (config.getRequestPriorities().isEnabled()) {
+            RequestPriorities.enableGroups(cosmosClient, usersContainer.getContainer(), config.getDatabaseName());
+            RequestPriorities.enableGroups(cosmosClient, usersExtraContainer.getContainer(), config.getDatabaseName());
+            if (groupsContainer != null) {
+                RequestPriorities.enableGroups(cosmosClient, groupsContainer.getContainer(), config.getDatabaseName());
+            }
+        }
+    }
+
+    @Override
+    public List<JsonNode> findByUsername(String username) {
+        List<SqlParameter> parameters = Collections.singletonList(new SqlParameter("@uname", username.toLowerCase(Locale.ROOT)));
+        // with the copies on they are authoritative: unknown users must not cost a second, scanning query
+        if (config.isCaseFoldedSearch()) {
+            String query = "SELECT c.id AS docId, c._etag, c.Header, c.Item FROM c WHERE c.Search.UserAdId = @uname";
+            return usersContainer.query(CosmosDbOperation.FIND_BY_USERNAME, new SqlQuerySpec(query, parameters), JsonNode.class);
+        }
+        String query = "SELECT c.id AS docId, c._etag, c.Header, c.Item FROM c WHERE LOWER(c.Header.UserAdId) = @uname";
+        return usersContainer.query(CosmosDbOperation.FIND_BY_USERNAME, new SqlQuerySpec(query, parameters), JsonNode.class);
+    }
+
+    @Override
+    public JsonNode loadFullDocument(String username) {
+        String query = "SELECT * FROM c WHERE LOWER(c.Header.UserAdId) = @uname";
+        SqlQuerySpec spec = new SqlQuerySpec(query, Collections.singletonList(new SqlParameter("@uname", username.toLowerCase(Locale.ROOT))));
+        return usersContainer.queryFirst(CosmosDbOperation.LOAD_FULL_DOCUMENT, spec, JsonNode.class);
+    }
+
+    @Override
+    public List<JsonNode> findByEmail(String email) {
+        String query = "SELECT c.id AS docId, c._etag, c.Header, c.Item FROM c WHERE c.Item.Email = @email OR c.Item.email = @email";
+        SqlQuerySpec spec = new SqlQuerySpec(query, Collections.singletonList(new SqlParameter("@email", email)));
+        return usersContainer.query(CosmosDbOperation.FIND_BY_EMAIL, spec, JsonNode.class);
+    }
+
+    @Override
+    public List<JsonNode> search(UserSearchQuery search, Integer firstResult, Integer maxResults) {
+        StringBuilder query = new StringBuilder("SELECT c.id AS docId, c._etag, c.Header, c.Item FROM c");
+        List<SqlParameter> parameters = new ArrayList<>();
+        if (!search.isEmpty()) {
+            query.append(" WHERE ").append(search.toSql(config.isCaseFoldedSearch(), parameters));
+        }
+        if (firstResult != null && maxResults != null) {
+            // cross-partition paging is only stable over a defined order
+            query.append(config.isCaseFoldedSearch() ? " ORDER BY c.Search.UserAdId" : " ORDER BY c.Header.UserAdId");
+            query.append(" OFFSET @offset LIMIT @limit");
+            parameters.add(new SqlParameter("@offset", firstResult));
+            parameters.add(new SqlParameter("@limit", maxResults));
+        }
+        return usersContainer.query(CosmosDbOperation.SEARCH, new SqlQuerySpec(query.toString(), parameters), JsonNode.class);
+    }
+
+    @Override
+    public Stream<JsonNode> findActiveByAttribute(String path, String value) {
+        SqlQuerySpec spec = new SqlQuerySpec(attributeQuery(path), Collections.singletonList(new SqlParameter("@value", value)));
+        return usersContainer.stream(CosmosDbOperation.SEARCH_BY_ATTRIBUTE, spec, JsonNode.class);
+    }
+
+    // one fixed query text per whitelisted path
+    private static String attributeQuery(String path) {
+        if (!SearchableAttributes.isValidPath(path)) {
+            throw new IllegalArgumentException("Attribute path not allowed in query: " + path);
+        }
+        return ATTRIBUTE_QUERIES.computeIfAbsent(path, p -> "SELECT c.id AS docId, c._etag, c.Header, c.Item FROM c WHERE c." + p + " = @value AND c.Item.Active = 1");
+    }
+
+    @Override
+    public List<JsonNode> findActiveByUsernames(List<String> usernames) {
+        // same normalization as findByUsername; IN over the partition key path or its indexed lowercase copy
+        StringBuilder in = new StringBuilder();
+        List<SqlParameter> parameters = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            String name = "@n" + parameters.size();
+            in.append(in.length() == 0 ? "" : ", ").append(name);
+            parameters.add(new SqlParameter(name, username.toLowerCase(Locale.ROOT)));
+        }
+        String field = config.isCaseFoldedSearch() ? "c.Search.UserAdId" : "LOWER(c.Header.UserAdId)";
+        String query = "SELECT c.id AS docId, c._etag, c.Header, c.Item FROM c WHERE " + field + " IN (" + in + ") AND c.Item.Active = 1";
+        return usersContainer.query(CosmosDbOperation.FIND_BY_USERNAMES, new SqlQuerySpec(query, parameters), JsonNode.class);
+    }
+
+    @Override
+    public int count() {
+        Integer count = usersContainer.queryFirst(CosmosDbOperation.COUNT, new SqlQuerySpec("SELECT VALUE COUNT(1) FROM c"), Integer.class);
+        return count != null ? count : 0;
+    }
+
+    @Override
+    public void createUser(ObjectNode doc) {
+        usersContainer.create(CosmosDbOperation.CREATE_USER, doc);
+    }
+
+    @Override
+    public void upsertUser(JsonNode doc) {
+        usersContainer.upsert(CosmosDbOperation.UPSERT_USER, doc);
+    }
+
+    @Override
+    public void deleteUser(String id, String username) {
+        usersContainer.delete(CosmosDbOperation.DELETE_USER, id, new PartitionKey(username));
+    }
+
+    @Override
+    public List<JsonNode> findExtraByLogin(String login) {
+        SqlQuerySpec spec = new SqlQuerySpec("SELECT * FROM c WHERE c.login = @login", Collections.singletonList(new SqlParameter("@login", login)));
+        return usersExtraContainer.query(CosmosDbOperation.EXTRA_LOOKUP, spec, JsonNode.class, new PartitionKey(login));
+    }
+
+    @Override
+    public void createExtra(ObjectNode doc) {
+        usersExtraContainer.create(CosmosDbOperation.EXTRA_CREATE, doc);
+    }
+
+    @Override
+    public JsonNode readIfChanged(String id, String username, String etag) {
+        com.azure.cosmos.models.CosmosItemRequestOptions options = new com.azure.cosmos.models.CosmosItemRequestOptions();
+        if (etag != null) {
+            options.setIfNoneMatchETag(etag);
+        }
+        try {
+            com.azure.cosmos.models.CosmosItemResponse<JsonNode> response =
+                    usersContainer.read(CosmosDbOperation.VALIDATE_IMPORTED, id, new PartitionKey(username), options);
+            return response.getStatusCode() == NOT_MODIFIED ? null : response.getItem();
+        } catch (CosmosException e) {
+            if (e.getStatusCode() == NOT_MODIFIED) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public String readChanges(String continuation, Instant since, int pageSize, Consumer<List<JsonNode>> pages) {
+        CosmosChangeFeedRequestOptions options;
+        if (continuation != null) {
+            options = CosmosChangeFeedRequestOptions.createForProcessingFromContinuation(continuation);
+        } else if (since != null) {
+            options = CosmosChangeFeedRequestOptions.createForProcessingFromPointInTime(since, FeedRange.forFullRange());
+        } else {
+            options = CosmosChangeFeedRequestOptions.createForProcessingFromBeginning(FeedRange.forFullRange());
+        }
+        options.setMaxItemCount(pageSize);
+        return usersContainer.changeFeed(CosmosDbOperation.CHANGE_FEED, options, pages);
+    }
+
+    @Override
+    public Stream<String> findLoginsByRoles(List<String> roles, Integer firstResult, Integer maxResults) {
+        StringBuilder query = new StringBuilder("SELECT VALUE c.login FROM c WHERE ARRAY_CONTAINS(@roles, c.role) ORDER BY c.login");
+        List<SqlParameter> parameters = new ArrayList<>();
+        parameters.add(new SqlParameter("@roles", roles));
+        if (firstResult != null || maxResults != null) {
+            query.append(" OFFSET @offset LIMIT @limit");
+            parameters.add(new SqlParameter("@offset", firstResult != null ? firstResult : 0));
+            parameters.add(new SqlParameter("@limit", maxResults != null ? maxResults : Integer.MAX_VALUE));
+        }
+        return usersExtraContainer.stream(CosmosDbOperation.ROLE_MEMBERS, new SqlQuerySpec(query.toString(), parameters), String.class);
+    }
+
+    @Override
+    public void patchUser(String id, String username, Map<String, Object> fields) {
+        CosmosPatchOperations operations = CosmosPatchOperations.create();
+        fields.forEach((name, value) -> operations.set("/" + name, value));
+        usersContainer.patch(CosmosDbOperation.SEARCH_FIELDS_BACKFILL, id, new PartitionKey(username), operations);
+    }
+
+    @Override
+    public void patchExtra(String id, String login, Map<String, Object> fields) {
+        CosmosPatchOperations operations = CosmosPatchOperations.create();
+        fields.forEach((name, value) -> operations.set("/" + name, value));
+        usersExtraContainer.patch(CosmosDbOperation.EXTRA_PATCH, id, new PartitionKey(login), operations);
+    }
+
+    @Override
+    public void deleteExtra(String id, String login) {
+        usersExtraContainer.delete(CosmosDbOperation.EXTRA_DELETE, id, new PartitionKey(login));
+    }
+
+    @Override
+    public Stream<String> findGroupMembers(String groupId, Integer firstResult, Integer maxResults) {
+        StringBuilder query = new StringBuilder("SELECT VALUE c.username FROM c WHERE c.groupId = @groupId ORDER BY c.username");
+        List<SqlParameter> parameters = new ArrayList<>();
+        parameters.add(new SqlParameter("@groupId", groupId));
+        if (firstResult != null || maxResults != null) {
+            query.append(" OFFSET @offset LIMIT @limit");
+            parameters.add(new SqlParameter("@offset", firstResult != null ? firstResult : 0));
+            parameters.add(new SqlParameter("@limit", maxResults != null ? maxResults : Integer.MAX_VALUE));
+        }
+        return groups().stream(CosmosDbOperation.GROUP_MEMBERS, new SqlQuerySpec(query.toString(), parameters), String.class, new PartitionKey(groupId));
+    }
+
+    @Override
+    public void addGroupMember(String groupId, String username) {
+        ObjectNode doc = MAPPER.createObjectNode();
+        doc.put("id", membershipId(username));
+        doc.put("groupId", groupId);
+        doc.put("username", username);
+        groups().upsert(CosmosDbOperation.GROUP_MEMBER_UPSERT, doc);
+    }
+
+    @Override
+    public void removeGroupMember(String groupId, String username) {
+        try {
+            groups().delete(CosmosDbOperation.GROUP_MEMBER_DELETE, membershipId(username), new PartitionKey(groupId));
+        } catch (CosmosException ex) {
+            if (ex.getStatusCode() != 404) throw ex;
+        }
+    }
+
+    private InstrumentedContainer groups() {
+        if (groupsContainer == null) {
+            throw new IllegalStateException("Groups container is not configured");
+        }
+        return groupsContainer;
+    }
+
+    // usernames may contain characters not allowed in ids ('/', '\', '?', '#'); id only has to be unique within the group's partition
+    static String membershipId(String username) {
+        return UUID.nameUUIDFromBytes(username.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    @Override
+    public void close() {
+        CosmosClientManager.release(config, cosmosClient);
+    }
+}
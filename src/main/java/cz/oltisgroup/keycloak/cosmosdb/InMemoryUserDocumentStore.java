@@ -0,0 +1,425 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.azure.cosmos.CosmosException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.keycloak.models.ModelException;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * {@link UserDocumentStore} kept in memory, for running the provider without a Cosmos account
+ * (local Keycloak, CI, load runs). Evaluates the same filters, projections, paging and patches
+ * as the Cosmos queries, and fails the same way (404, 409, 429 as {@link CosmosException}).
+ *
+ * Every call can be delayed by a fixed latency and rejected with 429 at a given rate to mimic
+ * a remote, throttled backend. Data lives as long as the node, one store per component.
+ */
+public class InMemoryUserDocumentStore implements UserDocumentStore {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final Map<String, InMemoryUserDocumentStore> STORES = new ConcurrentHashMap<>();
+
+    // id -> document; sorted so that paging is stable like Cosmos' order within one partition range
+    private final Map<String, ObjectNode> users = new ConcurrentSkipListMap<>();
+    private final Map<String, ObjectNode> extras = new ConcurrentSkipListMap<>();
+    // groupId -> usernames
+    private final Map<String, Set<String>> groupMembers = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    // change feed position, stamped into user documents as _lsn on every write
+    private final AtomicLong lsn = new AtomicLong();
+
+    private volatile long latencyNanos;
+    private volatile double throttleRate;
+    private volatile boolean caseFolded;
+
+    public InMemoryUserDocumentStore(long latencyMillis, int throttlePercent) {
+        setLatencyMillis(latencyMillis);
+        setThrottlePercent(throttlePercent);
+    }
+
+    /**
+     * @return store of the component, created on first use; latency and throttling follow the current configuration
+     */
+    public static InMemoryUserDocumentStore forComponent(String componentId, CosmosDbConfig config) {
+        InMemoryUserDocumentStore store = STORES.computeIfAbsent(componentId,
+                id -> new InMemoryUserDocumentStore(config.getInMemoryLatencyMs(), config.getInMemoryThrottlePercent()));
+        store.setLatencyMillis(config.getInMemoryLatencyMs());
+        store.setThrottlePercent(config.getInMemoryThrottlePercent());
+        store.setCaseFolded(config.isCaseFoldedSearch());
+        return store;
+    }
+
+    public static void removeComponent(String componentId) {
+        STORES.remove(componentId);
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, latencyMillis));
+    }
+
+    /**
+     * Query the lowercase copies under "Search" like the Cosmos store does with case-folded search on.
+     */
+    public void setCaseFolded(boolean caseFolded) {
+        this.caseFolded = caseFolded;
+    }
+
+    public void setThrottlePercent(int throttlePercent) {
+        this.throttleRate = Math.min(100, Math.max(0, throttlePercent)) / 100.0;
+    }
+
+    /**
+     * @return number of calls made against the store (seeding not included)
+     */
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    /**
+     * Seed a user document without latency or throttling. The document must have id.
+     */
+    public void putUser(ObjectNode doc) {
+        users.put(doc.get("id").asText(), stamp(doc.deepCopy()));
+    }
+
+    /**
+     * Seed an extra container document without latency or throttling. The document must have id.
+     */
+    public void putExtra(ObjectNode doc) {
+        extras.put(doc.get("id").asText(), doc.deepCopy());
+    }
+
+    @Override
+    public List<JsonNode> findByUsername(String username) {
+        call();
+        String normalized = username.toLowerCase(Locale.ROOT);
+        // with the copies on they are authoritative, as in the Cosmos store
+        if (caseFolded) {
+            return select(users, doc -> normalized.equals(text(field(doc, SearchFields.FIELD, "UserAdId"))), true);
+        }
+        return select(users, doc -> normalized.equals(lower(field(doc, "Header", "UserAdId"))), true);
+    }
+
+    @Override
+    public JsonNode loadFullDocument(String username) {
+        call();
+        String normalized = username.toLowerCase(Locale.ROOT);
+        List<JsonNode> docs = select(users, doc -> normalized.equals(lower(field(doc, "Header", "UserAdId"))), false);
+        return docs.isEmpty() ? null : docs.get(0);
+    }
+
+    @Override
+    public List<JsonNode> findByEmail(String email) {
+        call();
+        return select(users, doc -> email.equals(text(field(doc, "Item", "Email"))) || email.equals(text(field(doc, "Item", "email"))), true);
+    }
+
+    @Override
+    public List<JsonNode> search(UserSearchQuery search, Integer firstResult, Integer maxResults) {
+        call();
+        boolean folded = caseFolded;
+        List<JsonNode> matches = select(users, doc -> search.matches(doc, folded), true);
+        if (firstResult == null || maxResults == null) {
+            return matches;
+        }
+        // same order as the paged Cosmos query
+        matches.sort(Comparator.comparing(doc -> String.valueOf(text(field(doc, "Header", "UserAdId")))));
+        int from = Math.min(Math.max(0, firstResult), matches.size());
+        int to = (int) Math.min(matches.size(), (long) from + Math.max(0, maxResults));
+        return new ArrayList<>(matches.subList(from, to));
+    }
+
+    @Override
+    public Stream<JsonNode> findActiveByAttribute(String path, String value) {
+        if (!SearchableAttributes.isValidPath(path)) {
+            throw new IllegalArgumentException("Attribute path not allowed in query: " + path);
+        }
+        call();
+        int dot = path.indexOf('.');
+        String section = path.substring(0, dot);
+        String name = path.substring(dot + 1);
+        return select(users, doc -> value.equals(text(field(doc, section, name))) && isActive(doc), true).stream();
+    }
+
+    @Override
+    public List<JsonNode> findActiveByUsernames(List<String> usernames) {
+        call();
+        Set<String> names = new HashSet<>();
+        usernames.forEach(username -> names.add(username.toLowerCase(Locale.ROOT)));
+        if (caseFolded) {
+            return select(users, doc -> names.contains(text(field(doc, SearchFields.FIELD, "UserAdId"))) && isActive(doc), true);
+        }
+        return select(users, doc -> names.contains(lower(field(doc, "Header", "UserAdId"))) && isActive(doc), true);
+    }
+
+    @Override
+    public int count() {
+        call();
+        return users.size();
+    }
+
+    @Override
+    public void createUser(ObjectNode doc) {
+        call();
+        if (users.putIfAbsent(requireId(doc), stamp(doc.deepCopy())) != null) {
+            throw new StoreException(409, "Entity with the specified id already exists in the system");
+        }
+    }
+
+    @Override
+    public void upsertUser(JsonNode doc) {
+        call();
+        users.put(requireId(doc), stamp((ObjectNode) doc.deepCopy()));
+    }
+
+    @Override
+    public JsonNode readIfChanged(String id, String username, String etag) {
+        call();
+        ObjectNode doc = users.get(id);
+        if (doc == null || !username.equals(text(field(doc, "Header", "UserAdId")))) {
+            throw new StoreException(404, "Entity with the specified id does not exist in the system");
+        }
+        return etag != null && etag.equals(text(doc.get("_etag"))) ? null : doc.deepCopy();
+    }
+
+    @Override
+    public String readChanges(String continuation, Instant since, int pageSize, Consumer<List<JsonNode>> pages) {
+        call();
+        long end = lsn.get();
+        long after = -1;
+        if (continuation != null) {
+            try {
+                after = Long.parseLong(continuation);
+            } catch (NumberFormatException e) {
+                throw new StoreException(400, "Invalid continuation token " + continuation);
+            }
+        }
+        long sinceSeconds = continuation == null && since != null ? since.getEpochSecond() : Long.MIN_VALUE;
+        List<ObjectNode> changed = new ArrayList<>();
+        for (ObjectNode doc : users.values()) {
+            long docLsn = doc.path("_lsn").asLong();
+            if (docLsn > after && docLsn <= end && doc.path("_ts").asLong() >= sinceSeconds) {
+                changed.add(doc);
+            }
+        }
+        changed.sort(Comparator.comparingLong(doc -> doc.path("_lsn").asLong()));
+        int size = Math.max(1, pageSize);
+        for (int from = 0; from < changed.size(); from += size) {
+            List<JsonNode> page = new ArrayList<>();
+            for (ObjectNode doc : changed.subList(from, Math.min(changed.size(), from + size))) {
+                page.add(doc.deepCopy());
+            }
+            pages.accept(page);
+        }
+        return String.valueOf(Math.max(end, after));
+    }
+
+    @Override
+    public void deleteUser(String id, String username) {
+        call();
+        ObjectNode doc = users.get(id);
+        if (doc == null || !username.equals(text(field(doc, "Header", "UserAdId"))) || !users.remove(id, doc)) {
+            throw new StoreException(404, "Entity with the specified id does not exist in the system");
+        }
+    }
+
+    @Override
+    public List<JsonNode> findExtraByLogin(String login) {
+        call();
+        return select(extras, doc -> login.equals(text(doc.get("login"))), false);
+    }
+
+    @Override
+    public void createExtra(ObjectNode doc) {
+        call();
+        create(extras, doc);
+    }
+
+    @Override
+    public Stream<String> findLoginsByRoles(List<String> roles, Integer firstResult, Integer maxResults) {
+        call();
+        List<String> logins = new ArrayList<>();
+        for (ObjectNode doc : extras.values()) {
+            String login = text(doc.get("login"));
+            if (login != null && roles.contains(text(doc.get("role")))) logins.add(login);
+        }
+        Collections.sort(logins);
+        int from = firstResult == null ? 0 : Math.min(Math.max(0, firstResult), logins.size());
+        int to = maxResults == null ? logins.size() : (int) Math.min(logins.size(), (long) from + Math.max(0, maxResults));
+        return logins.subList(from, to).stream();
+    }
+
+    @Override
+    public void patchUser(String id, String username, Map<String, Object> fields) {
+        call();
+        ObjectNode patched = users.computeIfPresent(id, (k, doc) -> {
+            if (!username.equals(text(field(doc, "Header", "UserAdId")))) return doc;
+            ObjectNode copy = doc.deepCopy();
+            fields.forEach((name, value) -> copy.set(name, MAPPER.valueToTree(value)));
+            return stamp(copy);
+        });
+        if (patched == null || !username.equals(text(field(patched, "Header", "UserAdId")))) {
+            throw new StoreException(404, "Entity with the specified id does not exist in the system");
+        }
+    }
+
+    @Override
+    public void patchExtra(String id, String login, Map<String, Object> fields) {
+        call();
+        ObjectNode patched = extras.computeIfPresent(id, (k, doc) -> {
+            if (!login.equals(text(doc.get("login")))) return doc;
+            ObjectNode copy = doc.deepCopy();
+            fields.forEach((name, value) -> copy.set(name, MAPPER.valueToTree(value)));
+            return copy;
+        });
+        if (patched == null || !login.equals(text(patched.get("login")))) {
+            throw new StoreException(404, "Entity with the specified id does not exist in the system");
+        }
+    }
+
+    @Override
+    public void deleteExtra(String id, String login) {
+        call();
+        ObjectNode doc = extras.get(id);
+        if (doc == null || !login.equals(text(doc.get("login"))) || !extras.remove(id, doc)) {
+            throw new StoreException(404, "Entity with the specified id does not exist in the system");
+        }
+    }
+
+    @Override
+    public Stream<String> findGroupMembers(String groupId, Integer firstResult, Integer maxResults) {
+        call();
+        List<String> members = new ArrayList<>(groupMembers.getOrDefault(groupId, Collections.emptySet()));
+        int from = firstResult == null ? 0 : Math.min(Math.max(0, firstResult), members.size());
+        int to = maxResults == null ? members.size() : (int) Math.min(members.size(), (long) from + Math.max(0, maxResults));
+        return members.subList(from, to).stream();
+    }
+
+    @Override
+    public void addGroupMember(String groupId, String username) {
+        call();
+        groupMembers.computeIfAbsent(groupId, id -> new ConcurrentSkipListSet<>()).add(username);
+    }
+
+    @Override
+    public void removeGroupMember(String groupId, String username) {
+        call();
+        Set<String> members = groupMembers.get(groupId);
+        if (members != null) members.remove(username);
+    }
+
+    @Override
+    public void close() {
+        // data outlives the session
+    }
+
+    private void call() {
+        calls.incrementAndGet();
+        long latency = latencyNanos;
+        if (latency > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ModelException("Interrupted while waiting for in-memory store", e);
+            }
+        }
+        double rate = throttleRate;
+        if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+            throw new StoreException(429, "Request rate is large (injected by in-memory store)");
+        }
+    }
+
+    // system properties Cosmos maintains on every write
+    private ObjectNode stamp(ObjectNode doc) {
+        long next = lsn.incrementAndGet();
+        doc.put("_lsn", next);
+        doc.put("_ts", System.currentTimeMillis() / 1000);
+        doc.put("_etag", "\"" + Long.toHexString(next) + "\"");
+        return doc;
+    }
+
+    private static void create(Map<String, ObjectNode> docs, ObjectNode doc) {
+        if (docs.putIfAbsent(requireId(doc), doc.deepCopy()) != null) {
+            throw new StoreException(409, "Entity with the specified id already exists in the system");
+        }
+    }
+
+    private static String requireId(JsonNode doc) {
+        String id = text(doc.get("id"));
+        if (id == null || id.isEmpty()) {
+            throw new StoreException(400, "The input content is invalid because the required properties - 'id; ' - are missing");
+        }
+        return id;
+    }
+
+    private static List<JsonNode> select(Map<String, ObjectNode> docs, Predicate<ObjectNode> filter, boolean headerAndItem) {
+        List<JsonNode> results = new ArrayList<>();
+        for (ObjectNode doc : docs.values()) {
+            if (filter.test(doc)) {
+                results.add(headerAndItem ? project(doc) : doc.deepCopy());
+            }
+        }
+        return results;
+    }
+
+    // SELECT c.id AS docId, c._etag, c.Header, c.Item
+    private static ObjectNode project(ObjectNode doc) {
+        ObjectNode projected = MAPPER.createObjectNode();
+        if (doc.has("id")) projected.set("docId", doc.get("id").deepCopy());
+        if (doc.has("_etag")) projected.set("_etag", doc.get("_etag").deepCopy());
+        if (doc.has("Header")) projected.set("Header", doc.get("Header").deepCopy());
+        if (doc.has("Item")) projected.set("Item", doc.get("Item").deepCopy());
+        return projected;
+    }
+
+    private static JsonNode field(JsonNode doc, String section, String name) {
+        JsonNode parent = doc.get(section);
+        return parent == null ? null : parent.get(name);
+    }
+
+    // Cosmos compares strings only with strings; other types are undefined and never match
+    private static String text(JsonNode node) {
+        return node != null && node.isTextual() ? node.asText() : null;
+    }
+
+    private static String lower(JsonNode node) {
+        String value = text(node);
+        return value == null ? null : value.toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isActive(JsonNode doc) {
+        JsonNode active = field(doc, "Item", "Active");
+        return active != null && active.isNumber() && active.asInt() == 1;
+    }
+
+    /**
+     * Failure with the status code Cosmos DB would return for the same call.
+     */
+    static final class StoreException extends CosmosException {
+        private static final long serialVersionUID = 1L;
+
+        StoreException(int statusCode, String message) {
+            super(statusCode, message);
+        }
+    }
+}
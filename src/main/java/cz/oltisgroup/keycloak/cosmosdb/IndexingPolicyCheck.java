@@ -0,0 +1,168 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.models.CosmosContainerProperties;
+import com.azure.cosmos.models.ExcludedPath;
+import com.azure.cosmos.models.IncludedPath;
+import com.azure.cosmos.models.IndexingMode;
+import com.azure.cosmos.models.IndexingPolicy;
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Compares the indexing policy of the containers with the paths the provider queries by
+ * and with the paths configured to be excluded from indexing. Depending on the mode it only
+ * logs the report (warn) or also updates the policy (apply). Runs when the factory warms up a component.
+ *
+ * A path counts as indexed when the most specific matching policy entry is an included path,
+ * which is how Cosmos DB resolves overlapping included/excluded paths.
+ */
+public final class IndexingPolicyCheck {
+
+    private static final Logger logger = Logger.getLogger(IndexingPolicyCheck.class);
+
+    public static final String MODE_OFF = "off";
+    public static final String MODE_WARN = "warn";
+    public static final String MODE_APPLY = "apply";
+
+    public static final String DEFAULT_EXCLUDED_PATHS = "/Header/GPSLongtitude/?,/Header/GPSLatitude/?,/Item/Password/?";
+
+    // filters of the lookup queries on the main container
+    private static final List<String> USER_QUERY_PATHS = List.of("/Header/UserAdId/?", "/Item/Email/?", "/Item/email/?", "/Item/Active/?");
+    // extra container is looked up by login only
+    private static final List<String> EXTRA_QUERY_PATHS = List.of("/login/?");
+    // group members are listed ordered by username within the group's partition
+    private static final List<String> GROUP_QUERY_PATHS = List.of("/groupId/?", "/username/?");
+
+    private IndexingPolicyCheck() {}
+
+    public static void run(CosmosContainer users, CosmosContainer extra, CosmosContainer groups, CosmosDbConfig config) {
+        String mode = config.getIndexingPolicyMode().toLowerCase(Locale.ROOT);
+        if (MODE_OFF.equals(mode)) return;
+        boolean apply = MODE_APPLY.equals(mode);
+        check(users, requiredUserPaths(config), config.getIndexExcludedPaths(), apply);
+        check(extra, new LinkedHashSet<>(EXTRA_QUERY_PATHS), List.of(), apply);
+        if (groups != null) {
+            check(groups, new LinkedHashSet<>(GROUP_QUERY_PATHS), List.of(), apply);
+        }
+    }
+
+    static Set<String> requiredUserPaths(CosmosDbConfig config) {
+        Set<String> paths = new LinkedHashSet<>(USER_QUERY_PATHS);
+        if (config.isCaseFoldedSearch()) {
+            for (UserSearchQuery.Field field : UserSearchQuery.Field.values()) {
+                paths.add("/" + SearchFields.FIELD + "/" + field.searchName + "/?");
+            }
+        }
+        for (String path : config.getSearchableAttributes().getPaths().values()) {
+            paths.add("/" + path.replace('.', '/') + "/?");
+        }
+        return paths;
+    }
+
+    private static void check(CosmosContainer container, Set<String> required, List<String> wantedExcluded, boolean apply) {
+        String name = container.getId();
+        try {
+            CosmosContainerProperties properties = container.read().getProperties();
+            IndexingPolicy policy = properties.getIndexingPolicy();
+            if (policy.getIndexingMode() == IndexingMode.NONE) {
+                logger.warnf("Indexing policy of container %s: indexing mode is NONE, every query of the provider is a full scan", name);
+                return;
+            }
+            List<String> missing = new ArrayList<>();
+            for (String path : required) {
+                if (!isIndexed(policy, path)) missing.add(path);
+            }
+            List<String> toExclude = new ArrayList<>();
+            for (String path : wantedExcluded) {
+                if (required.contains(path)) {
+                    logger.warnf("Indexing policy of container %s: %s is queried by the provider and stays indexed", name, path);
+                } else if (isIndexed(policy, path)) {
+                    toExclude.add(path);
+                }
+            }
+            logger.infof("Indexing policy of container %s: mode=%s included=%s excluded=%s composite=%d; required paths %s",
+                    name, policy.getIndexingMode(), paths(policy.getIncludedPaths()), excludedPaths(policy.getExcludedPaths()),
+                    policy.getCompositeIndexes() == null ? 0 : policy.getCompositeIndexes().size(), required);
+            if (missing.isEmpty() && toExclude.isEmpty()) {
+                logger.infof("Indexing policy of container %s matches the provider's queries", name);
+                return;
+            }
+            if (!missing.isEmpty()) {
+                logger.warnf("Indexing policy of container %s does not index %s; queries filtering on them scan the container", name, missing);
+            }
+            if (!toExclude.isEmpty()) {
+                logger.warnf("Indexing policy of container %s indexes unused paths %s; excluding them lowers write RU", name, toExclude);
+            }
+            if (!apply) return;
+
+            List<IncludedPath> included = new ArrayList<>(policy.getIncludedPaths());
+            List<ExcludedPath> excluded = new ArrayList<>(policy.getExcludedPaths());
+            for (String path : missing) {
+                excluded.removeIf(e -> normalize(e.getPath()).equals(path));
+                if (!isIndexed(included, excluded, path)) {
+                    included.add(new IncludedPath(path));
+                }
+            }
+            for (String path : toExclude) {
+                included.removeIf(i -> normalize(i.getPath()).equals(path));
+                excluded.add(new ExcludedPath(path));
+            }
+            policy.setIncludedPaths(included);
+            policy.setExcludedPaths(excluded);
+            container.replace(properties);
+            logger.infof("Indexing policy of container %s updated (added %s, excluded %s); Cosmos DB rebuilds the index in the background",
+                    name, missing, toExclude);
+        } catch (Exception ex) {
+            logger.warnf(ex, "Could not check indexing policy of container %s", name);
+        }
+    }
+
+    static boolean isIndexed(IndexingPolicy policy, String path) {
+        return isIndexed(policy.getIncludedPaths(), policy.getExcludedPaths(), path);
+    }
+
+    private static boolean isIndexed(List<IncludedPath> included, List<ExcludedPath> excluded, String path) {
+        int bestIncluded = -1;
+        for (IncludedPath p : included) bestIncluded = Math.max(bestIncluded, specificity(normalize(p.getPath()), path));
+        int bestExcluded = -1;
+        for (ExcludedPath p : excluded) bestExcluded = Math.max(bestExcluded, specificity(normalize(p.getPath()), path));
+        return bestIncluded >= 0 && bestIncluded > bestExcluded;
+    }
+
+    /**
+     * @return -1 when the pattern does not cover the path, otherwise the higher the more specific
+     */
+    private static int specificity(String pattern, String path) {
+        if (pattern.endsWith("/?")) {
+            return pattern.equals(path) ? Integer.MAX_VALUE : -1;
+        }
+        if (pattern.endsWith("/*")) {
+            String prefix = pattern.substring(0, pattern.length() - 1);
+            return path.startsWith(prefix) ? prefix.length() : -1;
+        }
+        return -1;
+    }
+
+    // system properties are written quoted, e.g. /"_etag"/?
+    private static String normalize(String path) {
+        return path == null ? "" : path.replace("\"", "");
+    }
+
+    private static List<String> paths(List<IncludedPath> included) {
+        List<String> result = new ArrayList<>();
+        for (IncludedPath p : included) result.add(p.getPath());
+        return result;
+    }
+
+    private static List<String> excludedPaths(List<ExcludedPath> excluded) {
+        List<String> result = new ArrayList<>();
+        for (ExcludedPath p : excluded) result.add(p.getPath());
+        return result;
+    }
+}
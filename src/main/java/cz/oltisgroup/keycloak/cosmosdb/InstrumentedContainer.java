@@ -0,0 +1,486 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.azure.cosmos.ConsistencyLevel;
+import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.CosmosDiagnostics;
+import com.azure.cosmos.CosmosDiagnosticsContext;
+import com.azure.cosmos.CosmosDiagnosticsRequestInfo;
+import com.azure.cosmos.CosmosEndToEndOperationLatencyPolicyConfig;
+import com.azure.cosmos.CosmosEndToEndOperationLatencyPolicyConfigBuilder;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.ThresholdBasedAvailabilityStrategy;
+import com.azure.cosmos.models.CosmosChangeFeedRequestOptions;
+import com.azure.cosmos.models.CosmosItemRequestOptions;
+import com.azure.cosmos.models.CosmosItemResponse;
+import com.azure.cosmos.models.CosmosPatchItemRequestOptions;
+import com.azure.cosmos.models.CosmosPatchOperations;
+import com.azure.cosmos.models.CosmosQueryRequestOptions;
+import com.azure.cosmos.models.FeedResponse;
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.cosmos.models.SqlQuerySpec;
+import com.azure.cosmos.util.CosmosPagedIterable;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Thin wrapper around {@link CosmosContainer} that records request charge, latency, status code
+ * and retry count of every call (see {@link CosmosDbMetrics}). Calls crossing the configured
+ * slow operation thresholds get their diagnostics logged and kept in {@link SlowOperationLog}.
+ * When an RU budget is configured, calls are admitted and accounted through {@link RuBudget}.
+ * Calls go through the container's {@link CircuitBreaker}, which fails them fast while Cosmos keeps failing.
+ * Requests carry the {@link RequestPriorities priority} of their operation class.
+ * Login reads run under the configured end-to-end latency policy, optionally hedged to the next preferred region.
+ * Queries take page size, parallelism, buffering and query metrics from the {@link QueryProfiles} profile
+ * of their operation, and are scoped to one partition when the caller knows the partition key.
+ * Queries and point reads run at the {@link ConsistencyLevels consistency level} of their operation class.
+ */
+public class InstrumentedContainer {
+
+    private static final Logger logger = Logger.getLogger(InstrumentedContainer.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // OperationCancelledException raised when the end-to-end latency policy cuts the operation
+    private static final int STATUS_REQUEST_TIMEOUT = 408;
+    private static final int SUBSTATUS_CLIENT_OPERATION_TIMEOUT = 20008;
+    private static final int STATUS_TOO_MANY_REQUESTS = 429;
+
+    private final CosmosContainer container;
+    private final CosmosDbConfig config;
+    private final RuBudget budget;
+    private final CircuitBreaker breaker;
+    private final CosmosEndToEndOperationLatencyPolicyConfig readLatencyPolicy;
+
+    public InstrumentedContainer(CosmosContainer container, CosmosDbConfig config) {
+        this.container = container;
+        this.config = config;
+        this.budget = RuBudget.forContainer(config, container.getId());
+        this.breaker = CircuitBreaker.forContainer(config, container.getId());
+        this.readLatencyPolicy = readLatencyPolicy(config);
+    }
+
+    private static CosmosEndToEndOperationLatencyPolicyConfig readLatencyPolicy(CosmosDbConfig config) {
+        if (config.getReadTimeoutMs() <= 0) return null;
+        CosmosEndToEndOperationLatencyPolicyConfigBuilder builder =
+                new CosmosEndToEndOperationLatencyPolicyConfigBuilder(Duration.ofMillis(config.getReadTimeoutMs()));
+        if (config.getHedgeThresholdMs() > 0 && config.getHedgeThresholdMs() < config.getReadTimeoutMs()) {
+            if (config.getPreferredRegions().size() < 2) {
+                logger.warn("Hedged reads configured but fewer than 2 preferred regions are set; reads will not be hedged");
+            }
+            builder.availabilityStrategy(new ThresholdBasedAvailabilityStrategy(
+                    Duration.ofMillis(config.getHedgeThresholdMs()), Duration.ofMillis(config.getHedgeThresholdStepMs())));
+        }
+        return builder.build();
+    }
+
+    public CosmosContainer getContainer() {
+        return container;
+    }
+
+    /**
+     * Run query and collect all results.
+     */
+    public <T> List<T> query(CosmosDbOperation op, SqlQuerySpec spec, Class<T> type) {
+        return query(op, spec, type, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Run query within one partition and collect all results.
+     */
+    public <T> List<T> query(CosmosDbOperation op, SqlQuerySpec spec, Class<T> type, PartitionKey partitionKey) {
+        return query(op, spec, type, Integer.MAX_VALUE, partitionKey);
+    }
+
+    /**
+     * Run query and collect at most maxItems results; remaining pages are not fetched.
+     */
+    public <T> List<T> query(CosmosDbOperation op, SqlQuerySpec spec, Class<T> type, int maxItems) {
+        return query(op, spec, type, maxItems, null);
+    }
+
+    private <T> List<T> query(CosmosDbOperation op, SqlQuerySpec spec, Class<T> type, int maxItems, PartitionKey partitionKey) {
+        List<T> results = new ArrayList<>();
+        List<CosmosDiagnostics> diagnostics = new ArrayList<>(1);
+        CallState call = begin(op);
+        try {
+            for (FeedResponse<T> page : pages(op, spec, type, maxItems, partitionKey)) {
+                call.charge += page.getRequestCharge();
+                diagnostics.add(page.getCosmosDiagnostics());
+                for (T item : page.getResults()) {
+                    results.add(item);
+                    if (results.size() >= maxItems) {
+                        complete(call, spec, 200, diagnostics);
+                        reportReadOutcome(op, null, diagnostics);
+                        return results;
+                    }
+                }
+            }
+            complete(call, spec, 200, diagnostics);
+            reportReadOutcome(op, null, diagnostics);
+            return results;
+        } catch (CosmosException ex) {
+            call.charge += ex.getRequestCharge();
+            diagnostics.add(ex.getDiagnostics());
+            complete(call, spec, ex.getStatusCode(), diagnostics);
+            reportReadOutcome(op, ex, diagnostics);
+            throw ex;
+        } finally {
+            end(call);
+        }
+    }
+
+    /**
+     * Run query lazily: pages are fetched while the stream is consumed and each page fetch is
+     * recorded (and admitted by the RU budget) as one call, so an abandoned stream holds nothing.
+     */
+    public <T> Stream<T> stream(CosmosDbOperation op, SqlQuerySpec spec, Class<T> type) {
+        return stream(op, spec, type, null);
+    }
+
+    /**
+     * Run query lazily within one partition (all partitions when partitionKey is null).
+     */
+    public <T> Stream<T> stream(CosmosDbOperation op, SqlQuerySpec spec, Class<T> type, PartitionKey partitionKey) {
+        Iterator<FeedResponse<T>> pages = pages(op, spec, type, Integer.MAX_VALUE, partitionKey).iterator();
+        Iterator<List<T>> metered = new Iterator<>() {
+            private List<T> next;
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !done) {
+                    next = fetchPage(op, spec, pages);
+                    done = next == null;
+                }
+                return next != null;
+            }
+
+            @Override
+            public List<T> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                List<T> page = next;
+                next = null;
+                return page;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(metered, Spliterator.ORDERED), false)
+                .flatMap(List::stream);
+    }
+
+    /**
+     * Read the change feed page by page until it is caught up, each page recorded as one call.
+     * @return continuation after the last page
+     */
+    public String changeFeed(CosmosDbOperation op, CosmosChangeFeedRequestOptions options, Consumer<List<JsonNode>> consumer) {
+        String priorityGroup = config.getRequestPriorities().groupFor(op);
+        if (priorityGroup != null) {
+            options.setThroughputControlGroupName(priorityGroup);
+        }
+        Iterator<FeedResponse<JsonNode>> pages = container.queryChangeFeed(options, JsonNode.class).iterableByPage().iterator();
+        String continuation = null;
+        FeedResponse<JsonNode> page;
+        while ((page = fetchResponse(op, null, pages)) != null) {
+            continuation = page.getContinuationToken();
+            if (!page.getResults().isEmpty()) {
+                consumer.accept(page.getResults());
+            }
+        }
+        return continuation;
+    }
+
+    private <T> List<T> fetchPage(CosmosDbOperation op, SqlQuerySpec spec, Iterator<FeedResponse<T>> pages) {
+        FeedResponse<T> page = fetchResponse(op, spec, pages);
+        return page == null ? null : page.getResults();
+    }
+
+    private <T> FeedResponse<T> fetchResponse(CosmosDbOperation op, SqlQuerySpec spec, Iterator<FeedResponse<T>> pages) {
+        CallState call = begin(op);
+        try {
+            // hasNext() performs the round trip of the next page
+            if (!pages.hasNext()) {
+                // exhausted: a normal end of the query or change feed
+                call.statusCode = 200;
+                return null;
+            }
+            FeedResponse<T> page = pages.next();
+            call.charge = page.getRequestCharge();
+            List<CosmosDiagnostics> diagnostics = Collections.singletonList(page.getCosmosDiagnostics());
+            complete(call, spec, 200, diagnostics);
+            reportReadOutcome(op, null, diagnostics);
+            return page;
+        } catch (CosmosException ex) {
+            call.charge = ex.getRequestCharge();
+            List<CosmosDiagnostics> diagnostics = Collections.singletonList(ex.getDiagnostics());
+            complete(call, spec, ex.getStatusCode(), diagnostics);
+            reportReadOutcome(op, ex, diagnostics);
+            throw ex;
+        } finally {
+            end(call);
+        }
+    }
+
+    private <T> Iterable<FeedResponse<T>> pages(CosmosDbOperation op, SqlQuerySpec spec, Class<T> type, int maxItems, PartitionKey partitionKey) {
+        QueryProfiles.Options profile = config.getQueryProfiles().forOperation(op);
+        CosmosQueryRequestOptions options = profile.apply(new CosmosQueryRequestOptions());
+        if (partitionKey != null) {
+            options.setPartitionKey(partitionKey);
+        }
+        ConsistencyLevel consistency = config.getConsistencyLevels().forOperation(op);
+        if (consistency != null) {
+            options.setConsistencyLevel(consistency);
+        }
+        String priorityGroup = config.getRequestPriorities().groupFor(op);
+        if (priorityGroup != null) {
+            options.setThroughputControlGroupName(priorityGroup);
+        }
+        if (latencyPolicy(op) != null) {
+            options.setCosmosEndToEndOperationLatencyPolicyConfig(latencyPolicy(op));
+        }
+        CosmosPagedIterable<T> items = container.queryItems(spec, options, type);
+        Integer pageSize = profile.pageSize(maxItems);
+        return pageSize == null ? items.iterableByPage() : items.iterableByPage(pageSize);
+    }
+
+    /**
+     * @return first query result or null
+     */
+    public <T> T queryFirst(CosmosDbOperation op, SqlQuerySpec spec, Class<T> type) {
+        List<T> results = query(op, spec, type, 1);
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    public CosmosItemResponse<JsonNode> read(CosmosDbOperation op, String id, PartitionKey partitionKey, CosmosItemRequestOptions options) {
+        ConsistencyLevel consistency = config.getConsistencyLevels().forOperation(op);
+        if (consistency != null) {
+            options.setConsistencyLevel(consistency);
+        }
+        if (latencyPolicy(op) != null) {
+            options.setCosmosEndToEndOperationLatencyPolicyConfig(latencyPolicy(op));
+        }
+        return point(op, () -> container.readItem(id, partitionKey, itemOptions(op, options), JsonNode.class));
+    }
+
+    public <T> CosmosItemResponse<T> create(CosmosDbOperation op, T item) {
+        return point(op, () -> container.createItem(item, itemOptions(op, new CosmosItemRequestOptions())));
+    }
+
+    public <T> CosmosItemResponse<T> upsert(CosmosDbOperation op, T item) {
+        return point(op, () -> container.upsertItem(item, itemOptions(op, new CosmosItemRequestOptions())));
+    }
+
+    public CosmosItemResponse<JsonNode> patch(CosmosDbOperation op, String id, PartitionKey partitionKey, CosmosPatchOperations operations) {
+        return point(op, () -> container.patchItem(id, partitionKey, operations,
+                itemOptions(op, new CosmosPatchItemRequestOptions()), JsonNode.class));
+    }
+
+    public CosmosItemResponse<Object> delete(CosmosDbOperation op, String id, PartitionKey partitionKey) {
+        return point(op, () -> container.deleteItem(id, partitionKey, itemOptions(op, new CosmosItemRequestOptions())));
+    }
+
+    private <O extends CosmosItemRequestOptions> O itemOptions(CosmosDbOperation op, O options) {
+        String priorityGroup = config.getRequestPriorities().groupFor(op);
+        if (priorityGroup != null) {
+            options.setThroughputControlGroupName(priorityGroup);
+        }
+        return options;
+    }
+
+    private <T> CosmosItemResponse<T> point(CosmosDbOperation op, Supplier<CosmosItemResponse<T>> request) {
+        CallState call = begin(op);
+        try {
+            CosmosItemResponse<T> response = request.get();
+            call.charge = response.getRequestCharge();
+            complete(call, null, response.getStatusCode(), Collections.singletonList(response.getDiagnostics()));
+            return response;
+        } catch (CosmosException ex) {
+            call.charge = ex.getRequestCharge();
+            complete(call, null, ex.getStatusCode(), Collections.singletonList(ex.getDiagnostics()));
+            throw ex;
+        } finally {
+            end(call);
+        }
+    }
+
+    /**
+     * @return end-to-end latency policy of the operation: the read timeout bounds the login path only,
+     * search, count and sync are not cut by a timeout tuned for logins
+     */
+    private CosmosEndToEndOperationLatencyPolicyConfig latencyPolicy(CosmosDbOperation op) {
+        return op.operationClass() == CosmosDbOperation.OperationClass.LOGIN ? readLatencyPolicy : null;
+    }
+
+    private void reportReadOutcome(CosmosDbOperation op, CosmosException ex, List<CosmosDiagnostics> diagnostics) {
+        if (latencyPolicy(op) == null) return;
+        if (ex != null && ex.getStatusCode() == STATUS_REQUEST_TIMEOUT && ex.getSubStatusCode() == SUBSTATUS_CLIENT_OPERATION_TIMEOUT) {
+            CosmosDbMetrics.readOutcome(op, "timeout");
+            logger.warnf("Cosmos read %s cancelled after end-to-end timeout of %d ms", op.tag(), config.getReadTimeoutMs());
+            return;
+        }
+        for (CosmosDiagnostics d : diagnostics) {
+            CosmosDiagnosticsContext ctx = d == null ? null : d.getDiagnosticsContext();
+            if (ctx != null && ctx.getContactedRegionNames().size() > 1) {
+                CosmosDbMetrics.readOutcome(op, "hedged");
+                logger.debugf("Cosmos read %s contacted regions %s", op.tag(), ctx.getContactedRegionNames());
+                return;
+            }
+        }
+    }
+
+    private static final class CallState {
+        final CosmosDbOperation op;
+        final long start = System.nanoTime();
+        double charge;
+        boolean throttled;
+        // 0 until the call completed with a response or a CosmosException
+        int statusCode;
+        CallState(CosmosDbOperation op) { this.op = op; }
+    }
+
+    private CallState begin(CosmosDbOperation op) {
+        if (breaker != null) {
+            breaker.admit(op);
+        }
+        if (budget != null) {
+            try {
+                budget.admit(op);
+            } catch (RuntimeException e) {
+                if (breaker != null) breaker.abandon();
+                throw e;
+            }
+        }
+        return new CallState(op);
+    }
+
+    private void end(CallState call) {
+        if (budget != null) {
+            budget.complete(call.op, call.charge, call.throttled);
+        }
+        if (breaker != null) {
+            // no status: the call failed before reaching Cosmos DB (e.g. serialization), not a Cosmos failure
+            if (call.statusCode == 0) {
+                breaker.abandon();
+            } else {
+                breaker.complete(call.op, call.statusCode);
+            }
+        }
+    }
+
+    private void complete(CallState call, SqlQuerySpec spec, int statusCode, List<CosmosDiagnostics> diagnostics) {
+        long latencyNanos = System.nanoTime() - call.start;
+        call.statusCode = statusCode;
+        int retries = 0;
+        Set<String> regions = new TreeSet<>();
+        for (CosmosDiagnostics d : diagnostics) {
+            CosmosDiagnosticsContext ctx = d == null ? null : d.getDiagnosticsContext();
+            if (ctx == null) continue;
+            retries += ctx.getRetryCount();
+            regions.addAll(ctx.getContactedRegionNames());
+        }
+        recordRegions(call.op, regions, latencyNanos);
+        // only the RU budget reacts to throttling; other retries (timeouts, failover) do not count
+        call.throttled = budget != null && (statusCode == STATUS_TOO_MANY_REQUESTS
+                || (retries > 0 && retriedAfterThrottling(diagnostics)));
+        CosmosDbMetrics.recordCall(call.op, call.charge, latencyNanos, statusCode, retries);
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+        if (config.getSlowOperationThresholds().isSlow(call.op, latencyMs, call.charge)) {
+            captureSlowOperation(call.op, spec, call.charge, latencyMs, statusCode, retries, diagnostics);
+        }
+    }
+
+    /**
+     * @return true when the SDK retried a request of the call after 429; the public diagnostics API has no
+     * per-retry status, so it is read from the retry context of the diagnostics JSON (only for calls with retries)
+     */
+    static boolean retriedAfterThrottling(List<CosmosDiagnostics> diagnostics) {
+        for (CosmosDiagnostics d : diagnostics) {
+            if (d != null && retriedAfterThrottling(d.toString())) return true;
+        }
+        return false;
+    }
+
+    static boolean retriedAfterThrottling(String diagnosticsJson) {
+        try {
+            for (JsonNode codes : MAPPER.readTree(diagnosticsJson).findValues("statusAndSubStatusCodes")) {
+                for (JsonNode code : codes) {
+                    if (code.path(0).asInt() == STATUS_TOO_MANY_REQUESTS) return true;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debugf("Cosmos diagnostics without readable retry context: %s", e.getMessage());
+        }
+        return false;
+    }
+
+    private void recordRegions(CosmosDbOperation op, Set<String> regions, long latencyNanos) {
+        if (regions.isEmpty()) return;
+        String region = String.join("+", regions);
+        CosmosDbMetrics.regionCall(region, latencyNanos);
+        if (regions.size() > 1) {
+            CosmosDbMetrics.regionFailover(op);
+        } else if (!config.getPreferredRegions().isEmpty()
+                && !NodeRegions.normalize(region).equals(NodeRegions.normalize(config.getPreferredRegions().get(0)))) {
+            CosmosDbMetrics.regionRemote(region);
+        }
+    }
+
+    private void captureSlowOperation(CosmosDbOperation op, SqlQuerySpec spec, double charge, long latencyMs,
+                                      int statusCode, int retries, List<CosmosDiagnostics> diagnostics) {
+        Set<String> partitionRanges = new TreeSet<>();
+        Set<String> regions = new TreeSet<>();
+        Map<String, Integer> requestsByType = new TreeMap<>();
+        StringBuilder details = new StringBuilder("[");
+        for (CosmosDiagnostics d : diagnostics) {
+            CosmosDiagnosticsContext ctx = d == null ? null : d.getDiagnosticsContext();
+            if (ctx == null) continue;
+            regions.addAll(ctx.getContactedRegionNames());
+            for (CosmosDiagnosticsRequestInfo info : ctx.getRequestInfo()) {
+                if (info.getPartitionKeyRangeId() != null) partitionRanges.add(info.getPartitionKeyRangeId());
+                requestsByType.merge(info.getRequestType(), 1, Integer::sum);
+            }
+            if (details.length() > 1) details.append(',');
+            // includes per-request timeline and query metrics (when enabled in the query profile)
+            details.append(ctx.toJson());
+        }
+        details.append(']');
+        String entry = String.format("op=%s latencyMs=%d ru=%.2f status=%d retries=%d queryHash=%s partitionRanges=%s regions=%s requests=%s pages=%d container=%s diagnostics=%s",
+                op.tag(), latencyMs, charge, statusCode, retries, spec == null ? "-" : queryHash(spec.getQueryText()),
+                partitionRanges, regions, requestsByType, diagnostics.size(), container.getId(), details);
+        logger.warnf("Slow Cosmos operation %s", entry);
+        SlowOperationLog.getInstance().add(java.time.Instant.now() + " " + entry, config.getSlowOperationLogSize());
+    }
+
+    static String queryHash(String queryText) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(queryText.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(queryText.hashCode());
+        }
+    }
+}
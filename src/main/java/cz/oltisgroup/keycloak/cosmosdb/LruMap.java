@@ -0,0 +1,33 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded map that evicts the least recently used entry once full, for node-wide caches that
+ * must not be flushed as a whole in the middle of a login storm.
+ */
+final class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int maxEntries;
+
+    private LruMap(int maxEntries) {
+        super(16, 0.75f, true);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return thread-safe map; iterating its views requires synchronizing on the map
+     */
+    static <K, V> Map<K, V> create(int maxEntries) {
+        return Collections.synchronizedMap(new LruMap<>(maxEntries));
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > maxEntries;
+    }
+}
@@ -0,0 +1,75 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Region settings of this Keycloak node, taken from the SPI configuration of the provider factory, so
+ * that every node of a multi-region deployment reads from its own Cosmos DB region while the component
+ * configuration (shared by all nodes through the database) stays the same. E.g. in the environment:
+ *
+ * KC_SPI_STORAGE_COSMOSDB_USER_PROVIDER_LOCAL_REGION=West Europe
+ * KC_SPI_STORAGE_COSMOSDB_USER_PROVIDER_PREFERRED_REGIONS=West Europe,North Europe
+ * KC_SPI_STORAGE_COSMOSDB_USER_PROVIDER_EXCLUDED_REGIONS=East US
+ *
+ * The local region comes first, followed by the node's preferred regions, or the component's when the
+ * node sets none. Excluded regions of the node and of the component are both excluded.
+ */
+final class NodeRegions {
+
+    private static final Logger logger = Logger.getLogger(NodeRegions.class);
+
+    static final String LOCAL_REGION = "localRegion";
+    static final String PREFERRED_REGIONS = "preferredRegions";
+    static final String EXCLUDED_REGIONS = "excludedRegions";
+
+    private static volatile String localRegion;
+    private static volatile List<String> preferredRegions = Collections.emptyList();
+    private static volatile List<String> excludedRegions = Collections.emptyList();
+
+    private NodeRegions() {}
+
+    static void configure(String local, String preferred, String excluded) {
+        localRegion = local == null || local.isBlank() ? null : local.trim();
+        preferredRegions = CosmosDbConfig.listValue(preferred);
+        excludedRegions = CosmosDbConfig.listValue(excluded);
+        if (localRegion != null || !preferredRegions.isEmpty() || !excludedRegions.isEmpty()) {
+            logger.infof("Node Cosmos DB regions: local=%s preferred=%s excluded=%s", localRegion, preferredRegions, excludedRegions);
+        }
+    }
+
+    static List<String> preferred(List<String> componentRegions) {
+        Map<String, String> regions = new LinkedHashMap<>();
+        if (localRegion != null) regions.put(normalize(localRegion), localRegion);
+        for (String region : preferredRegions.isEmpty() ? componentRegions : preferredRegions) {
+            regions.putIfAbsent(normalize(region), region);
+        }
+        return Collections.unmodifiableList(new ArrayList<>(regions.values()));
+    }
+
+    static List<String> excluded(List<String> componentRegions) {
+        Set<String> seen = new LinkedHashSet<>();
+        List<String> regions = new ArrayList<>();
+        for (List<String> source : List.of(componentRegions, excludedRegions)) {
+            for (String region : source) {
+                if (seen.add(normalize(region))) regions.add(region);
+            }
+        }
+        return Collections.unmodifiableList(regions);
+    }
+
+    /**
+     * Region names as reported in diagnostics ("westeurope" and "West Europe" are the same region).
+     */
+    static String normalize(String region) {
+        return region.replace(" ", "").toLowerCase(Locale.ROOT);
+    }
+}
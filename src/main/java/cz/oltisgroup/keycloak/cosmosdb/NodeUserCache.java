@@ -0,0 +1,141 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.jboss.logging.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Node-wide cache of active user documents by username (componentId|lowercase username), shared by
+ * all sessions so that logins keep working through throttling or a regional incident.
+ *
+ * Within the TTL an entry is served as is; a hit in the last quarter of the TTL refreshes it in the
+ * background, so hot users never expire. Past the TTL an entry is still served immediately while a
+ * background refresh runs (stale-while-revalidate), until the stale limit: when refreshes keep failing,
+ * e.g. with the {@link CircuitBreaker} open, older entries are dropped and logins fail as before.
+ *
+ * Entries are copies, because documents are modified in place by the update helpers. Writes of this
+ * node and the change feed sync remove the entry; other nodes see a change after at most the TTL, or
+ * TTL + stale limit while refreshes fail. Stale hits are reported as such so that passwords are not
+ * checked against them. The cache is bounded by evicting the least recently used entry.
+ */
+final class NodeUserCache {
+
+    private static final Logger logger = Logger.getLogger(NodeUserCache.class);
+
+    private static final int MAX_ENTRIES = 100_000;
+    private static final Map<String, Entry> ENTRIES = LruMap.create(MAX_ENTRIES);
+    private static final double REFRESH_AHEAD = 0.75;
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+    private static final ExecutorService REFRESHER = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(1000), r -> {
+                Thread t = new Thread(r, "cosmosdb-refresh-" + THREADS.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+
+    /**
+     * Copy of a cached document; stale when it is past the TTL and served while a refresh runs.
+     */
+    static final class Hit {
+        final JsonNode doc;
+        final boolean stale;
+        Hit(JsonNode doc, boolean stale) { this.doc = doc; this.stale = stale; }
+    }
+
+    private static final class Entry {
+        final JsonNode doc;
+        final long loadedAt = System.currentTimeMillis();
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        Entry(JsonNode doc) { this.doc = doc; }
+    }
+
+    static {
+        ((ThreadPoolExecutor) REFRESHER).allowCoreThreadTimeOut(true);
+    }
+
+    private NodeUserCache() {}
+
+    /**
+     * @param loader loads the current document (null when the user is gone or inactive) outside any session
+     * @return copy of the cached document, null on a miss or when the entry is older than the stale limit
+     */
+    static Hit get(String key, CosmosDbConfig config, Supplier<JsonNode> loader) {
+        long ttl = config.getUserCacheSeconds() * 1000L;
+        if (ttl <= 0) return null;
+        Entry entry = ENTRIES.get(key);
+        if (entry == null) {
+            CosmosDbMetrics.cacheMiss("node");
+            return null;
+        }
+        long age = System.currentTimeMillis() - entry.loadedAt;
+        if (age < ttl) {
+            CosmosDbMetrics.cacheHit("node");
+            if (age >= ttl * REFRESH_AHEAD) {
+                refresh(key, entry, loader);
+            }
+            return new Hit(entry.doc.deepCopy(), false);
+        }
+        if (age < ttl + config.getUserCacheStaleSeconds() * 1000L) {
+            CosmosDbMetrics.cacheStale("node");
+            refresh(key, entry, loader);
+            return new Hit(entry.doc.deepCopy(), true);
+        }
+        ENTRIES.remove(key, entry);
+        CosmosDbMetrics.cacheMiss("node");
+        return null;
+    }
+
+    /**
+     * Store the result of a lookup; null removes the entry.
+     */
+    static void put(String key, JsonNode doc, CosmosDbConfig config) {
+        if (config.getUserCacheSeconds() <= 0) return;
+        if (doc == null) {
+            ENTRIES.remove(key);
+            return;
+        }
+        ENTRIES.put(key, new Entry(doc.deepCopy()));
+    }
+
+    static void remove(String key) {
+        ENTRIES.remove(key);
+    }
+
+    static void removeComponent(String componentId) {
+        synchronized (ENTRIES) {
+            ENTRIES.keySet().removeIf(key -> key.startsWith(componentId + "|"));
+        }
+    }
+
+    private static void refresh(String key, Entry entry, Supplier<JsonNode> loader) {
+        if (!entry.refreshing.compareAndSet(false, true)) return;
+        try {
+            REFRESHER.execute(() -> {
+                try {
+                    JsonNode doc = loader.get();
+                    // an entry removed or replaced meanwhile (write, change feed) is not brought back
+                    if (doc == null) {
+                        ENTRIES.remove(key, entry);
+                    } else {
+                        ENTRIES.replace(key, entry, new Entry(doc));
+                    }
+                } catch (RuntimeException e) {
+                    logger.debugf("Background refresh of %s failed: %s", key, e.getMessage());
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+}
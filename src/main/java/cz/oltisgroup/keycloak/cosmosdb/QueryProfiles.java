@@ -0,0 +1,172 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.azure.cosmos.models.CosmosQueryRequestOptions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Query options per kind of query, so that single-user lookups and large scans do not share one
+ * page size, degree of parallelism and buffering. Each operation class maps to a profile:
+ * LOGIN and WRITE to login, SEARCH to search, COUNT to count, MAINTENANCE to scan.
+ *
+ * Overrides are given as "profile.setting=value" entries, e.g. "search.pageSize=200,scan.parallelism=2",
+ * settings being parallelism (max degree of parallelism, -1 = decided by the SDK), buffer (max buffered
+ * items, -1 = decided by the SDK), pageSize (0 = decided by the service) and metrics (query metrics in
+ * diagnostics). Invalid entries are dropped and reported by {@link #getErrors()}.
+ */
+public final class QueryProfiles {
+
+    public enum Profile {
+        // lookups expect at most a few documents: small pages, fan out to all partitions at once
+        LOGIN(-1, 10, 10, false),
+        // admin search pages of tens of users
+        SEARCH(-1, 100, 100, true),
+        // single aggregate value per partition
+        COUNT(-1, -1, 0, true),
+        // sync and other bulk reads: large pages, bounded fan out so foreground traffic keeps its share
+        SCAN(2, 1000, 1000, true);
+
+        final int parallelism;
+        final int buffer;
+        final int pageSize;
+        final boolean metrics;
+
+        Profile(int parallelism, int buffer, int pageSize, boolean metrics) {
+            this.parallelism = parallelism;
+            this.buffer = buffer;
+            this.pageSize = pageSize;
+            this.metrics = metrics;
+        }
+
+        public static Profile of(CosmosDbOperation.OperationClass operationClass) {
+            switch (operationClass) {
+                case SEARCH: return SEARCH;
+                case COUNT: return COUNT;
+                case MAINTENANCE: return SCAN;
+                default: return LOGIN;
+            }
+        }
+    }
+
+    /**
+     * Options of one profile.
+     */
+    public static final class Options {
+        private int parallelism;
+        private int buffer;
+        private int pageSize;
+        private boolean metrics;
+
+        Options(Profile profile) {
+            this.parallelism = profile.parallelism;
+            this.buffer = profile.buffer;
+            this.pageSize = profile.pageSize;
+            this.metrics = profile.metrics;
+        }
+
+        public int getParallelism() { return parallelism; }
+        public int getBuffer() { return buffer; }
+        public int getPageSize() { return pageSize; }
+        public boolean isMetrics() { return metrics; }
+
+        /**
+         * @return page size for a query that needs at most maxItems results, null to leave it to the service
+         */
+        public Integer pageSize(int maxItems) {
+            if (pageSize <= 0) return maxItems < Integer.MAX_VALUE ? maxItems : null;
+            return Math.min(pageSize, maxItems);
+        }
+
+        public CosmosQueryRequestOptions apply(CosmosQueryRequestOptions options) {
+            options.setMaxDegreeOfParallelism(parallelism);
+            options.setMaxBufferedItemCount(buffer);
+            options.setQueryMetricsEnabled(metrics);
+            return options;
+        }
+
+        @Override
+        public String toString() {
+            return "parallelism=" + parallelism + " buffer=" + buffer + " pageSize=" + pageSize + " metrics=" + metrics;
+        }
+    }
+
+    private final Map<Profile, Options> options = new EnumMap<>(Profile.class);
+    private final List<String> errors = new ArrayList<>();
+
+    private QueryProfiles(String spec) {
+        for (Profile profile : Profile.values()) {
+            options.put(profile, new Options(profile));
+        }
+        if (spec == null || spec.isBlank()) return;
+        for (String part : spec.split(",")) {
+            String token = part.trim();
+            if (token.isEmpty()) continue;
+            int dot = token.indexOf('.');
+            int eq = token.indexOf('=');
+            if (dot < 0 || eq < dot) {
+                errors.add("Invalid query profile entry '" + token + "', expected profile.setting=value");
+                continue;
+            }
+            Profile profile = profile(token.substring(0, dot).trim());
+            if (profile == null) {
+                errors.add("Unknown query profile in '" + token + "', expected login, search, count or scan");
+                continue;
+            }
+            String setting = token.substring(dot + 1, eq).trim();
+            String value = token.substring(eq + 1).trim();
+            try {
+                set(options.get(profile), setting, value);
+            } catch (NumberFormatException e) {
+                errors.add("Invalid value in query profile entry '" + token + "'");
+            } catch (IllegalArgumentException e) {
+                errors.add(e.getMessage() + " in query profile entry '" + token + "'");
+            }
+        }
+    }
+
+    public static QueryProfiles parse(String spec) {
+        return new QueryProfiles(spec);
+    }
+
+    private static Profile profile(String name) {
+        for (Profile profile : Profile.values()) {
+            if (profile.name().equalsIgnoreCase(name)) return profile;
+        }
+        return null;
+    }
+
+    private static void set(Options options, String setting, String value) {
+        switch (setting.toLowerCase(Locale.ROOT)) {
+            case "parallelism": options.parallelism = Integer.parseInt(value); break;
+            case "buffer": options.buffer = Integer.parseInt(value); break;
+            case "pagesize": options.pageSize = Math.max(0, Integer.parseInt(value)); break;
+            case "metrics": options.metrics = Boolean.parseBoolean(value); break;
+            default: throw new IllegalArgumentException("Unknown setting '" + setting + "'");
+        }
+    }
+
+    public Options forOperation(CosmosDbOperation op) {
+        return options.get(Profile.of(op.operationClass()));
+    }
+
+    public Options get(Profile profile) {
+        return options.get(profile);
+    }
+
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        options.forEach((profile, o) -> sb.append(sb.length() == 0 ? "" : ", ")
+                .append(profile.name().toLowerCase(Locale.ROOT)).append(" {").append(o).append('}'));
+        return sb.toString();
+    }
+}
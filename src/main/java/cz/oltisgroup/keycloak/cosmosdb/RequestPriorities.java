@@ -0,0 +1,127 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.azure.cosmos.CosmosClient;
+import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.ThroughputControlGroupConfigBuilder;
+import com.azure.cosmos.models.PriorityLevel;
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Priority of requests per operation class for priority-based execution: when the account is throttled,
+ * Cosmos DB drops low priority requests first, so background work gives way to logins.
+ * Format: default priority followed by optional overrides, e.g. "high,search=low,count=low,maintenance=low"
+ * (class names as in {@link CosmosDbOperation.OperationClass}); "off" sends no priority.
+ *
+ * SDK 4.53 takes the priority from a throughput control group, so every container gets two local
+ * groups without throughput limit, one per priority, and each request names the group of its priority.
+ * Priority-based execution has to be enabled on the account, otherwise the priority is ignored.
+ */
+public final class RequestPriorities {
+
+    private static final Logger logger = Logger.getLogger(RequestPriorities.class);
+
+    public static final String DEFAULT = "high,search=low,count=low,maintenance=low";
+    public static final String OFF = "off";
+
+    static final String HIGH_GROUP = "cosmosdb-priority-high";
+    static final String LOW_GROUP = "cosmosdb-priority-low";
+
+    // containers (database/container) whose groups are enabled, per client
+    private static final Map<CosmosClient, Set<String>> ENABLED = new WeakHashMap<>();
+
+    private final boolean enabled;
+    private final PriorityLevel defaultPriority;
+    private final Map<CosmosDbOperation.OperationClass, PriorityLevel> priorities = new EnumMap<>(CosmosDbOperation.OperationClass.class);
+    private final List<String> errors = new ArrayList<>();
+
+    private RequestPriorities(String spec) {
+        this.enabled = !OFF.equalsIgnoreCase(spec.trim());
+        PriorityLevel defaultValue = PriorityLevel.HIGH;
+        for (String part : enabled ? spec.split(",") : new String[0]) {
+            String token = part.trim();
+            if (token.isEmpty()) continue;
+            int eq = token.indexOf('=');
+            PriorityLevel priority = priority(eq < 0 ? token : token.substring(eq + 1));
+            if (priority == null) {
+                errors.add("Invalid priority in '" + token + "', expected high or low");
+                continue;
+            }
+            if (eq < 0) {
+                defaultValue = priority;
+                continue;
+            }
+            CosmosDbOperation.OperationClass operationClass = operationClass(token.substring(0, eq));
+            if (operationClass == null) {
+                errors.add("Unknown operation class in priority '" + token + "', expected login, write, search, count or maintenance");
+            } else {
+                priorities.put(operationClass, priority);
+            }
+        }
+        this.defaultPriority = defaultValue;
+    }
+
+    public static RequestPriorities parse(String spec) {
+        return new RequestPriorities(spec == null || spec.isBlank() ? DEFAULT : spec);
+    }
+
+    private static PriorityLevel priority(String name) {
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "high": return PriorityLevel.HIGH;
+            case "low": return PriorityLevel.LOW;
+            default: return null;
+        }
+    }
+
+    private static CosmosDbOperation.OperationClass operationClass(String name) {
+        for (CosmosDbOperation.OperationClass operationClass : CosmosDbOperation.OperationClass.values()) {
+            if (operationClass.name().equalsIgnoreCase(name.trim())) return operationClass;
+        }
+        return null;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return throughput control group carrying the priority of the operation, null when priorities are off
+     */
+    public String groupFor(CosmosDbOperation op) {
+        if (!enabled) return null;
+        return priorities.getOrDefault(op.operationClass(), defaultPriority) == PriorityLevel.LOW ? LOW_GROUP : HIGH_GROUP;
+    }
+
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * Enable the priority groups on the container, once per client.
+     */
+    static void enableGroups(CosmosClient client, CosmosContainer container, String databaseName) {
+        synchronized (ENABLED) {
+            if (!ENABLED.computeIfAbsent(client, c -> new HashSet<>()).add(databaseName + "/" + container.getId())) {
+                return;
+            }
+        }
+        try {
+            container.enableLocalThroughputControlGroup(new ThroughputControlGroupConfigBuilder()
+                    .groupName(HIGH_GROUP).priorityLevel(PriorityLevel.HIGH).continueOnInitError(true).build());
+            container.enableLocalThroughputControlGroup(new ThroughputControlGroupConfigBuilder()
+                    .groupName(LOW_GROUP).priorityLevel(PriorityLevel.LOW).continueOnInitError(true).build());
+        } catch (RuntimeException e) {
+            logger.warnf("Priority groups of container %s/%s not enabled, requests are sent without priority: %s",
+                    databaseName, container.getId(), e.getMessage());
+        }
+    }
+}
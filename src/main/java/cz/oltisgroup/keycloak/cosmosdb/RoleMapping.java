@@ -0,0 +1,94 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Mapping of values of the extra collection's role field to Keycloak roles, e.g.
+ * "user=offline_access,admin=realm-admin,dispatcher=my-app.dispatcher" (client roles as clientId.roleName).
+ *
+ * Role names are resolved to role ids once per node and realm; roles missing in the realm are skipped
+ * until the cache is invalidated by a component update.
+ */
+public final class RoleMapping {
+
+    private static final Logger logger = Logger.getLogger(RoleMapping.class);
+
+    // realmId|spec -> cosmos role value -> role id
+    private static final Map<String, Map<String, String>> RESOLVED = new ConcurrentHashMap<>();
+
+    private final String spec;
+    private final Map<String, String> roleNames = new LinkedHashMap<>();
+    private final List<String> errors = new ArrayList<>();
+
+    private RoleMapping(String spec) {
+        this.spec = spec;
+        for (String part : spec.split(",")) {
+            String token = part.trim();
+            if (token.isEmpty()) continue;
+            int eq = token.indexOf('=');
+            String value = eq < 0 ? "" : token.substring(0, eq).trim();
+            String role = eq < 0 ? "" : token.substring(eq + 1).trim();
+            if (value.isEmpty() || role.isEmpty()) {
+                errors.add("Invalid role mapping '" + token + "', expected cosmosRole=keycloakRole");
+            } else {
+                roleNames.put(value, role);
+            }
+        }
+    }
+
+    public static RoleMapping parse(String spec) {
+        return new RoleMapping(spec == null ? "" : spec.trim());
+    }
+
+    public static void invalidate() {
+        RESOLVED.clear();
+    }
+
+    public boolean isEnabled() {
+        return !roleNames.isEmpty();
+    }
+
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * @return role ids by Cosmos role value, resolved on first use in the realm
+     */
+    public Map<String, String> resolve(RealmModel realm) {
+        return RESOLVED.computeIfAbsent(realm.getId() + "|" + spec, k -> {
+            Map<String, String> ids = new LinkedHashMap<>();
+            roleNames.forEach((value, roleName) -> {
+                RoleModel role = KeycloakModelUtils.getRoleFromString(realm, roleName);
+                if (role == null) {
+                    logger.warnf("Role '%s' mapped from Cosmos role '%s' does not exist in realm %s", roleName, value, realm.getName());
+                } else {
+                    ids.put(value, role.getId());
+                }
+            });
+            logger.infof("Cosmos role mapping resolved for realm %s: %s", realm.getName(), ids.keySet());
+            return Collections.unmodifiableMap(ids);
+        });
+    }
+
+    /**
+     * @return Cosmos role values mapped to the role
+     */
+    public List<String> valuesFor(RealmModel realm, RoleModel role) {
+        List<String> values = new ArrayList<>();
+        resolve(realm).forEach((value, roleId) -> {
+            if (roleId.equals(role.getId())) values.add(value);
+        });
+        return values;
+    }
+}
@@ -0,0 +1,135 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.ModelException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node-wide client-side RU budget for one container.
+ *
+ * Two token buckets are fed by the actual request charge of every call: the total bucket (refilled at
+ * the configured RU/s) and the background bucket (refilled at the configured share of it). Login and
+ * write calls are never delayed, they only drain the total bucket. Background calls (search, count,
+ * maintenance) are admitted only while both buckets are positive, so they back off when logins eat the budget.
+ *
+ * Background calls additionally go through an AIMD concurrency limit: +1/limit per clean background call,
+ * halved whenever any call was throttled (429, finally or through the SDK's throttling retries).
+ */
+public final class RuBudget {
+
+    private static final Logger logger = Logger.getLogger(RuBudget.class);
+
+    private static final Map<String, RuBudget> BUDGETS = new ConcurrentHashMap<>();
+
+    private final double ruPerSecond;
+    private final double backgroundRuPerSecond;
+    private final long maxWaitNanos;
+    private final int maxConcurrency;
+
+    private double totalTokens;
+    private double backgroundTokens;
+    private long lastRefill = System.nanoTime();
+
+    private double concurrencyLimit;
+    private int inFlight;
+
+    private RuBudget(int ruPerSecond, int backgroundSharePercent, int maxConcurrency, int maxWaitMillis) {
+        this.ruPerSecond = ruPerSecond;
+        this.backgroundRuPerSecond = ruPerSecond * Math.min(100, Math.max(1, backgroundSharePercent)) / 100.0;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMillis));
+        this.totalTokens = this.ruPerSecond;
+        this.backgroundTokens = this.backgroundRuPerSecond;
+        this.concurrencyLimit = this.maxConcurrency;
+    }
+
+    /**
+     * @return shared budget for the container of the configuration, null when the budget is disabled
+     */
+    public static RuBudget forContainer(CosmosDbConfig config, String containerName) {
+        if (config.getRuBudgetPerSecond() <= 0) return null;
+        String key = config.getEndpoint() + "|" + config.getDatabaseName() + "|" + containerName + "|"
+                + config.getRuBudgetPerSecond() + "|" + config.getBackgroundRuSharePercent() + "|"
+                + config.getBackgroundMaxConcurrency() + "|" + config.getRuBudgetMaxWaitMs();
+        return BUDGETS.computeIfAbsent(key, k -> {
+            logger.infof("RU budget for %s/%s: %d RU/s, background share %d%%, background concurrency %d",
+                    config.getDatabaseName(), containerName, config.getRuBudgetPerSecond(),
+                    config.getBackgroundRuSharePercent(), config.getBackgroundMaxConcurrency());
+            RuBudget budget = new RuBudget(config.getRuBudgetPerSecond(), config.getBackgroundRuSharePercent(),
+                    config.getBackgroundMaxConcurrency(), config.getRuBudgetMaxWaitMs());
+            CosmosDbMetrics.registerBudget(containerName, budget);
+            return budget;
+        });
+    }
+
+    /**
+     * Wait for admission of the call. Login and write calls are admitted immediately.
+     * @throws ModelException when a background call cannot be admitted within the max wait
+     */
+    public synchronized void admit(CosmosDbOperation op) {
+        if (!op.operationClass().isBackground()) {
+            return;
+        }
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (true) {
+            refill();
+            if (totalTokens > 0 && backgroundTokens > 0 && inFlight < (int) concurrencyLimit) {
+                inFlight++;
+                return;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                CosmosDbMetrics.budgetRejected(op);
+                throw new ModelException("Cosmos DB RU budget exhausted, " + op.tag() + " rejected");
+            }
+            try {
+                // wake up at least every 50 ms to pick up refilled tokens
+                TimeUnit.NANOSECONDS.timedWait(this, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(50)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ModelException("Interrupted while waiting for Cosmos DB RU budget", e);
+            }
+        }
+    }
+
+    /**
+     * Account the call. Must be called once for every admitted call.
+     * @param requestCharge actual RU charge of the call
+     * @param throttled true when the call hit 429 (finally or through the SDK's throttling retries)
+     */
+    public synchronized void complete(CosmosDbOperation op, double requestCharge, boolean throttled) {
+        refill();
+        totalTokens -= requestCharge;
+        if (op.operationClass().isBackground()) {
+            backgroundTokens -= requestCharge;
+            inFlight--;
+            if (throttled) {
+                concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+                logger.debugf("RU budget: throttling on %s, background concurrency limit -> %.1f", op.tag(), concurrencyLimit);
+            } else {
+                concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1.0 / concurrencyLimit);
+            }
+            notifyAll();
+        } else if (throttled) {
+            // logins and writes are not limited, but their throttling is the strongest signal to slow background work down
+            concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+        }
+    }
+
+    public synchronized double getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double seconds = (now - lastRefill) / 1_000_000_000.0;
+        if (seconds <= 0) return;
+        lastRefill = now;
+        // buckets hold at most one second worth of RU so an idle period does not allow a burst
+        totalTokens = Math.min(ruPerSecond, totalTokens + seconds * ruPerSecond);
+        backgroundTokens = Math.min(backgroundRuPerSecond, backgroundTokens + seconds * backgroundRuPerSecond);
+    }
+}
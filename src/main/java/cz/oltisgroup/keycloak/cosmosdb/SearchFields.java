@@ -0,0 +1,77 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Locale;
+
+/**
+ * Lowercase copies of the searchable fields, kept in the user document under "Search"
+ * ({"UserAdId": ..., "Email": ..., "Name": ..., "Surename": ...}), so that case-insensitive lookups
+ * and searches are plain equality / STARTSWITH predicates the range index can serve, instead of
+ * LOWER(...) over every document.
+ *
+ * Modes: off = not maintained and not queried; backfill = maintained on write and by the change feed
+ * sync, queries unchanged; on = maintained and queried, the copies being authoritative (documents without
+ * them are not found by username until the change feed sync adds them).
+ */
+public final class SearchFields {
+
+    public static final String MODE_OFF = "off";
+    public static final String MODE_BACKFILL = "backfill";
+    public static final String MODE_ON = "on";
+
+    public static final String FIELD = "Search";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private SearchFields() {}
+
+    /**
+     * @return the lowercase copies computed from the document's Header and Item
+     */
+    static ObjectNode compute(JsonNode doc) {
+        JsonNode header = doc.get("Header");
+        JsonNode item = doc.get("Item");
+        ObjectNode search = MAPPER.createObjectNode();
+        put(search, "UserAdId", firstNonBlank(header, "UserAdId"));
+        put(search, "Email", firstNonBlank(item, "Email", "email"));
+        put(search, "Name", firstNonBlank(item, "Name", "name"));
+        put(search, "Surename", firstNonBlank(item, "Surename", "Surname"));
+        return search;
+    }
+
+    /**
+     * @return true when the document's copies match its current fields
+     */
+    static boolean isCurrent(JsonNode doc) {
+        return compute(doc).equals(doc.get(FIELD));
+    }
+
+    /**
+     * Set the copies on a document about to be written.
+     */
+    static void apply(JsonNode doc) {
+        if (doc instanceof ObjectNode) {
+            ((ObjectNode) doc).set(FIELD, compute(doc));
+        }
+    }
+
+    private static void put(ObjectNode search, String name, String value) {
+        if (value != null) {
+            search.put(name, value.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private static String firstNonBlank(JsonNode node, String... candidates) {
+        if (node == null) return null;
+        for (String c : candidates) {
+            JsonNode value = node.get(c);
+            if (value != null && value.isTextual() && !value.asText().isBlank()) {
+                return value.asText();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,70 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Whitelist of Keycloak attribute names that may be searched by value, each mapped to a document path
+ * in the Header or Item section, e.g. "email=Item.Email,companyId=Header.CompanyId".
+ *
+ * Only these paths ever reach the query text, so the set of query shapes is fixed and every one of
+ * them can be served from the query plan cache and covered by the indexing policy.
+ * Invalid entries are dropped and reported by {@link #getErrors()}.
+ */
+public final class SearchableAttributes {
+
+    public static final String DEFAULT = "email=Item.Email,Email=Item.Email,firstName=Item.Name,lastName=Item.Surename,"
+            + "companyId=Header.CompanyId,CompanyId=Header.CompanyId,userLWPId=Header.UserLWPId,UserLWPId=Header.UserLWPId";
+
+    private static final Pattern PATH = Pattern.compile("(Header|Item)\\.[A-Za-z_][A-Za-z0-9_]*");
+
+    private final Map<String, String> paths = new LinkedHashMap<>();
+    private final List<String> errors = new ArrayList<>();
+
+    private SearchableAttributes(String spec) {
+        for (String part : spec.split(",")) {
+            String token = part.trim();
+            if (token.isEmpty()) continue;
+            int eq = token.indexOf('=');
+            String name = eq < 0 ? "" : token.substring(0, eq).trim();
+            String path = eq < 0 ? "" : token.substring(eq + 1).trim();
+            if (name.isEmpty() || !isValidPath(path)) {
+                errors.add("Invalid searchable attribute '" + token + "', expected name=Header.Field or name=Item.Field");
+            } else if (paths.containsKey(name)) {
+                errors.add("Searchable attribute '" + name + "' is mapped more than once");
+            } else {
+                paths.put(name, path);
+            }
+        }
+    }
+
+    public static SearchableAttributes parse(String spec) {
+        return new SearchableAttributes(spec == null || spec.isBlank() ? DEFAULT : spec);
+    }
+
+    /**
+     * @return true for a plain Header.X / Item.X path, the only form allowed in query text
+     */
+    public static boolean isValidPath(String path) {
+        return path != null && PATH.matcher(path).matches();
+    }
+
+    /**
+     * @return document path of the attribute, null when it is not searchable
+     */
+    public String resolve(String attrName) {
+        return attrName == null ? null : paths.get(attrName);
+    }
+
+    public Map<String, String> getPaths() {
+        return Collections.unmodifiableMap(paths);
+    }
+
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+}
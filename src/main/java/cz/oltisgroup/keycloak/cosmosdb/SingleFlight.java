@@ -0,0 +1,58 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Per-node coalescing of concurrent identical lookups: the first caller for a key runs the loader,
+ * callers arriving while it is in flight wait for and share its result. Nothing is cached once the
+ * load completes.
+ */
+public final class SingleFlight<V> {
+
+    private final Map<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Result of {@link #execute}; leader is false for callers that joined an in-flight load.
+     */
+    public static final class Result<V> {
+        public final V value;
+        public final boolean leader;
+        Result(V value, boolean leader) { this.value = value; this.leader = leader; }
+    }
+
+    public Result<V> execute(String key, Supplier<V> loader) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            return new Result<>(join(existing), false);
+        }
+        try {
+            V value = loader.get();
+            mine.complete(value);
+            return new Result<>(value, true);
+        } catch (RuntimeException | Error ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private static <V> V join(CompletableFuture<V> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for concurrent lookup", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.jboss.logging.Logger;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Node-wide ring buffer with the last N slow Cosmos operations, inspectable over JMX.
+ */
+public final class SlowOperationLog implements SlowOperationLogMXBean {
+
+    private static final Logger logger = Logger.getLogger(SlowOperationLog.class);
+
+    private static final SlowOperationLog INSTANCE = new SlowOperationLog();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(INSTANCE, new ObjectName("cz.oltisgroup.keycloak.cosmosdb:type=SlowOperations"));
+        } catch (Exception ex) {
+            logger.debugf("Slow operation log not registered in JMX: %s", ex.getMessage());
+        }
+    }
+
+    private final Deque<String> entries = new ArrayDeque<>();
+    private int capacity = 100;
+    private long totalCaptured;
+
+    private SlowOperationLog() {}
+
+    public static SlowOperationLog getInstance() {
+        return INSTANCE;
+    }
+
+    public synchronized void add(String entry, int maxEntries) {
+        capacity = Math.max(1, maxEntries);
+        totalCaptured++;
+        entries.addLast(entry);
+        while (entries.size() > capacity) {
+            entries.removeFirst();
+        }
+    }
+
+    @Override
+    public synchronized String[] getRecentOperations() {
+        return entries.toArray(new String[0]);
+    }
+
+    @Override
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public synchronized long getTotalCaptured() {
+        return totalCaptured;
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
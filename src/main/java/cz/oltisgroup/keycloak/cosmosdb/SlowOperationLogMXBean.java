@@ -0,0 +1,16 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+/**
+ * JMX view of the recently captured slow Cosmos operations
+ * (ObjectName cz.oltisgroup.keycloak.cosmosdb:type=SlowOperations).
+ */
+public interface SlowOperationLogMXBean {
+
+    String[] getRecentOperations();
+
+    int getCapacity();
+
+    long getTotalCaptured();
+
+    void clear();
+}
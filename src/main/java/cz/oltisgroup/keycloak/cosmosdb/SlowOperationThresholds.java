@@ -0,0 +1,83 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Latency / RU thresholds above which a Cosmos call is treated as slow.
+ * Format of both settings: default value followed by optional per-operation overrides,
+ * e.g. "500,search=2000,count=3000" (operation names as in {@link CosmosDbOperation#tag()}).
+ * A default of 0 disables the check for operations without override. Invalid entries are dropped and
+ * reported by {@link #getErrors()}.
+ */
+public final class SlowOperationThresholds {
+
+    private final long defaultLatencyMs;
+    private final double defaultCharge;
+    private final Map<CosmosDbOperation, Long> latencyMs = new EnumMap<>(CosmosDbOperation.class);
+    private final Map<CosmosDbOperation, Double> charge = new EnumMap<>(CosmosDbOperation.class);
+    private final List<String> errors = new ArrayList<>();
+
+    private SlowOperationThresholds(String latencySpec, String chargeSpec) {
+        this.defaultLatencyMs = parse("latency", latencySpec, 500L, latencyMs, Long::parseLong);
+        this.defaultCharge = parse("RU", chargeSpec, 100d, charge, Double::parseDouble);
+    }
+
+    public static SlowOperationThresholds parse(String latencySpec, String chargeSpec) {
+        return new SlowOperationThresholds(latencySpec, chargeSpec);
+    }
+
+    public boolean isSlow(CosmosDbOperation op, long latencyMillis, double requestCharge) {
+        long maxLatency = latencyMs.getOrDefault(op, defaultLatencyMs);
+        double maxCharge = charge.getOrDefault(op, defaultCharge);
+        return (maxLatency > 0 && latencyMillis >= maxLatency) || (maxCharge > 0 && requestCharge >= maxCharge);
+    }
+
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    private <N extends Number> N parse(String kind, String spec, N fallback, Map<CosmosDbOperation, N> overrides,
+                                       Function<String, N> parser) {
+        N defaultValue = fallback;
+        if (spec == null || spec.isBlank()) return defaultValue;
+        for (String part : spec.split(",")) {
+            String token = part.trim();
+            if (token.isEmpty()) continue;
+            try {
+                int eq = token.indexOf('=');
+                N value = parser.apply((eq < 0 ? token : token.substring(eq + 1)).trim());
+                if (value.doubleValue() < 0) {
+                    errors.add("Negative slow operation " + kind + " threshold '" + token + "'");
+                    continue;
+                }
+                if (eq < 0) {
+                    defaultValue = value;
+                    continue;
+                }
+                String opName = token.substring(0, eq).trim().toLowerCase(Locale.ROOT);
+                CosmosDbOperation op = operation(opName);
+                if (op == null) {
+                    errors.add("Unknown operation '" + opName + "' in slow operation " + kind + " threshold '" + token + "'");
+                } else {
+                    overrides.put(op, value);
+                }
+            } catch (NumberFormatException e) {
+                errors.add("Invalid slow operation " + kind + " threshold '" + token + "'");
+            }
+        }
+        return defaultValue;
+    }
+
+    private static CosmosDbOperation operation(String tag) {
+        for (CosmosDbOperation op : CosmosDbOperation.values()) {
+            if (op.tag().equals(tag)) return op;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,49 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Per-session cache of user documents keyed by username. Every entry is stored under the given
+ * spelling and its lower-case form, so lookups are case-insensitive like the Cosmos query.
+ */
+public class UserDocumentCache {
+
+    private final Map<String, JsonNode> docs = new HashMap<>();
+
+    public JsonNode get(String username) {
+        if (username == null) return null;
+        String raw = username.trim();
+        JsonNode doc = docs.get(raw);
+        if (doc == null) {
+            String normalized = raw.toLowerCase(Locale.ROOT);
+            if (!normalized.equals(raw)) {
+                doc = docs.get(normalized);
+            }
+        }
+        return doc;
+    }
+
+    public void put(String username, JsonNode doc) {
+        if (username == null || doc == null) return;
+        docs.put(username, doc);
+        docs.put(username.toLowerCase(Locale.ROOT), doc);
+    }
+
+    public void remove(String username) {
+        if (username == null) return;
+        docs.remove(username);
+        docs.remove(username.toLowerCase(Locale.ROOT));
+    }
+
+    public boolean containsKey(String username) {
+        return get(username) != null;
+    }
+
+    public void clear() {
+        docs.clear();
+    }
+}
@@ -0,0 +1,120 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Persistence operations the provider needs, independent of where the documents live.
+ *
+ * Main container holds the user documents ({Header, Item}, partition key Header.UserAdId),
+ * extra container holds the flat copies used by other applications (partition key login).
+ * Lookups return docId (the document id), _etag, Header and Item; only whole documents carry id, so a
+ * lookup result can not be written back by mistake. {@link #loadFullDocument} returns the whole document.
+ * Returned documents belong to the caller and may be modified.
+ */
+public interface UserDocumentStore {
+
+    /**
+     * @return documents whose Header.UserAdId equals the username ignoring case
+     */
+    List<JsonNode> findByUsername(String username);
+
+    /**
+     * @return whole document (including id) of the user, active or not, or null
+     */
+    JsonNode loadFullDocument(String username);
+
+    /**
+     * @return Header/Item of documents with Item.Email (or legacy Item.email) equal to the email
+     */
+    List<JsonNode> findByEmail(String email);
+
+    /**
+     * @param query conditions on username, email and names, empty for all users
+     */
+    List<JsonNode> search(UserSearchQuery query, Integer firstResult, Integer maxResults);
+
+    /**
+     * Results are fetched page by page while the stream is consumed.
+     * @param path whitelisted Header.X or Item.X path (see {@link SearchableAttributes})
+     * @return Header/Item of active documents with the path equal to the value
+     */
+    Stream<JsonNode> findActiveByAttribute(String path, String value);
+
+    /**
+     * @return Header/Item of active documents whose Header.UserAdId is one of the usernames, case-insensitively
+     * like {@link #findByUsername}
+     */
+    List<JsonNode> findActiveByUsernames(List<String> usernames);
+
+    int count();
+
+    void createUser(ObjectNode doc);
+
+    void upsertUser(JsonNode doc);
+
+    /**
+     * Set top-level fields of a user document without replacing it.
+     */
+    void patchUser(String id, String username, Map<String, Object> fields);
+
+    void deleteUser(String id, String username);
+
+    /**
+     * @return documents of the extra container for the login
+     */
+    List<JsonNode> findExtraByLogin(String login);
+
+    void createExtra(ObjectNode doc);
+
+    /**
+     * Point read of a user document that only returns it when its _etag differs from the given one.
+     * @return null when the document is unchanged, otherwise the whole document; missing documents fail with 404
+     */
+    JsonNode readIfChanged(String id, String username, String etag);
+
+    /**
+     * Read changed user documents (whole documents) from the main container's change feed, latest version
+     * of each document; deleted documents are not part of the feed. Starts after the continuation, or at the
+     * given time when there is none, or at the beginning when both are null. Pages are handed to the consumer
+     * as they arrive.
+     * @return continuation to start the next read from
+     */
+    String readChanges(String continuation, Instant since, int pageSize, Consumer<List<JsonNode>> pages);
+
+    /**
+     * Logins of extra container documents whose role is one of the values, ordered by login.
+     */
+    Stream<String> findLoginsByRoles(List<String> roles, Integer firstResult, Integer maxResults);
+
+    /**
+     * Set top-level fields of an extra container document without rewriting the rest of it.
+     */
+    void patchExtra(String id, String login, Map<String, Object> fields);
+
+    void deleteExtra(String id, String login);
+
+    /**
+     * Usernames of the group's members ordered by username, read from the group's partition.
+     * Only available when the groups container is configured.
+     */
+    Stream<String> findGroupMembers(String groupId, Integer firstResult, Integer maxResults);
+
+    void addGroupMember(String groupId, String username);
+
+    /**
+     * Removing a membership that does not exist is not an error.
+     */
+    void removeGroupMember(String groupId, String username);
+
+    /**
+     * Release resources held for the session.
+     */
+    void close();
+}
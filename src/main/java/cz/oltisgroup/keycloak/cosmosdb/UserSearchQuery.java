@@ -0,0 +1,300 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.azure.cosmos.models.SqlParameter;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.jboss.logging.Logger;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * User search as a list of conditions (all must hold): a value matched against one or more known
+ * fields (any may match), a whitelisted attribute path equal to a value, or the enabled flag. Rendered
+ * to Cosmos SQL with fixed predicate shapes and evaluated the same way by {@link InMemoryUserDocumentStore}.
+ *
+ * With case-folded fields (see {@link SearchFields}) predicates read c.Search.* directly and can use
+ * the index; otherwise they fall back to LOWER() of the source fields.
+ */
+public final class UserSearchQuery {
+
+    private static final Logger logger = Logger.getLogger(UserSearchQuery.class);
+
+    // Keycloak's internal query parameters all share this prefix
+    private static final String QUERY_PARAMETER_PREFIX = "keycloak.session.realm.users.query.";
+
+    public enum Match { EQUALS, STARTS_WITH, CONTAINS }
+
+    public enum Field {
+        USERNAME("UserAdId", "Header.UserAdId"),
+        EMAIL("Email", "Item.Email", "Item.email"),
+        FIRST_NAME("Name", "Item.Name", "Item.name"),
+        LAST_NAME("Surename", "Item.Surename", "Item.Surname");
+
+        final String searchName;
+        final List<String> sourcePaths;
+
+        Field(String searchName, String... sourcePaths) {
+            this.searchName = searchName;
+            this.sourcePaths = List.of(sourcePaths);
+        }
+    }
+
+    static final class Condition {
+        final List<Field> fields;
+        final Match match;
+        final String value;
+        // attribute condition: exact, case-sensitive match of a whitelisted path
+        final String path;
+        // enabled condition
+        final Boolean active;
+
+        Condition(List<Field> fields, Match match, String value) {
+            this(fields, match, value.toLowerCase(Locale.ROOT), null, null);
+        }
+
+        private Condition(List<Field> fields, Match match, String value, String path, Boolean active) {
+            this.fields = fields;
+            this.match = match;
+            this.value = value;
+            this.path = path;
+            this.active = active;
+        }
+    }
+
+    private static final List<Field> ALL_FIELDS = List.of(Field.USERNAME, Field.EMAIL, Field.FIRST_NAME, Field.LAST_NAME);
+
+    private final List<Condition> conditions = new ArrayList<>();
+
+    /**
+     * Query for Keycloak's free-text search: every whitespace separated term must match username, email,
+     * first or last name. Like Keycloak's own store, "foo" and "foo*" are prefix matches and "\"foo\"" is an
+     * exact match; only an explicit leading or inner "*" leads to CONTAINS. Pieces of a term with inner
+     * wildcards are matched independently.
+     */
+    public static UserSearchQuery fromSearch(String search) {
+        UserSearchQuery query = new UserSearchQuery();
+        if (search == null) return query;
+        for (String term : search.trim().split("\\s+")) {
+            query.addTerm(ALL_FIELDS, term);
+        }
+        return query;
+    }
+
+    /**
+     * Query for the parameters of {@link org.keycloak.storage.user.UserQueryMethodsProvider#searchForUserStream}:
+     * free-text search, username/email/first/last name (exact with {@link UserModel#EXACT}, otherwise
+     * substring like Keycloak's own store), enabled and attributes whitelisted in {@link SearchableAttributes}.
+     * @return null when no user stored in Cosmos DB can match (identity provider links, attributes not kept in Cosmos)
+     */
+    public static UserSearchQuery fromParams(Map<String, String> params, SearchableAttributes attributes) {
+        UserSearchQuery query = new UserSearchQuery();
+        boolean exact = Boolean.parseBoolean(params.get(UserModel.EXACT));
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            String name = entry.getKey();
+            String value = entry.getValue();
+            if (name == null || value == null) continue;
+            switch (name) {
+                case UserModel.SEARCH:
+                    for (String term : value.trim().split("\\s+")) {
+                        query.addTerm(ALL_FIELDS, term);
+                    }
+                    break;
+                case UserModel.USERNAME:
+                    query.addField(Field.USERNAME, value, exact);
+                    break;
+                case UserModel.EMAIL:
+                    query.addField(Field.EMAIL, value, exact);
+                    break;
+                case UserModel.FIRST_NAME:
+                    query.addField(Field.FIRST_NAME, value, exact);
+                    break;
+                case UserModel.LAST_NAME:
+                    query.addField(Field.LAST_NAME, value, exact);
+                    break;
+                case UserModel.ENABLED:
+                    query.addEnabled(Boolean.parseBoolean(value));
+                    break;
+                case UserModel.IDP_ALIAS:
+                case UserModel.IDP_USER_ID:
+                    // identity provider links live in Keycloak's federated storage
+                    return null;
+                case UserModel.EXACT:
+                case UserModel.EMAIL_VERIFIED:
+                case UserModel.INCLUDE_SERVICE_ACCOUNT:
+                case UserModel.GROUPS:
+                    // no Cosmos counterpart (no verification flag, no service accounts), groups are checked by Keycloak
+                    break;
+                default:
+                    if (name.startsWith(QUERY_PARAMETER_PREFIX)) {
+                        logger.debugf("Search parameter %s not supported by Cosmos DB, ignored", name);
+                        break;
+                    }
+                    String path = attributes.resolve(name);
+                    if (path == null) {
+                        logger.debugf("Attribute %s is not searchable in Cosmos DB, no user matches", name);
+                        return null;
+                    }
+                    query.addAttribute(path, value);
+            }
+        }
+        return query;
+    }
+
+    private void addField(Field field, String value, boolean exact) {
+        if (value.isEmpty()) return;
+        add(List.of(field), exact ? Match.EQUALS : Match.CONTAINS, value);
+    }
+
+    /**
+     * Exact, case-sensitive match of a whitelisted Header.X / Item.X path.
+     */
+    public UserSearchQuery addAttribute(String path, String value) {
+        if (!SearchableAttributes.isValidPath(path)) {
+            throw new IllegalArgumentException("Attribute path not allowed in query: " + path);
+        }
+        conditions.add(new Condition(null, Match.EQUALS, value, path, null));
+        return this;
+    }
+
+    /**
+     * Enabled users have Item.Active = 1.
+     */
+    public UserSearchQuery addEnabled(boolean enabled) {
+        conditions.add(new Condition(null, Match.EQUALS, null, null, enabled));
+        return this;
+    }
+
+    /**
+     * Add a term in Keycloak's search syntax matched against the given fields.
+     */
+    public UserSearchQuery addTerm(List<Field> fields, String term) {
+        if (term == null || term.isEmpty() || term.chars().allMatch(ch -> ch == '*')) return this;
+        if (term.length() >= 2 && term.startsWith("\"") && term.endsWith("\"")) {
+            return add(fields, Match.EQUALS, term.substring(1, term.length() - 1));
+        }
+        String[] pieces = term.split("\\*");
+        for (int i = 0; i < pieces.length; i++) {
+            if (pieces[i].isEmpty()) continue;
+            add(fields, i == 0 ? Match.STARTS_WITH : Match.CONTAINS, pieces[i]);
+        }
+        return this;
+    }
+
+    public UserSearchQuery add(List<Field> fields, Match match, String value) {
+        conditions.add(new Condition(fields, match, value));
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return conditions.isEmpty();
+    }
+
+    List<Condition> getConditions() {
+        return Collections.unmodifiableList(conditions);
+    }
+
+    /**
+     * @return WHERE clause body (empty when there are no conditions), parameters are appended
+     */
+    public String toSql(boolean caseFolded, List<SqlParameter> parameters) {
+        StringBuilder sql = new StringBuilder();
+        for (Condition condition : conditions) {
+            if (sql.length() > 0) sql.append(" AND ");
+            if (condition.active != null) {
+                sql.append(condition.active ? "c.Item.Active = 1" : "(NOT IS_DEFINED(c.Item.Active) OR c.Item.Active != 1)");
+                continue;
+            }
+            String param = "@s" + parameters.size();
+            parameters.add(new SqlParameter(param, condition.value));
+            if (condition.path != null) {
+                sql.append("c.").append(condition.path).append(" = ").append(param);
+                continue;
+            }
+            sql.append('(');
+            boolean first = true;
+            for (String expression : expressions(condition.fields, caseFolded)) {
+                if (!first) sql.append(" OR ");
+                first = false;
+                switch (condition.match) {
+                    case EQUALS: sql.append(expression).append(" = ").append(param); break;
+                    case STARTS_WITH: sql.append("STARTSWITH(").append(expression).append(", ").append(param).append(')'); break;
+                    default: sql.append("CONTAINS(").append(expression).append(", ").append(param).append(')');
+                }
+            }
+            sql.append(')');
+        }
+        return sql.toString();
+    }
+
+    private static List<String> expressions(List<Field> fields, boolean caseFolded) {
+        List<String> expressions = new ArrayList<>();
+        for (Field field : fields) {
+            if (caseFolded) {
+                expressions.add("c." + SearchFields.FIELD + "." + field.searchName);
+            } else {
+                for (String path : field.sourcePaths) {
+                    expressions.add("LOWER(c." + path + ")");
+                }
+            }
+        }
+        return expressions;
+    }
+
+    /**
+     * In-memory evaluation of the same predicates.
+     */
+    public boolean matches(JsonNode doc, boolean caseFolded) {
+        for (Condition condition : conditions) {
+            if (condition.active != null) {
+                JsonNode active = doc.path("Item").get("Active");
+                if (condition.active != (active != null && active.isNumber() && active.asInt() == 1)) return false;
+                continue;
+            }
+            if (condition.path != null) {
+                int dot = condition.path.indexOf('.');
+                JsonNode value = doc.path(condition.path.substring(0, dot)).get(condition.path.substring(dot + 1));
+                if (value == null || !value.isTextual() || !value.asText().equals(condition.value)) return false;
+                continue;
+            }
+            boolean any = false;
+            for (Field field : condition.fields) {
+                for (String value : values(doc, field, caseFolded)) {
+                    if (matches(value, condition)) {
+                        any = true;
+                        break;
+                    }
+                }
+                if (any) break;
+            }
+            if (!any) return false;
+        }
+        return true;
+    }
+
+    private static List<String> values(JsonNode doc, Field field, boolean caseFolded) {
+        List<String> values = new ArrayList<>();
+        if (caseFolded) {
+            JsonNode value = doc.path(SearchFields.FIELD).get(field.searchName);
+            if (value != null && value.isTextual()) values.add(value.asText());
+        } else {
+            for (String path : field.sourcePaths) {
+                int dot = path.indexOf('.');
+                JsonNode value = doc.path(path.substring(0, dot)).get(path.substring(dot + 1));
+                if (value != null && value.isTextual()) values.add(value.asText().toLowerCase(Locale.ROOT));
+            }
+        }
+        return values;
+    }
+
+    private static boolean matches(String value, Condition condition) {
+        switch (condition.match) {
+            case EQUALS: return value.equals(condition.value);
+            case STARTS_WITH: return value.startsWith(condition.value);
+            default: return value.contains(condition.value);
+        }
+    }
+}
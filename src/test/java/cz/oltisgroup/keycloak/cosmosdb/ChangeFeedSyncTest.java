@@ -0,0 +1,95 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class ChangeFeedSyncTest {
+
+    private final Map<String, String> realmAttributes = new ConcurrentHashMap<>();
+    private UserStorageProviderModel model;
+    private CosmosDbConfig config;
+    private InMemoryUserDocumentStore store;
+    private KeycloakSessionFactory sessionFactory;
+
+    @BeforeEach
+    void seed() {
+        model = new UserStorageProviderModel(TestFixtures.component(CosmosDbUserStorageProviderFactory.SYNC_BATCH_SIZE, "2"));
+        config = CosmosDbConfig.from(model);
+        store = new InMemoryUserDocumentStore(0, 0);
+        store.putUser(TestFixtures.user("doc-1", "Novak", "novak@example.com", true));
+        store.putUser(TestFixtures.user("doc-2", "dvorak", "dvorak@example.com", false));
+        store.putUser(TestFixtures.user("doc-3", "svoboda", "svoboda@example.com", true));
+
+        RealmModel realm = TestFixtures.stub(RealmModel.class, Map.of(
+                "getAttribute", args -> realmAttributes.get((String) args[0]),
+                "setAttribute", args -> realmAttributes.put((String) args[0], String.valueOf(args[1]))));
+        RealmProvider realms = TestFixtures.stub(RealmProvider.class, Map.of("getRealm", args -> realm));
+        KeycloakContext context = TestFixtures.stub(KeycloakContext.class, Collections.emptyMap());
+        KeycloakTransactionManager transactions = TestFixtures.stub(KeycloakTransactionManager.class, Collections.emptyMap());
+        KeycloakSession providerSession = TestFixtures.session();
+        KeycloakSession session = TestFixtures.stub(KeycloakSession.class, Map.of(
+                "realms", args -> realms,
+                "getContext", args -> context,
+                "getTransactionManager", args -> transactions,
+                "getComponentProvider", args -> new CosmosDbUserStorageProvider(providerSession, model, config, store)));
+        sessionFactory = TestFixtures.stub(KeycloakSessionFactory.class, Map.of("create", args -> session));
+    }
+
+    private SynchronizationResult sync(boolean full) {
+        return ChangeFeedSync.run(sessionFactory, "test", model, config, store, full, null);
+    }
+
+    @Test
+    void fullSyncReadsTheWholeFeedAndStoresItsPosition() {
+        SynchronizationResult result = sync(true);
+        assertEquals(2, result.getUpdated());
+        assertEquals(1, result.getRemoved(), "inactive users are reported as removed");
+        assertEquals(0, result.getFailed());
+        assertNotNull(realmAttributes.get(ChangeFeedSync.checkpointAttribute(model.getId())));
+    }
+
+    @Test
+    void changedUsersSyncContinuesFromTheStoredPosition() {
+        sync(true);
+        JsonNode novak = store.loadFullDocument("novak");
+        ((ObjectNode) novak.get("Item")).put("Active", 0);
+        store.upsertUser(novak);
+
+        SynchronizationResult changed = sync(false);
+        assertEquals(0, changed.getUpdated());
+        assertEquals(1, changed.getRemoved());
+
+        SynchronizationResult unchanged = sync(false);
+        assertEquals(0, unchanged.getUpdated() + unchanged.getRemoved() + unchanged.getFailed());
+    }
+
+    @Test
+    void failedUsersKeepTheFeedPosition() {
+        sync(true);
+        String position = realmAttributes.get(ChangeFeedSync.checkpointAttribute(model.getId()));
+        ObjectNode broken = TestFixtures.user("doc-4", "broken", "broken@example.com", true);
+        broken.remove("Header");
+        store.putUser(broken);
+
+        assertEquals(1, sync(false).getFailed());
+        assertEquals(position, realmAttributes.get(ChangeFeedSync.checkpointAttribute(model.getId())));
+        assertEquals(1, sync(false).getFailed(), "the failed user is read again");
+    }
+}
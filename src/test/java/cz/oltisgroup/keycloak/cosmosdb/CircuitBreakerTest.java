@@ -0,0 +1,98 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CircuitBreakerTest {
+
+    private static CircuitBreaker breaker(int failures) {
+        return CircuitBreaker.forContainer(TestFixtures.config(
+                CosmosDbUserStorageProviderFactory.CIRCUIT_BREAKER_FAILURES, String.valueOf(failures),
+                CosmosDbUserStorageProviderFactory.CIRCUIT_BREAKER_OPEN_SECONDS, "1"), "User");
+    }
+
+    private static void fail(CircuitBreaker breaker, CosmosDbOperation op) {
+        breaker.admit(op);
+        breaker.complete(op, 503);
+    }
+
+    @Test
+    void disabledWithoutFailureThreshold() {
+        assertNull(breaker(0));
+    }
+
+    @Test
+    void sharedPerContainer() {
+        CosmosDbConfig config = TestFixtures.config(CosmosDbUserStorageProviderFactory.CIRCUIT_BREAKER_FAILURES, "3");
+        assertSame(CircuitBreaker.forContainer(config, "User"), CircuitBreaker.forContainer(config, "User"));
+    }
+
+    @Test
+    void classifiesStatusCodes() {
+        assertTrue(CircuitBreaker.isFailure(408));
+        assertTrue(CircuitBreaker.isFailure(429));
+        assertTrue(CircuitBreaker.isFailure(503));
+        assertFalse(CircuitBreaker.isFailure(0), "no Cosmos status");
+        assertFalse(CircuitBreaker.isFailure(404));
+        assertFalse(CircuitBreaker.isFailure(409));
+        assertFalse(CircuitBreaker.isFailure(200));
+    }
+
+    @Test
+    void opensAfterConsecutiveFailuresAndClosesAfterSuccessfulTrial() throws InterruptedException {
+        CircuitBreaker breaker = breaker(2);
+        fail(breaker, CosmosDbOperation.FIND_BY_USERNAME);
+        breaker.admit(CosmosDbOperation.FIND_BY_USERNAME);
+        breaker.complete(CosmosDbOperation.FIND_BY_USERNAME, 200);
+        fail(breaker, CosmosDbOperation.FIND_BY_USERNAME);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(), "a success resets the count");
+
+        fail(breaker, CosmosDbOperation.UPSERT_USER);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertThrows(CircuitBreaker.OpenException.class, () -> breaker.admit(CosmosDbOperation.FIND_BY_USERNAME));
+        assertThrows(CircuitBreaker.OpenException.class, () -> breaker.admit(CosmosDbOperation.SEARCH));
+
+        Thread.sleep(1100);
+        breaker.admit(CosmosDbOperation.FIND_BY_USERNAME);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertThrows(CircuitBreaker.OpenException.class, () -> breaker.admit(CosmosDbOperation.FIND_BY_USERNAME),
+                "only one trial call at a time");
+        breaker.complete(CosmosDbOperation.FIND_BY_USERNAME, 404);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void failedTrialOpensAgain() throws InterruptedException {
+        CircuitBreaker breaker = breaker(1);
+        fail(breaker, CosmosDbOperation.FIND_BY_USERNAME);
+        Thread.sleep(1100);
+        fail(breaker, CosmosDbOperation.FIND_BY_USERNAME);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void abandonedTrialLetsTheNextCallThrough() throws InterruptedException {
+        CircuitBreaker breaker = breaker(1);
+        fail(breaker, CosmosDbOperation.FIND_BY_USERNAME);
+        Thread.sleep(1100);
+        breaker.admit(CosmosDbOperation.FIND_BY_USERNAME);
+        breaker.abandon();
+        assertDoesNotThrow(() -> breaker.admit(CosmosDbOperation.FIND_BY_USERNAME));
+    }
+
+    @Test
+    void backgroundFailuresDoNotOpenTheCircuit() {
+        CircuitBreaker breaker = breaker(1);
+        fail(breaker, CosmosDbOperation.SEARCH);
+        fail(breaker, CosmosDbOperation.COUNT);
+        fail(breaker, CosmosDbOperation.CHANGE_FEED);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,36 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.azure.cosmos.ConsistencyLevel;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConsistencyLevelsTest {
+
+    @Test
+    void sessionIsLeftToTheClient() {
+        ConsistencyLevels levels = ConsistencyLevels.parse(null);
+        assertNull(levels.forOperation(CosmosDbOperation.FIND_BY_USERNAME));
+        assertNull(levels.forOperation(CosmosDbOperation.SEARCH));
+        assertTrue(levels.getErrors().isEmpty());
+    }
+
+    @Test
+    void overridesPerOperationClass() {
+        ConsistencyLevels levels = ConsistencyLevels.parse("eventual, write=session, login=consistent-prefix");
+        assertEquals(ConsistencyLevel.CONSISTENT_PREFIX, levels.forOperation(CosmosDbOperation.FIND_BY_EMAIL));
+        assertNull(levels.forOperation(CosmosDbOperation.LOAD_FULL_DOCUMENT));
+        assertEquals(ConsistencyLevel.EVENTUAL, levels.forOperation(CosmosDbOperation.COUNT));
+        assertTrue(levels.getErrors().isEmpty());
+    }
+
+    @Test
+    void dropsAndReportsInvalidEntries() {
+        ConsistencyLevels levels = ConsistencyLevels.parse("strong, bulk=eventual, search=eventual");
+        assertNull(levels.forOperation(CosmosDbOperation.FIND_BY_USERNAME));
+        assertEquals(ConsistencyLevel.EVENTUAL, levels.forOperation(CosmosDbOperation.SEARCH));
+        assertEquals(2, levels.getErrors().size());
+    }
+}
@@ -0,0 +1,188 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CosmosDbUserStorageProviderTest {
+
+    private final KeycloakSession session = TestFixtures.session();
+    private final RealmModel realm = TestFixtures.realm();
+    private ComponentModel model;
+    private CosmosDbConfig config;
+    private InMemoryUserDocumentStore store;
+
+    @BeforeEach
+    void seed() {
+        model = TestFixtures.component();
+        config = CosmosDbConfig.from(model);
+        store = new InMemoryUserDocumentStore(0, 0);
+        store.putUser(TestFixtures.user("doc-1", "Novak", "novak@example.com", true));
+        store.putUser(TestFixtures.user("doc-2", "dvorak", "dvorak@example.com", false));
+    }
+
+    private CosmosDbUserStorageProvider provider() {
+        return new CosmosDbUserStorageProvider(session, model, config, store);
+    }
+
+    @Test
+    void looksUpActiveUsersCaseInsensitively() {
+        CosmosDbUserStorageProvider provider = provider();
+        UserModel user = provider.getUserByUsername(realm, "NOVAK");
+        assertNotNull(user);
+        assertEquals("Novak", user.getUsername());
+        assertEquals("novak@example.com", user.getEmail());
+        assertNull(provider.getUserByUsername(realm, "dvorak"), "inactive users are not found");
+        assertNull(provider.getUserByUsername(realm, "unknown"));
+    }
+
+    @Test
+    void returnsTheSameAdapterWithinOneSession() {
+        CosmosDbUserStorageProvider provider = provider();
+        UserModel first = provider.getUserByUsername(realm, "novak");
+        assertSame(first, provider.getUserByUsername(realm, "Novak"));
+        assertSame(first, provider.getUserByEmail(realm, "novak@example.com"));
+        assertNotSame(first, provider().getUserByUsername(realm, "novak"), "another session gets its own adapter");
+    }
+
+    @Test
+    void findsUsersByEmail() {
+        CosmosDbUserStorageProvider provider = provider();
+        UserModel user = provider.getUserByEmail(realm, "novak@example.com");
+        assertNotNull(user);
+        assertEquals("Novak", user.getUsername());
+        assertNull(provider.getUserByEmail(realm, "dvorak@example.com"), "inactive users are not found");
+    }
+
+    @Test
+    void validatesAndUpdatesPasswords() {
+        CosmosDbUserStorageProvider provider = provider();
+        UserModel user = provider.getUserByUsername(realm, "novak");
+        assertTrue(provider.isConfiguredFor(realm, user, UserCredentialModel.PASSWORD));
+        assertTrue(provider.isValid(realm, user, UserCredentialModel.password("pw-Novak")));
+        assertFalse(provider.isValid(realm, user, UserCredentialModel.password("wrong")));
+
+        assertTrue(provider.updateCredential(realm, user, UserCredentialModel.password("new-secret")));
+        assertTrue(provider().isValid(realm, user, UserCredentialModel.password("new-secret")));
+        assertFalse(provider().isValid(realm, user, UserCredentialModel.password("pw-Novak")));
+    }
+
+    @Test
+    void checksPasswordsPastTheNodeCacheTtlAgainstCosmos() throws InterruptedException {
+        model = TestFixtures.component(
+                CosmosDbUserStorageProviderFactory.USER_CACHE_SECONDS, "1",
+                CosmosDbUserStorageProviderFactory.USER_CACHE_STALE_SECONDS, "60");
+        config = CosmosDbConfig.from(model);
+        assertNotNull(provider().getUserByUsername(realm, "novak"));
+
+        // password changed through another node
+        ObjectNode novak = (ObjectNode) store.loadFullDocument("novak");
+        novak.with("Item").put("Password", "changed-elsewhere");
+        store.upsertUser(novak);
+        Thread.sleep(1100);
+
+        CosmosDbUserStorageProvider provider = provider();
+        UserModel user = provider.getUserByUsername(realm, "novak");
+        assertNotNull(user, "lookups are served from the stale entry");
+        assertFalse(provider.isValid(realm, user, UserCredentialModel.password("pw-Novak")));
+        assertTrue(provider.isValid(realm, user, UserCredentialModel.password("changed-elsewhere")));
+    }
+
+    @Test
+    void persistsProfileEdits() {
+        CosmosDbUserStorageProvider provider = provider();
+        UserModel before = provider.getUserByUsername(realm, "novak");
+        provider.updateEmail("Novak", "jan.novak@example.com");
+        provider.updateUserNames("Novak", "Jan", "Novák");
+        provider.updateHeaderAttributes("Novak", "2001", "99");
+
+        UserModel after = provider.getUserByUsername(realm, "novak");
+        assertNotSame(before, after, "a written user gets a new adapter");
+        assertEquals("jan.novak@example.com", after.getEmail());
+
+        UserModel user = provider().getUserByUsername(realm, "novak");
+        assertEquals("jan.novak@example.com", user.getEmail());
+        assertEquals("Jan", user.getFirstName());
+        assertEquals("Novák", user.getLastName());
+        assertEquals("2001", store.loadFullDocument("novak").path("Header").path("CompanyId").asText());
+        assertEquals("99", store.loadFullDocument("novak").path("Header").path("UserLWPId").asText());
+    }
+
+    @Test
+    void persistsEnabledFlag() {
+        provider().updateActive("dvorak", true);
+        assertEquals(1, store.loadFullDocument("dvorak").path("Item").path("Active").asInt());
+        assertNotNull(provider().getUserByUsername(realm, "dvorak"));
+
+        CosmosDbUserStorageProvider provider = provider();
+        assertNotNull(provider.getUserByUsername(realm, "Novak"));
+        provider.updateActive("Novak", false);
+        assertEquals(0, store.loadFullDocument("novak").path("Item").path("Active").asInt());
+        assertNull(provider().getUserByUsername(realm, "novak"));
+    }
+
+    @Test
+    void resolvesUsersInOneBatchOnAColdNode() {
+        store.putUser(TestFixtures.user("doc-3", "svoboda", "svoboda@example.com", true));
+        CosmosDbUserStorageProvider provider = provider();
+        long calls = store.getCallCount();
+        List<String> users = provider.getUsersByUsernames(realm, List.of("SVOBODA", "dvorak", "novak", "unknown"))
+                .map(UserModel::getUsername).collect(Collectors.toList());
+        assertEquals(List.of("svoboda", "Novak"), users, "in the given order, inactive and unknown users left out");
+        assertEquals(calls + 1, store.getCallCount());
+
+        assertEquals(List.of("Novak"), provider.getUsersByIds(realm, List.of("f:" + model.getId() + ":Novak"))
+                .map(UserModel::getUsername).collect(Collectors.toList()));
+        assertEquals(calls + 1, store.getCallCount(), "users loaded in the session are served locally");
+    }
+
+    @Test
+    void searchesAndCountsUsers() {
+        CosmosDbUserStorageProvider provider = provider();
+        List<String> all = provider.searchForUserStream(realm, Map.of(UserModel.SEARCH, "*"), null, null)
+                .map(UserModel::getUsername).sorted().collect(Collectors.toList());
+        assertEquals(List.of("Novak", "dvorak"), all);
+        assertEquals(2, provider.getUsersCount(realm));
+    }
+
+    @Test
+    void searchesOnlyWhitelistedAttributes() {
+        CosmosDbUserStorageProvider provider = provider();
+        assertEquals(List.of("Novak"), provider.searchForUserByUserAttributeStream(realm, "companyId", "1042")
+                .map(UserModel::getUsername).collect(Collectors.toList()), "inactive users are not found");
+        assertEquals(0, provider.searchForUserByUserAttributeStream(realm, "Password", "pw-Novak").count());
+    }
+
+    @Test
+    void keepsGroupMembershipsInCosmos() {
+        model.put(CosmosDbUserStorageProviderFactory.GROUPS_CONTAINER_NAME, "Groups");
+        config = CosmosDbConfig.from(model);
+        GroupModel group = TestFixtures.stub(GroupModel.class, Map.of("getId", args -> "group-1"));
+
+        provider().updateGroupMembership("Novak", "group-1", true);
+        assertEquals("group-1", store.loadFullDocument("novak").path("Item").path(CosmosDbUserStorageProvider.GROUPS_FIELD).path(0).asText());
+        assertEquals(List.of("Novak"), provider().getGroupMembersStream(realm, group, 0, 10)
+                .map(UserModel::getUsername).collect(Collectors.toList()));
+
+        provider().updateGroupMembership("Novak", "group-1", false);
+        assertEquals(0, provider().getGroupMembersStream(realm, group, 0, 10).count());
+    }
+}
@@ -0,0 +1,109 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.azure.cosmos.CosmosException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InMemoryUserDocumentStoreTest {
+
+    private final InMemoryUserDocumentStore store = new InMemoryUserDocumentStore(0, 0);
+
+    @BeforeEach
+    void seed() {
+        store.putUser(TestFixtures.user("doc-3", "svoboda", "svoboda@example.com", true));
+        store.putUser(TestFixtures.user("doc-1", "Novak", "novak@example.com", true));
+        store.putUser(TestFixtures.user("doc-2", "dvorak", "dvorak@example.com", false));
+    }
+
+    static List<String> usernames(List<JsonNode> docs) {
+        return docs.stream().map(doc -> doc.path("Header").path("UserAdId").asText()).collect(Collectors.toList());
+    }
+
+    @Test
+    void pagesSearchResultsInUsernameOrder() {
+        UserSearchQuery all = new UserSearchQuery();
+        assertEquals(List.of("Novak", "dvorak"), usernames(store.search(all, 0, 2)));
+        assertEquals(List.of("svoboda"), usernames(store.search(all, 2, 2)));
+        assertEquals(List.of(), store.search(all, 5, 2));
+    }
+
+    @Test
+    void findsUsersCaseInsensitively() {
+        assertEquals(List.of("Novak"), usernames(store.findByUsername("NOVAK")));
+        assertEquals("doc-1", store.loadFullDocument("novak").path("id").asText());
+        assertNull(store.loadFullDocument("unknown"));
+    }
+
+    @Test
+    void caseFoldedLookupsUseOnlyTheCopies() {
+        store.setCaseFolded(true);
+        assertEquals(List.of(), store.findByUsername("novak"), "no fallback to the source field");
+
+        ObjectNode novak = TestFixtures.user("doc-1", "Novak", "novak@example.com", true);
+        SearchFields.apply(novak);
+        store.putUser(novak);
+        assertEquals(List.of("Novak"), usernames(store.findByUsername("NOVAK")));
+    }
+
+    @Test
+    void lookupsCarryTheIdAsDocId() {
+        JsonNode lookup = store.findByUsername("novak").get(0);
+        assertFalse(lookup.has("id"), "a lookup result can not be written back");
+        assertEquals("doc-1", CosmosDbUserStorageProvider.documentId(lookup));
+        assertEquals("doc-1", CosmosDbUserStorageProvider.documentId(store.loadFullDocument("novak")));
+    }
+
+    @Test
+    void readsDocumentsOnlyWhenTheEtagChanged() {
+        String etag = store.findByUsername("novak").get(0).path("_etag").asText();
+        assertNull(store.readIfChanged("doc-1", "Novak", etag));
+
+        JsonNode novak = store.loadFullDocument("novak");
+        ((ObjectNode) novak.get("Item")).put("Name", "Jan");
+        store.upsertUser(novak);
+        assertEquals("Jan", store.readIfChanged("doc-1", "Novak", etag).path("Item").path("Name").asText());
+        assertThrows(CosmosException.class, () -> store.readIfChanged("doc-1", "dvorak", etag));
+    }
+
+    @Test
+    void readsChangesAfterTheContinuation() {
+        List<JsonNode> changes = new ArrayList<>();
+        String continuation = store.readChanges(null, null, 2, changes::addAll);
+        assertEquals(List.of("svoboda", "Novak", "dvorak"), usernames(changes));
+
+        changes.clear();
+        assertEquals(continuation, store.readChanges(continuation, null, 2, changes::addAll));
+        assertTrue(changes.isEmpty());
+
+        JsonNode novak = store.loadFullDocument("novak");
+        ((ObjectNode) novak.get("Item")).put("Email", "jan.novak@example.com");
+        store.upsertUser(novak);
+        store.readChanges(continuation, null, 2, changes::addAll);
+        assertEquals(List.of("Novak"), usernames(changes));
+        assertEquals("jan.novak@example.com", changes.get(0).path("Item").path("Email").asText());
+    }
+
+    @Test
+    void failsLikeCosmos() {
+        CosmosException conflict = assertThrows(CosmosException.class,
+                () -> store.createUser(TestFixtures.user("doc-1", "Novak", "novak@example.com", true)));
+        assertEquals(409, conflict.getStatusCode());
+        CosmosException wrongPartition = assertThrows(CosmosException.class, () -> store.deleteUser("doc-1", "dvorak"));
+        assertEquals(404, wrongPartition.getStatusCode());
+        CosmosException badContinuation = assertThrows(CosmosException.class,
+                () -> store.readChanges("nonsense", null, 10, docs -> { }));
+        assertEquals(400, badContinuation.getStatusCode());
+    }
+}
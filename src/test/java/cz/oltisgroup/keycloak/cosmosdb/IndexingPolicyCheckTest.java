@@ -0,0 +1,47 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.azure.cosmos.models.ExcludedPath;
+import com.azure.cosmos.models.IncludedPath;
+import com.azure.cosmos.models.IndexingPolicy;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IndexingPolicyCheckTest {
+
+    private static IndexingPolicy policy(List<String> included, List<String> excluded) {
+        IndexingPolicy policy = new IndexingPolicy();
+        policy.setIncludedPaths(included.stream().map(IncludedPath::new).collect(Collectors.toList()));
+        policy.setExcludedPaths(excluded.stream().map(ExcludedPath::new).collect(Collectors.toList()));
+        return policy;
+    }
+
+    @Test
+    void mostSpecificPathWins() {
+        IndexingPolicy policy = policy(List.of("/*", "/Item/Email/?"), List.of("/Item/*", "/\"_etag\"/?"));
+        assertTrue(IndexingPolicyCheck.isIndexed(policy, "/Header/UserAdId/?"));
+        assertTrue(IndexingPolicyCheck.isIndexed(policy, "/Item/Email/?"));
+        assertFalse(IndexingPolicyCheck.isIndexed(policy, "/Item/Active/?"));
+        assertFalse(IndexingPolicyCheck.isIndexed(policy, "/_etag/?"));
+    }
+
+    @Test
+    void nothingIsIndexedWithoutIncludedPaths() {
+        assertFalse(IndexingPolicyCheck.isIndexed(policy(List.of(), List.of()), "/Header/UserAdId/?"));
+    }
+
+    @Test
+    void requiresLookupAndSearchableAttributePaths() {
+        Set<String> paths = IndexingPolicyCheck.requiredUserPaths(TestFixtures.config(
+                CosmosDbUserStorageProviderFactory.SEARCHABLE_ATTRIBUTES, "dept=Item.Dept"));
+        assertTrue(paths.contains("/Header/UserAdId/?"));
+        assertTrue(paths.contains("/Item/Active/?"));
+        assertTrue(paths.contains("/Item/Dept/?"));
+        assertFalse(paths.contains("/Header/CompanyId/?"), "only the configured attributes");
+    }
+}
@@ -0,0 +1,31 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InstrumentedContainerTest {
+
+    private static String diagnostics(String statusAndSubStatusCodes) {
+        return "{\"userAgent\":\"azsdk-java-cosmos/4.53.0\",\"requestLatencyInMs\":42,"
+                + "\"retryContext\":{\"statusAndSubStatusCodes\":" + statusAndSubStatusCodes + ",\"retryLatency\":30,\"retryCount\":1},"
+                + "\"responseStatisticsList\":[{\"storeResult\":{\"statusCode\":200}}]}";
+    }
+
+    @Test
+    void onlyThrottlingRetriesCountAsThrottling() {
+        assertTrue(InstrumentedContainer.retriedAfterThrottling(diagnostics("[[429,3200]]")));
+        assertTrue(InstrumentedContainer.retriedAfterThrottling(diagnostics("[[410,1002],[429,3200]]")));
+        assertFalse(InstrumentedContainer.retriedAfterThrottling(diagnostics("[[410,1002]]")), "partition split");
+        assertFalse(InstrumentedContainer.retriedAfterThrottling(diagnostics("[[503,0]]")), "region failover");
+        assertFalse(InstrumentedContainer.retriedAfterThrottling(diagnostics("null")));
+    }
+
+    @Test
+    void readsRetryContextsOfEveryQueryPage() {
+        String page = "{\"clientSideRequestStatisticsList\":[" + diagnostics("[[410,1002]]") + "," + diagnostics("[[429,3200]]") + "]}";
+        assertTrue(InstrumentedContainer.retriedAfterThrottling(page));
+        assertFalse(InstrumentedContainer.retriedAfterThrottling("not json"));
+    }
+}
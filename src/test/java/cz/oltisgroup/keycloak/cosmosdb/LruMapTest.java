@@ -0,0 +1,28 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LruMapTest {
+
+    @Test
+    void evictsOnlyTheLeastRecentlyUsedEntry() {
+        Map<String, Integer> map = LruMap.create(3);
+        map.put("a", 1);
+        map.put("b", 2);
+        map.put("c", 3);
+        map.get("a");
+        map.put("d", 4);
+
+        assertEquals(3, map.size());
+        assertFalse(map.containsKey("b"), "least recently used");
+        assertTrue(map.containsKey("a"), "read entries stay");
+        assertTrue(map.containsKey("c"));
+        assertTrue(map.containsKey("d"));
+    }
+}
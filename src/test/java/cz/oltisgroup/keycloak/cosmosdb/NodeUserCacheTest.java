@@ -0,0 +1,87 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NodeUserCacheTest {
+
+    private final ObjectNode novak = TestFixtures.user("doc-1", "Novak", "novak@example.com", true);
+
+    // componentId|lowercase username, unique per test as the cache is node-wide
+    private final String key = "test-" + UUID.randomUUID() + "|novak";
+
+    private static JsonNode fail() {
+        throw new AssertionError("no refresh expected");
+    }
+
+    @Test
+    void servesCopiesWithinTheTtl() {
+        CosmosDbConfig config = TestFixtures.config(CosmosDbUserStorageProviderFactory.USER_CACHE_SECONDS, "60");
+        NodeUserCache.put(key, novak, config);
+        novak.with("Item").put("Email", "changed@example.com");
+
+        NodeUserCache.Hit cached = NodeUserCache.get(key, config, NodeUserCacheTest::fail);
+        assertFalse(cached.stale);
+        assertEquals("novak@example.com", cached.doc.path("Item").path("Email").asText());
+        ((ObjectNode) cached.doc.get("Item")).put("Email", "modified@example.com");
+        assertEquals("novak@example.com", NodeUserCache.get(key, config, NodeUserCacheTest::fail).doc.path("Item").path("Email").asText());
+    }
+
+    @Test
+    void writesRemoveEntries() {
+        CosmosDbConfig config = TestFixtures.config(CosmosDbUserStorageProviderFactory.USER_CACHE_SECONDS, "60");
+        NodeUserCache.put(key, novak, config);
+        NodeUserCache.remove(key);
+        assertNull(NodeUserCache.get(key, config, NodeUserCacheTest::fail));
+
+        NodeUserCache.put(key, novak, config);
+        NodeUserCache.put(key, null, config);
+        assertNull(NodeUserCache.get(key, config, NodeUserCacheTest::fail));
+    }
+
+    @Test
+    void disabledWithoutTtl() {
+        CosmosDbConfig config = TestFixtures.config(CosmosDbUserStorageProviderFactory.USER_CACHE_SECONDS, "0");
+        NodeUserCache.put(key, novak, config);
+        assertNull(NodeUserCache.get(key, config, NodeUserCacheTest::fail));
+    }
+
+    @Test
+    void servesStaleEntriesWhileRefreshing() throws InterruptedException {
+        CosmosDbConfig config = TestFixtures.config(
+                CosmosDbUserStorageProviderFactory.USER_CACHE_SECONDS, "1",
+                CosmosDbUserStorageProviderFactory.USER_CACHE_STALE_SECONDS, "60");
+        NodeUserCache.put(key, novak, config);
+        Thread.sleep(1100);
+
+        CountDownLatch refreshed = new CountDownLatch(1);
+        ObjectNode current = TestFixtures.user("doc-1", "Novak", "jan.novak@example.com", true);
+        NodeUserCache.Hit stale = NodeUserCache.get(key, config, () -> {
+            refreshed.countDown();
+            return current;
+        });
+        assertNotNull(stale);
+        assertTrue(stale.stale);
+        assertEquals("novak@example.com", stale.doc.path("Item").path("Email").asText());
+        assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+
+        NodeUserCache.Hit fresh = null;
+        for (int i = 0; i < 50 && (fresh == null || !"jan.novak@example.com".equals(fresh.doc.path("Item").path("Email").asText())); i++) {
+            Thread.sleep(20);
+            fresh = NodeUserCache.get(key, config, NodeUserCacheTest::fail);
+        }
+        assertEquals("jan.novak@example.com", fresh.doc.path("Item").path("Email").asText());
+        assertFalse(fresh.stale);
+    }
+}
@@ -0,0 +1,44 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QueryProfilesTest {
+
+    @Test
+    void mapsOperationClassesToProfiles() {
+        QueryProfiles profiles = QueryProfiles.parse(null);
+        assertEquals(QueryProfiles.Profile.LOGIN.pageSize, profiles.forOperation(CosmosDbOperation.FIND_BY_USERNAME).getPageSize());
+        assertEquals(QueryProfiles.Profile.SEARCH.pageSize, profiles.forOperation(CosmosDbOperation.SEARCH).getPageSize());
+        assertEquals(QueryProfiles.Profile.SCAN.pageSize, profiles.forOperation(CosmosDbOperation.CHANGE_FEED).getPageSize());
+        assertEquals(QueryProfiles.Profile.LOGIN.pageSize, profiles.forOperation(CosmosDbOperation.LOAD_FULL_DOCUMENT).getPageSize());
+        assertTrue(profiles.getErrors().isEmpty());
+    }
+
+    @Test
+    void overridesSettings() {
+        QueryProfiles profiles = QueryProfiles.parse("scan.parallelism=4, search.pageSize=50, login.metrics=true");
+        assertEquals(4, profiles.get(QueryProfiles.Profile.SCAN).getParallelism());
+        assertEquals(50, profiles.get(QueryProfiles.Profile.SEARCH).getPageSize());
+        assertTrue(profiles.get(QueryProfiles.Profile.LOGIN).isMetrics());
+        assertTrue(profiles.getErrors().isEmpty());
+    }
+
+    @Test
+    void dropsAndReportsInvalidEntries() {
+        QueryProfiles profiles = QueryProfiles.parse("scan.parallelism=x, bulk.buffer=1, login.color=red, nonsense");
+        assertEquals(QueryProfiles.Profile.SCAN.parallelism, profiles.get(QueryProfiles.Profile.SCAN).getParallelism());
+        assertEquals(4, profiles.getErrors().size());
+    }
+
+    @Test
+    void pageSizeIsBoundedByRequestedItems() {
+        QueryProfiles profiles = QueryProfiles.parse("search.pageSize=100");
+        assertEquals(20, profiles.get(QueryProfiles.Profile.SEARCH).pageSize(20));
+        assertEquals(100, profiles.get(QueryProfiles.Profile.SEARCH).pageSize(Integer.MAX_VALUE));
+        assertNull(profiles.get(QueryProfiles.Profile.COUNT).pageSize(Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,38 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestPrioritiesTest {
+
+    @Test
+    void backgroundWorkIsLowPriorityByDefault() {
+        RequestPriorities priorities = RequestPriorities.parse(null);
+        assertTrue(priorities.isEnabled());
+        assertEquals(RequestPriorities.HIGH_GROUP, priorities.groupFor(CosmosDbOperation.FIND_BY_USERNAME));
+        assertEquals(RequestPriorities.HIGH_GROUP, priorities.groupFor(CosmosDbOperation.UPSERT_USER));
+        assertEquals(RequestPriorities.LOW_GROUP, priorities.groupFor(CosmosDbOperation.SEARCH));
+        assertEquals(RequestPriorities.LOW_GROUP, priorities.groupFor(CosmosDbOperation.COUNT));
+        assertEquals(RequestPriorities.LOW_GROUP, priorities.groupFor(CosmosDbOperation.CHANGE_FEED));
+    }
+
+    @Test
+    void offSendsNoPriority() {
+        RequestPriorities priorities = RequestPriorities.parse(" OFF ");
+        assertFalse(priorities.isEnabled());
+        assertNull(priorities.groupFor(CosmosDbOperation.SEARCH));
+        assertTrue(priorities.getErrors().isEmpty());
+    }
+
+    @Test
+    void dropsAndReportsInvalidEntries() {
+        RequestPriorities priorities = RequestPriorities.parse("low, login=high, bulk=low, search=urgent");
+        assertEquals(RequestPriorities.HIGH_GROUP, priorities.groupFor(CosmosDbOperation.FIND_BY_EMAIL));
+        assertEquals(RequestPriorities.LOW_GROUP, priorities.groupFor(CosmosDbOperation.SEARCH));
+        assertEquals(2, priorities.getErrors().size());
+    }
+}
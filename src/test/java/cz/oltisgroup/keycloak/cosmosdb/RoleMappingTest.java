@@ -0,0 +1,52 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoleMappingTest {
+
+    private final RoleModel offlineAccess = role("role-1");
+    private final RealmModel realm = TestFixtures.stub(RealmModel.class, Map.of(
+            "getId", args -> "role-mapping-test",
+            "getRole", args -> "offline_access".equals(args[0]) ? offlineAccess : null));
+
+    @AfterEach
+    void invalidate() {
+        RoleMapping.invalidate();
+    }
+
+    private static RoleModel role(String id) {
+        return TestFixtures.stub(RoleModel.class, Map.of("getId", args -> id));
+    }
+
+    @Test
+    void resolvesExistingRealmRoles() {
+        RoleMapping mapping = RoleMapping.parse("user=offline_access, auditor=offline_access, admin=missing");
+        assertTrue(mapping.isEnabled());
+        assertEquals(Map.of("user", "role-1", "auditor", "role-1"), mapping.resolve(realm));
+        assertEquals(List.of("user", "auditor"), mapping.valuesFor(realm, offlineAccess));
+        assertEquals(List.of(), mapping.valuesFor(realm, role("role-2")));
+    }
+
+    @Test
+    void emptyMappingIsDisabled() {
+        assertFalse(RoleMapping.parse(null).isEnabled());
+        assertFalse(RoleMapping.parse(" ").isEnabled());
+    }
+
+    @Test
+    void dropsAndReportsInvalidEntries() {
+        RoleMapping mapping = RoleMapping.parse("user=offline_access, =admin, dispatcher=, nonsense");
+        assertEquals(Map.of("user", "role-1"), mapping.resolve(realm));
+        assertEquals(3, mapping.getErrors().size());
+    }
+}
@@ -0,0 +1,62 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ModelException;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RuBudgetTest {
+
+    private static RuBudget budget(int ruPerSecond, int maxConcurrency) {
+        return RuBudget.forContainer(TestFixtures.config(
+                CosmosDbUserStorageProviderFactory.RU_BUDGET_PER_SECOND, String.valueOf(ruPerSecond),
+                CosmosDbUserStorageProviderFactory.BACKGROUND_MAX_CONCURRENCY, String.valueOf(maxConcurrency),
+                CosmosDbUserStorageProviderFactory.RU_BUDGET_MAX_WAIT_MS, "0"), "User");
+    }
+
+    @Test
+    void disabledWithoutBudget() {
+        assertNull(budget(0, 4));
+    }
+
+    @Test
+    void limitsOnlyBackgroundConcurrency() {
+        RuBudget budget = budget(10_000, 2);
+        budget.admit(CosmosDbOperation.SEARCH);
+        budget.admit(CosmosDbOperation.COUNT);
+        assertThrows(ModelException.class, () -> budget.admit(CosmosDbOperation.SEARCH));
+        assertDoesNotThrow(() -> budget.admit(CosmosDbOperation.FIND_BY_USERNAME));
+        assertDoesNotThrow(() -> budget.admit(CosmosDbOperation.UPSERT_USER), "writes are not limited either");
+
+        budget.complete(CosmosDbOperation.SEARCH, 1, false);
+        assertDoesNotThrow(() -> budget.admit(CosmosDbOperation.SEARCH));
+    }
+
+    @Test
+    void halvesConcurrencyOnThrottlingAndGrowsAdditively() {
+        RuBudget budget = budget(10_000, 8);
+        budget.admit(CosmosDbOperation.SEARCH);
+        budget.complete(CosmosDbOperation.SEARCH, 1, true);
+        assertEquals(4, budget.getConcurrencyLimit(), 0.001);
+
+        budget.admit(CosmosDbOperation.FIND_BY_USERNAME);
+        budget.complete(CosmosDbOperation.FIND_BY_USERNAME, 1, true);
+        assertEquals(2, budget.getConcurrencyLimit(), 0.001, "throttled logins slow the others down");
+
+        budget.admit(CosmosDbOperation.SEARCH);
+        budget.complete(CosmosDbOperation.SEARCH, 1, false);
+        assertEquals(2.5, budget.getConcurrencyLimit(), 0.001);
+    }
+
+    @Test
+    void backgroundCallsGiveWayWhenLoginsUseTheBudget() {
+        RuBudget budget = budget(100, 4);
+        budget.admit(CosmosDbOperation.FIND_BY_USERNAME);
+        budget.complete(CosmosDbOperation.FIND_BY_USERNAME, 1000, false);
+        assertThrows(ModelException.class, () -> budget.admit(CosmosDbOperation.SEARCH));
+        assertDoesNotThrow(() -> budget.admit(CosmosDbOperation.FIND_BY_EMAIL));
+    }
+}
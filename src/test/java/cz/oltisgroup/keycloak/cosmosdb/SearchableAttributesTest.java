@@ -0,0 +1,38 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchableAttributesTest {
+
+    @Test
+    void defaultsToTheKnownFields() {
+        SearchableAttributes attributes = SearchableAttributes.parse(" ");
+        assertEquals("Item.Email", attributes.resolve("email"));
+        assertEquals("Header.CompanyId", attributes.resolve("companyId"));
+        assertNull(attributes.resolve("department"));
+        assertNull(attributes.resolve(null));
+        assertTrue(attributes.getErrors().isEmpty());
+    }
+
+    @Test
+    void dropsAndReportsInvalidEntries() {
+        SearchableAttributes attributes = SearchableAttributes.parse("dept=Item.Dept, bad, x=Item.A B, y=Other.Y, dept=Item.Other");
+        assertEquals(Map.of("dept", "Item.Dept"), attributes.getPaths());
+        assertEquals(4, attributes.getErrors().size());
+    }
+
+    @Test
+    void acceptsOnlyPlainPaths() {
+        assertTrue(SearchableAttributes.isValidPath("Header.UserLWPId"));
+        assertFalse(SearchableAttributes.isValidPath("Item.Email.Domain"));
+        assertFalse(SearchableAttributes.isValidPath("Item.Email)"));
+        assertFalse(SearchableAttributes.isValidPath(null));
+    }
+}
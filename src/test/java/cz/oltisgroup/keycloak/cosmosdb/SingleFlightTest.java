@@ -0,0 +1,97 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SingleFlightTest {
+
+    private final SingleFlight<String> flight = new SingleFlight<>();
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void concurrentCallersShareOneLoad() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        Future<SingleFlight.Result<String>> leader = executor.submit(() -> flight.execute("novak", () -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            await(release);
+            return "doc";
+        }));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        Future<SingleFlight.Result<String>> follower = executor.submit(() -> flight.execute("novak", () -> {
+            loads.incrementAndGet();
+            return "other";
+        }));
+        Thread.sleep(200);
+        assertFalse(follower.isDone(), "the follower waits for the leader's load");
+
+        release.countDown();
+        assertTrue(leader.get(5, TimeUnit.SECONDS).leader);
+        assertFalse(follower.get(5, TimeUnit.SECONDS).leader);
+        assertEquals("doc", follower.get().value);
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void nothingIsCachedAfterTheLoad() {
+        assertEquals("a", flight.execute("novak", () -> "a").value);
+        SingleFlight.Result<String> second = flight.execute("novak", () -> "b");
+        assertEquals("b", second.value);
+        assertTrue(second.leader);
+    }
+
+    @Test
+    void failureReachesEveryCaller() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> leader = executor.submit(() -> flight.execute("novak", () -> {
+            loading.countDown();
+            await(release);
+            throw new IllegalStateException("Cosmos down");
+        }));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            release.countDown();
+        });
+        releaser.start();
+
+        assertThrows(IllegalStateException.class, () -> flight.execute("novak", () -> "other"));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> leader.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SlowOperationThresholdsTest {
+
+    @Test
+    void appliesDefaultsAndOverrides() {
+        SlowOperationThresholds thresholds = SlowOperationThresholds.parse("500,search=2000", "100,count=0");
+        assertTrue(thresholds.isSlow(CosmosDbOperation.FIND_BY_USERNAME, 500, 1));
+        assertFalse(thresholds.isSlow(CosmosDbOperation.SEARCH, 1999, 1));
+        assertTrue(thresholds.isSlow(CosmosDbOperation.SEARCH, 1, 100));
+        assertFalse(thresholds.isSlow(CosmosDbOperation.COUNT, 1, 10_000));
+        assertTrue(thresholds.getErrors().isEmpty());
+    }
+
+    @Test
+    void zeroDefaultDisablesTheCheck() {
+        SlowOperationThresholds thresholds = SlowOperationThresholds.parse("0", "0");
+        assertFalse(thresholds.isSlow(CosmosDbOperation.FIND_BY_USERNAME, 60_000, 10_000));
+    }
+
+    @Test
+    void dropsAndReportsInvalidEntries() {
+        SlowOperationThresholds thresholds = SlowOperationThresholds.parse("-1,lookup=10,search=x", "abc");
+        assertEquals(4, thresholds.getErrors().size());
+        assertTrue(thresholds.isSlow(CosmosDbOperation.FIND_BY_USERNAME, 500, 100));
+    }
+}
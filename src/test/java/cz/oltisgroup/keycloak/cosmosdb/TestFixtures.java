@@ -0,0 +1,104 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Components on the in-memory backend, user documents and stand-ins for Keycloak objects; no test talks to
+ * a Cosmos account.
+ */
+final class TestFixtures {
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private TestFixtures() {}
+
+    /**
+     * Component with a unique id and endpoint, so node-wide registries of one test do not leak into another.
+     */
+    static ComponentModel component(String... settings) {
+        ComponentModel model = new ComponentModel();
+        model.setId("test-" + UUID.randomUUID());
+        model.setName("cosmosdb");
+        model.setProviderId(CosmosDbUserStorageProviderFactory.PROVIDER_NAME);
+        model.put(CosmosDbUserStorageProviderFactory.STORAGE_BACKEND, CosmosDbConfig.STORAGE_BACKEND_MEMORY);
+        model.put(CosmosDbUserStorageProviderFactory.ENDPOINT, "https://" + model.getId() + ".documents.azure.com:443/");
+        model.put(CosmosDbUserStorageProviderFactory.KEY, "testkey");
+        model.put(CosmosDbUserStorageProviderFactory.DATABASE_NAME, "test");
+        model.put(CosmosDbUserStorageProviderFactory.CONTAINER_NAME, "User");
+        for (int i = 0; i + 1 < settings.length; i += 2) {
+            model.put(settings[i], settings[i + 1]);
+        }
+        return model;
+    }
+
+    static CosmosDbConfig config(String... settings) {
+        return CosmosDbConfig.from(component(settings));
+    }
+
+    /**
+     * User document as stored in the main container; the password is "pw-" + username.
+     */
+    static ObjectNode user(String id, String username, String email, boolean active) {
+        ObjectNode doc = MAPPER.createObjectNode();
+        doc.put("id", id);
+        ObjectNode header = doc.putObject("Header");
+        header.put("UserAdId", username);
+        header.put("CompanyId", "1042");
+        ObjectNode item = doc.putObject("Item");
+        item.put("Active", active ? 1 : 0);
+        item.put("Email", email);
+        item.put("Name", "First " + username);
+        item.put("Surename", "Last " + username);
+        item.put("Password", "pw-" + username);
+        return doc;
+    }
+
+    /**
+     * Session whose federated storage holds no attributes, like for users edited only in Cosmos.
+     */
+    static KeycloakSession session() {
+        UserFederatedStorageProvider federatedStorage = stub(UserFederatedStorageProvider.class, Collections.emptyMap());
+        return stub(KeycloakSession.class, Map.of(
+                "getProvider", args -> args[0] == UserFederatedStorageProvider.class ? federatedStorage : null));
+    }
+
+    static RealmModel realm() {
+        return stub(RealmModel.class, Collections.emptyMap());
+    }
+
+    /**
+     * Interface stub answering the named methods; other methods return null, false or zero.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> answers) {
+        return (T) Proxy.newProxyInstance(TestFixtures.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Function<Object[], Object> answer = answers.get(method.getName());
+            if (answer != null) return answer.apply(args);
+            switch (method.getName()) {
+                case "getId": return "test";
+                case "getAttributes": return new MultivaluedHashMap<String, String>();
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals": return proxy == args[0];
+                case "toString": return type.getSimpleName();
+                default:
+                    Class<?> rt = method.getReturnType();
+                    if (rt == boolean.class) return false;
+                    if (rt == int.class) return 0;
+                    if (rt == long.class) return 0L;
+                    return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,106 @@
+package cz.oltisgroup.keycloak.cosmosdb;
+
+import com.azure.cosmos.models.SqlParameter;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserSearchQueryTest {
+
+    private final ObjectNode novak = TestFixtures.user("doc-1", "Novak", "jan.novak@example.com", true);
+
+    @Test
+    void plainTermsArePrefixMatches() {
+        assertTrue(UserSearchQuery.fromSearch("nov").matches(novak, false));
+        assertTrue(UserSearchQuery.fromSearch("NOV*").matches(novak, false));
+        assertFalse(UserSearchQuery.fromSearch("ovak").matches(novak, false));
+    }
+
+    @Test
+    void leadingWildcardIsSubstringMatch() {
+        assertTrue(UserSearchQuery.fromSearch("*ovak").matches(novak, false));
+        assertTrue(UserSearchQuery.fromSearch("*example").matches(novak, false));
+    }
+
+    @Test
+    void quotedTermIsExactMatch() {
+        assertTrue(UserSearchQuery.fromSearch("\"novak\"").matches(novak, false));
+        assertFalse(UserSearchQuery.fromSearch("\"nova\"").matches(novak, false));
+    }
+
+    @Test
+    void everyTermMustMatch() {
+        assertTrue(UserSearchQuery.fromSearch("first last").matches(novak, false));
+        assertFalse(UserSearchQuery.fromSearch("first dvorak").matches(novak, false));
+        assertTrue(UserSearchQuery.fromSearch("*").isEmpty());
+    }
+
+    @Test
+    void rendersLowerOfSourceFieldsWithoutCaseFoldedCopies() {
+        List<SqlParameter> params = new ArrayList<>();
+        String sql = UserSearchQuery.fromSearch("Nov").toSql(false, params);
+        assertEquals("(STARTSWITH(LOWER(c.Header.UserAdId), @s0) OR STARTSWITH(LOWER(c.Item.Email), @s0)"
+                + " OR STARTSWITH(LOWER(c.Item.email), @s0) OR STARTSWITH(LOWER(c.Item.Name), @s0)"
+                + " OR STARTSWITH(LOWER(c.Item.name), @s0) OR STARTSWITH(LOWER(c.Item.Surename), @s0)"
+                + " OR STARTSWITH(LOWER(c.Item.Surname), @s0))", sql);
+        assertEquals(1, params.size());
+        assertEquals("nov", params.get(0).getValue(String.class));
+    }
+
+    @Test
+    void rendersCaseFoldedCopies() {
+        List<SqlParameter> params = new ArrayList<>();
+        String sql = new UserSearchQuery()
+                .add(List.of(UserSearchQuery.Field.USERNAME), UserSearchQuery.Match.EQUALS, "Novak")
+                .toSql(true, params);
+        assertEquals("(c." + SearchFields.FIELD + ".UserAdId = @s0)", sql);
+        assertEquals("novak", params.get(0).getValue(String.class));
+    }
+
+    @Test
+    void mapsSearchParameters() {
+        SearchableAttributes attributes = SearchableAttributes.parse(null);
+        List<SqlParameter> params = new ArrayList<>();
+        UserSearchQuery query = UserSearchQuery.fromParams(
+                Map.of(UserModel.ENABLED, "true", "companyId", "1042"), attributes);
+        String sql = query.toSql(false, params);
+        assertTrue(sql.contains("c.Item.Active = 1"), sql);
+        assertTrue(sql.contains("c.Header.CompanyId = @s0"), sql);
+        assertTrue(query.matches(novak, false));
+        assertFalse(UserSearchQuery.fromParams(Map.of("companyId", "2001"), attributes).matches(novak, false));
+        assertFalse(UserSearchQuery.fromParams(Map.of(UserModel.ENABLED, "false"), attributes).matches(novak, false));
+    }
+
+    @Test
+    void usernameParameterIsSubstringUnlessExact() {
+        SearchableAttributes attributes = SearchableAttributes.parse(null);
+        assertTrue(UserSearchQuery.fromParams(Map.of(UserModel.USERNAME, "ova"), attributes).matches(novak, false));
+        assertFalse(UserSearchQuery.fromParams(Map.of(UserModel.USERNAME, "ova", UserModel.EXACT, "true"), attributes)
+                .matches(novak, false));
+        assertTrue(UserSearchQuery.fromParams(Map.of(UserModel.USERNAME, "NOVAK", UserModel.EXACT, "true"), attributes)
+                .matches(novak, false));
+    }
+
+    @Test
+    void noUserMatchesParametersOutsideCosmos() {
+        SearchableAttributes attributes = SearchableAttributes.parse(null);
+        assertNull(UserSearchQuery.fromParams(Map.of(UserModel.IDP_ALIAS, "google"), attributes));
+        assertNull(UserSearchQuery.fromParams(Map.of("department", "it"), attributes));
+    }
+
+    @Test
+    void rejectsAttributePathsOutsideTheWhitelist() {
+        assertThrows(IllegalArgumentException.class, () -> new UserSearchQuery().addAttribute("Item.Email OR 1=1", "x"));
+        assertThrows(IllegalArgumentException.class, () -> new UserSearchQuery().addAttribute("Other.Email", "x"));
+    }
+}